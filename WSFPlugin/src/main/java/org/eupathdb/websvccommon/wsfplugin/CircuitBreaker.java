@@ -0,0 +1,246 @@
+package org.eupathdb.websvccommon.wsfplugin;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.log4j.Logger;
+import org.gusdb.wsf.plugin.PluginModelException;
+
+/**
+ * Guards calls to a remote service that is failing or too slow.  The outcome
+ * of the most recent calls is kept in a fixed-size window; once enough calls
+ * have been recorded and the fraction that failed or were slow reaches a
+ * threshold, the breaker opens and calls fail immediately.  After a wait, one
+ * probe call at a time is let through; the breaker closes when a probe
+ * succeeds and reopens when one fails.  Only the probe's outcome decides
+ * this: calls permitted before the breaker opened are ignored once it has.
+ */
+public class CircuitBreaker {
+
+  private static final Logger LOG = Logger.getLogger(CircuitBreaker.class);
+
+  private static final Map<String, CircuitBreaker> INSTANCES = new HashMap<>();
+
+  /**
+   * @param name name of the guarded service, e.g. its URL
+   * @param settings settings used if the breaker does not yet exist
+   * @return shared breaker for the named service
+   */
+  public static synchronized CircuitBreaker getInstance(String name, Settings settings) {
+    return INSTANCES.computeIfAbsent(name, n -> new CircuitBreaker(n, settings));
+  }
+
+  public enum State { CLOSED, OPEN, HALF_OPEN }
+
+  public static class Settings {
+
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+    public static final int DEFAULT_MIN_CALLS = 10;
+    public static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+    public static final long DEFAULT_SLOW_CALL_MILLIS = 30 /* seconds */ * 1000;
+    public static final long DEFAULT_OPEN_MILLIS = 30 /* seconds */ * 1000;
+
+    public static final Settings DEFAULT = new Settings(DEFAULT_WINDOW_SIZE, DEFAULT_MIN_CALLS,
+        DEFAULT_FAILURE_RATE_THRESHOLD, DEFAULT_SLOW_CALL_MILLIS, DEFAULT_OPEN_MILLIS);
+
+    private final int _windowSize;
+    private final int _minCalls;
+    private final double _failureRateThreshold;
+    private final long _slowCallMillis;
+    private final long _openMillis;
+
+    /**
+     * @param windowSize number of recent calls whose outcome is considered
+     * @param minCalls number of calls that must be recorded before the breaker can open
+     * @param failureRateThreshold fraction of failed or slow calls at which the breaker opens
+     * @param slowCallMillis duration above which a successful call counts as slow
+     * @param openMillis time the breaker stays open before letting a probe through
+     */
+    public Settings(int windowSize, int minCalls, double failureRateThreshold, long slowCallMillis, long openMillis) {
+      _windowSize = windowSize;
+      _minCalls = Math.min(minCalls, windowSize);
+      _failureRateThreshold = failureRateThreshold;
+      _slowCallMillis = slowCallMillis;
+      _openMillis = openMillis;
+    }
+
+    public int getWindowSize() { return _windowSize; }
+    public int getMinCalls() { return _minCalls; }
+    public double getFailureRateThreshold() { return _failureRateThreshold; }
+    public long getSlowCallMillis() { return _slowCallMillis; }
+    public long getOpenMillis() { return _openMillis; }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Settings)) return false;
+      Settings other = (Settings)obj;
+      return _windowSize == other._windowSize &&
+          _minCalls == other._minCalls &&
+          _failureRateThreshold == other._failureRateThreshold &&
+          _slowCallMillis == other._slowCallMillis &&
+          _openMillis == other._openMillis;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(_windowSize, _minCalls, _failureRateThreshold, _slowCallMillis, _openMillis);
+    }
+
+    @Override
+    public String toString() {
+      return "{ windowSize: " + _windowSize + ", minCalls: " + _minCalls + ", failureRateThreshold: " +
+          _failureRateThreshold + ", slowCallMillis: " + _slowCallMillis + ", openMillis: " + _openMillis + " }";
+    }
+  }
+
+  /**
+   * Permission to make one call, which must be passed back to record() or
+   * release()
+   */
+  public static class Permit {
+
+    private final boolean _isProbe;
+
+    private Permit(boolean isProbe) {
+      _isProbe = isProbe;
+    }
+  }
+
+  // permits are only told apart by whether they are for a probe call
+  private static final Permit CALL_PERMIT = new Permit(false);
+  private static final Permit PROBE_PERMIT = new Permit(true);
+
+  /**
+   * Thrown instead of making a call while the breaker is open
+   */
+  public static class CircuitOpenException extends PluginModelException {
+    public CircuitOpenException(String message) {
+      super(message);
+    }
+  }
+
+  private final String _name;
+  private final Settings _settings;
+
+  // ring buffer of recent outcomes; true if the call failed or was slow
+  private final boolean[] _outcomes;
+  private int _next = 0;
+  private int _recorded = 0;
+  private int _failures = 0;
+
+  private State _state = State.CLOSED;
+  private long _openedAt;
+  private boolean _probeInProgress = false;
+
+  private CircuitBreaker(String name, Settings settings) {
+    _name = name;
+    _settings = settings;
+    _outcomes = new boolean[settings.getWindowSize()];
+    LOG.info("Created circuit breaker for " + name + " with settings " + settings);
+  }
+
+  /**
+   * Must be called before each call.  If the call is permitted, its outcome
+   * must then be passed to record(), or the returned permit to release() if
+   * the call was not made.
+   *
+   * @return permit for the call
+   * @throws CircuitOpenException if the breaker is open
+   */
+  public synchronized Permit acquire() throws CircuitOpenException {
+    if (_state == State.OPEN && System.currentTimeMillis() - _openedAt >= _settings.getOpenMillis()) {
+      _state = State.HALF_OPEN;
+      LOG.info("Circuit breaker for " + _name + " is half open; probing for recovery");
+    }
+    switch (_state) {
+      case CLOSED:
+        return CALL_PERMIT;
+      case HALF_OPEN:
+        if (!_probeInProgress) {
+          _probeInProgress = true;
+          return PROBE_PERMIT;
+        }
+        // fall through: only one probe at a time
+      default:
+        throw new CircuitOpenException("Calls to " + _name +
+            " are suspended because it is failing or responding slowly; please try again later.");
+    }
+  }
+
+  /**
+   * Records the outcome of a permitted call.
+   *
+   * @param permit permit returned by acquire() for the call
+   * @param succeeded whether the call succeeded
+   * @param durationMillis duration of the call
+   */
+  public synchronized void record(Permit permit, boolean succeeded, long durationMillis) {
+    boolean failed = !succeeded || durationMillis > _settings.getSlowCallMillis();
+    if (permit._isProbe) {
+      _probeInProgress = false;
+      if (failed) {
+        open("probe call " + (succeeded ? "took " + durationMillis + "ms" : "failed"));
+      }
+      else {
+        LOG.info("Circuit breaker for " + _name + " is closed");
+        _state = State.CLOSED;
+        resetWindow();
+      }
+      return;
+    }
+    if (_state != State.CLOSED) {
+      // call was permitted before the breaker opened
+      return;
+    }
+
+    // replace the oldest outcome in the window
+    if (_recorded == _outcomes.length) {
+      if (_outcomes[_next]) _failures--;
+    }
+    else {
+      _recorded++;
+    }
+    _outcomes[_next] = failed;
+    if (failed) _failures++;
+    _next = (_next + 1) % _outcomes.length;
+
+    if (_state == State.CLOSED && _recorded >= _settings.getMinCalls() &&
+        (double)_failures / _recorded >= _settings.getFailureRateThreshold()) {
+      open(_failures + " of the last " + _recorded + " calls failed or were slow");
+    }
+  }
+
+  /**
+   * Releases a permitted call that was not made, or whose outcome says
+   * nothing about the health of the service (e.g. it failed locally before
+   * being sent).  A released probe lets the next call probe instead.
+   *
+   * @param permit permit returned by acquire() for the call
+   */
+  public synchronized void release(Permit permit) {
+    if (permit._isProbe) {
+      _probeInProgress = false;
+    }
+  }
+
+  /**
+   * @return current state of the breaker
+   */
+  public synchronized State getState() {
+    return _state;
+  }
+
+  private void open(String reason) {
+    LOG.warn("Opening circuit breaker for " + _name + " for " + _settings.getOpenMillis() + "ms: " + reason);
+    _state = State.OPEN;
+    _openedAt = System.currentTimeMillis();
+    resetWindow();
+  }
+
+  private void resetWindow() {
+    _next = 0;
+    _recorded = 0;
+    _failures = 0;
+  }
+}
@@ -0,0 +1,37 @@
+package org.eupathdb.websvccommon.wsfplugin;
+
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.gusdb.wsf.plugin.PluginResponse;
+import org.gusdb.wsf.plugin.PluginUserException;
+
+/**
+ * PluginResponse that passes everything on to another response.  Subclasses
+ * override the methods they need to observe (e.g. addRow to count or record
+ * rows) and call the superclass method to pass the call on.
+ */
+public class DelegatingPluginResponse implements PluginResponse {
+
+  private final PluginResponse _response;
+
+  /**
+   * @param response response to pass calls on to
+   */
+  public DelegatingPluginResponse(PluginResponse response) {
+    _response = response;
+  }
+
+  @Override
+  public void addRow(String[] row) throws PluginModelException, PluginUserException {
+    _response.addRow(row);
+  }
+
+  @Override
+  public void addAttachment(String key, String content) throws PluginModelException, PluginUserException {
+    _response.addAttachment(key, content);
+  }
+
+  @Override
+  public void setMessage(String message) throws PluginModelException, PluginUserException {
+    _response.setMessage(message);
+  }
+}
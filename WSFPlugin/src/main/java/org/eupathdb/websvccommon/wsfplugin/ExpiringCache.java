@@ -0,0 +1,114 @@
+package org.eupathdb.websvccommon.wsfplugin;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Small, thread-safe, in-memory cache whose entries expire a fixed time after
+ * they are added.  When full, the least recently used entry is evicted.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ExpiringCache<K,V> {
+
+  private static class Entry<V> {
+
+    private final V _value;
+    private final long _expirationTime;
+
+    private Entry(V value, long expirationTime) {
+      _value = value;
+      _expirationTime = expirationTime;
+    }
+  }
+
+  private final int _maxEntries;
+  private final Map<K,Entry<V>> _entries;
+
+  /**
+   * @param maxEntries maximum number of entries held at one time
+   */
+  public ExpiringCache(int maxEntries) {
+    _maxEntries = maxEntries;
+    _entries = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /**
+   * @param key key to look up
+   * @return unexpired value for the passed key, if present
+   */
+  public synchronized Optional<V> get(K key) {
+    Entry<V> entry = _entries.get(key);
+    if (entry == null) {
+      return Optional.empty();
+    }
+    if (entry._expirationTime <= System.currentTimeMillis()) {
+      _entries.remove(key);
+      return Optional.empty();
+    }
+    return Optional.of(entry._value);
+  }
+
+  /**
+   * Adds a value to the cache, replacing any existing value for the key.  A
+   * non-positive time to live leaves the cache unchanged.
+   *
+   * @param key key of value
+   * @param value value to cache
+   * @param timeToLiveMillis time after which the value expires
+   */
+  public synchronized void put(K key, V value, long timeToLiveMillis) {
+    if (timeToLiveMillis <= 0) {
+      return;
+    }
+    _entries.put(key, new Entry<>(value, System.currentTimeMillis() + timeToLiveMillis));
+    if (_entries.size() > _maxEntries) {
+      removeExpired();
+      Iterator<K> lru = _entries.keySet().iterator();
+      while (_entries.size() > _maxEntries) {
+        lru.next();
+        lru.remove();
+      }
+    }
+  }
+
+  /**
+   * Removes the value for the passed key, if it is the passed value.  Values
+   * added since the caller read the value are retained.
+   *
+   * @param key key of value
+   * @param value value to remove
+   * @return true if the value was removed
+   */
+  public synchronized boolean invalidate(K key, V value) {
+    Entry<V> entry = _entries.get(key);
+    if (entry != null && entry._value.equals(value)) {
+      _entries.remove(key);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param key key whose value should be removed
+   */
+  public synchronized void invalidate(K key) {
+    _entries.remove(key);
+  }
+
+  /**
+   * @return number of entries currently held, including any expired entries
+   * not yet removed
+   */
+  public synchronized int size() {
+    return _entries.size();
+  }
+
+  private void removeExpired() {
+    long now = System.currentTimeMillis();
+    _entries.values().removeIf(entry -> entry._expirationTime <= now);
+  }
+}
@@ -0,0 +1,246 @@
+package org.eupathdb.websvccommon.wsfplugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.StatusType;
+
+import org.apache.log4j.Logger;
+import org.gusdb.fgputil.web.HttpMethod;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.json.JSONObject;
+
+/**
+ * HTTP transport shared by the plugins in this module that call web services.
+ * One JAX-RS client is created per distinct set of settings and reused for
+ * the life of the JVM, so connections are kept alive and reused between
+ * requests (the number of idle connections kept per host is governed by the
+ * JVM's http.maxConnections property).  Connect and read timeouts apply to
+ * every request, and the number of requests to any one host that are being
+ * sent or are awaiting response headers is capped; a request waits up to the
+ * connect timeout for its turn.  Reading response bodies is not capped, so a
+ * few slow readers of large streamed bodies cannot hold up other requests to
+ * the same host.
+ */
+public class HttpTransport {
+
+  private static final Logger LOG = Logger.getLogger(HttpTransport.class);
+
+  private static final Map<Settings, HttpTransport> INSTANCES = new HashMap<>();
+
+  /**
+   * @param settings settings of the requested transport
+   * @return shared transport with the passed settings
+   */
+  public static synchronized HttpTransport getInstance(Settings settings) {
+    return INSTANCES.computeIfAbsent(settings, HttpTransport::new);
+  }
+
+  public static class Settings {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10 /* seconds */ * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 5 /* minutes */ * 60 * 1000;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+
+    public static final Settings DEFAULT = new Settings(DEFAULT_CONNECT_TIMEOUT_MILLIS,
+        DEFAULT_READ_TIMEOUT_MILLIS, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+
+    private final int _connectTimeoutMillis;
+    private final int _readTimeoutMillis;
+    private final int _maxConnectionsPerHost;
+
+    /**
+     * @param connectTimeoutMillis time allowed to establish a connection
+     * @param readTimeoutMillis time allowed to wait for data on an open connection
+     * @param maxConnectionsPerHost maximum requests to a single host being sent
+     * or awaiting response headers at once
+     */
+    public Settings(int connectTimeoutMillis, int readTimeoutMillis, int maxConnectionsPerHost) {
+      _connectTimeoutMillis = connectTimeoutMillis;
+      _readTimeoutMillis = readTimeoutMillis;
+      _maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public int getConnectTimeoutMillis() { return _connectTimeoutMillis; }
+    public int getReadTimeoutMillis() { return _readTimeoutMillis; }
+    public int getMaxConnectionsPerHost() { return _maxConnectionsPerHost; }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Settings)) return false;
+      Settings other = (Settings)obj;
+      return _connectTimeoutMillis == other._connectTimeoutMillis &&
+          _readTimeoutMillis == other._readTimeoutMillis &&
+          _maxConnectionsPerHost == other._maxConnectionsPerHost;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(_connectTimeoutMillis, _readTimeoutMillis, _maxConnectionsPerHost);
+    }
+
+    @Override
+    public String toString() {
+      return "{ connectTimeoutMillis: " + _connectTimeoutMillis + ", readTimeoutMillis: " +
+          _readTimeoutMillis + ", maxConnectionsPerHost: " + _maxConnectionsPerHost + " }";
+    }
+  }
+
+  /**
+   * Thrown when a request was sent but failed in transit: the host could not
+   * be reached, or did not respond in time.  Other failures of request() are
+   * local (e.g. no request slot became free) and say nothing of the host.
+   */
+  public static class RequestFailedException extends PluginModelException {
+    public RequestFailedException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+
+  /**
+   * Response to a request made with this transport.  Closing it releases the
+   * connection (back to the keep-alive pool if its body was fully read).
+   */
+  public static class ServiceResponse implements AutoCloseable {
+
+    private final Response _response;
+    private boolean _closed = false;
+
+    private ServiceResponse(Response response) {
+      _response = response;
+    }
+
+    public int getStatus() {
+      return _response.getStatus();
+    }
+
+    public StatusType getStatusInfo() {
+      return _response.getStatusInfo();
+    }
+
+    public String getHeaderString(String name) {
+      return _response.getHeaderString(name);
+    }
+
+    /**
+     * @return stream of the response body; closing this response closes it
+     */
+    public InputStream getBodyStream() {
+      return (InputStream)_response.getEntity();
+    }
+
+    /**
+     * Reads the entire response body into a string.  Only suitable for
+     * bodies known to be small.
+     *
+     * @return response body
+     * @throws IOException if unable to read body
+     */
+    public String readSmallBody() throws IOException {
+      InputStream in = getBodyStream();
+      if (in == null) return "";
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      in.transferTo(out);
+      return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized void close() {
+      if (_closed) return;
+      _closed = true;
+      _response.close();
+    }
+  }
+
+  private final Settings _settings;
+  private final Client _client;
+  private final Map<String, Semaphore> _hostPermits = new ConcurrentHashMap<>();
+
+  private HttpTransport(Settings settings) {
+    _settings = settings;
+    _client = ClientBuilder.newBuilder()
+      .connectTimeout(settings.getConnectTimeoutMillis(), TimeUnit.MILLISECONDS)
+      .readTimeout(settings.getReadTimeoutMillis(), TimeUnit.MILLISECONDS)
+      .build();
+    LOG.info("Created HTTP transport with settings " + settings);
+  }
+
+  /**
+   * Makes an HTTP request.  The host's request slot is held until response
+   * headers arrive; the caller must close the returned response.
+   *
+   * @param url URL to request
+   * @param method HTTP method
+   * @param body JSON body to send, if any
+   * @param headers request headers
+   * @return response to the request
+   * @throws RequestFailedException if the request failed in transit
+   * @throws PluginModelException if the request could not be made
+   */
+  public ServiceResponse request(String url, HttpMethod method,
+      Optional<JSONObject> body, Map<String,String> headers) throws PluginModelException {
+    Semaphore permits = acquirePermit(url);
+    try {
+      Invocation.Builder builder = _client.target(url).request();
+      headers.forEach(builder::header);
+      Response response = body.isPresent()
+        ? builder.method(method.name(), Entity.entity(body.get().toString(), MediaType.APPLICATION_JSON))
+        : builder.method(method.name());
+      return new ServiceResponse(response);
+    }
+    catch (ProcessingException e) {
+      throw new RequestFailedException("Unable to make " + method + " request to " + url, e);
+    }
+    catch (IllegalArgumentException e) {
+      throw new PluginModelException("Unable to make " + method + " request to " + url, e);
+    }
+    finally {
+      // the body is read from the returned stream without holding a slot
+      permits.release();
+    }
+  }
+
+  private Semaphore acquirePermit(String url) throws PluginModelException {
+    String host = getHost(url);
+    Semaphore permits = _hostPermits.computeIfAbsent(host,
+        h -> new Semaphore(_settings.getMaxConnectionsPerHost(), true));
+    try {
+      if (!permits.tryAcquire(_settings.getConnectTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+        throw new PluginModelException("Timed out waiting to send a request to " + host +
+            " (" + _settings.getMaxConnectionsPerHost() + " requests already awaiting a response)");
+      }
+      return permits;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PluginModelException("Interrupted while waiting for a connection to " + host, e);
+    }
+  }
+
+  private static String getHost(String url) throws PluginModelException {
+    try {
+      URI uri = URI.create(url);
+      return uri.getHost() + ":" + uri.getPort();
+    }
+    catch (IllegalArgumentException e) {
+      throw new PluginModelException("Invalid service URL: " + url, e);
+    }
+  }
+}
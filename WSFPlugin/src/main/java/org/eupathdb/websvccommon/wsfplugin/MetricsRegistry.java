@@ -0,0 +1,123 @@
+package org.eupathdb.websvccommon.wsfplugin;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory registry of named histograms, for recording how long the phases
+ * of plugin requests take (or how large their results are), and of named
+ * counters, for counting events such as cache hits; both are summarized in
+ * the log.  Histograms use power-of-two buckets, so they take a small, fixed
+ * amount of memory regardless of how many values are recorded, and
+ * percentiles are reported as the upper bound of the bucket they fall in.
+ */
+public class MetricsRegistry {
+
+  private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+  public static MetricsRegistry getInstance() {
+    return INSTANCE;
+  }
+
+  public static class Histogram {
+
+    // bucket i holds values in [2^(i-1), 2^i); bucket 0 holds values < 1
+    private static final int NUM_BUCKETS = 64;
+
+    private final long[] _buckets = new long[NUM_BUCKETS];
+    private long _count = 0;
+    private long _sum = 0;
+    private long _max = 0;
+
+    /**
+     * @param value value to record; negative values are recorded as 0
+     */
+    public synchronized void record(long value) {
+      value = Math.max(0, value);
+      _buckets[NUM_BUCKETS - Long.numberOfLeadingZeros(value)]++;
+      _count++;
+      _sum += value;
+      _max = Math.max(_max, value);
+    }
+
+    public synchronized long getCount() { return _count; }
+    public synchronized long getMax() { return _max; }
+    public synchronized double getMean() { return _count == 0 ? 0 : (double)_sum / _count; }
+
+    /**
+     * @param percentile fraction of values, in (0,1]
+     * @return upper bound of the values at or below the passed percentile
+     */
+    public synchronized long getPercentile(double percentile) {
+      long rank = (long)Math.ceil(percentile * _count);
+      long seen = 0;
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+        seen += _buckets[i];
+        if (seen >= rank && seen > 0) {
+          // report the bucket's upper bound, but never more than the max seen
+          return Math.min(_max, i == 0 ? 0 : (1L << i) - 1);
+        }
+      }
+      return _max;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return "count=" + _count + " mean=" + Math.round(getMean()) + " p50=" + getPercentile(0.5) +
+          " p90=" + getPercentile(0.9) + " p99=" + getPercentile(0.99) + " max=" + _max;
+    }
+  }
+
+  public static class Counter {
+
+    private final AtomicLong _count = new AtomicLong();
+
+    public void increment() { _count.incrementAndGet(); }
+    public long getCount() { return _count.get(); }
+
+    @Override
+    public String toString() {
+      return "count=" + _count.get();
+    }
+  }
+
+  private final Map<String, Histogram> _histograms = new ConcurrentHashMap<>();
+  private final Map<String, Counter> _counters = new ConcurrentHashMap<>();
+
+  private MetricsRegistry() {}
+
+  /**
+   * @param name name of histogram
+   * @return histogram with the passed name, created if necessary
+   */
+  public Histogram histogram(String name) {
+    return _histograms.computeIfAbsent(name, n -> new Histogram());
+  }
+
+  /**
+   * @param name name of counter
+   * @return counter with the passed name, created if necessary
+   */
+  public Counter counter(String name) {
+    return _counters.computeIfAbsent(name, n -> new Counter());
+  }
+
+  /**
+   * @param prefix prefix of histogram and counter names to include
+   * @return summary of the histograms and counters whose names start with the
+   * passed prefix, one per line, in name order
+   */
+  public String getSummary(String prefix) {
+    Map<String, Object> metrics = new TreeMap<>(_histograms);
+    metrics.putAll(_counters);
+    StringBuilder summary = new StringBuilder();
+    metrics.forEach((name, metric) -> {
+      if (name.startsWith(prefix)) {
+        summary.append(name).append(": ").append(metric).append('\n');
+      }
+    });
+    return summary.toString();
+  }
+}
@@ -1,10 +1,13 @@
 package org.eupathdb.websvccommon.wsfplugin.blast;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 import java.util.Map;
 
@@ -12,6 +15,8 @@ import org.apache.log4j.Logger;
 import org.eupathdb.common.model.ProjectMapper;
 import org.eupathdb.common.service.PostValidationUserException;
 import org.eupathdb.websvccommon.wsfplugin.PluginUtilities;
+import org.eupathdb.websvccommon.wsfplugin.blast.QuerySequenceNormalizer.Alphabet;
+import org.eupathdb.websvccommon.wsfplugin.blast.QuerySequenceNormalizer.Statistics;
 import org.gusdb.wdk.model.WdkModel;
 import org.gusdb.wdk.model.WdkModelException;
 import org.gusdb.wdk.model.record.RecordClass;
@@ -44,6 +49,9 @@ public abstract class AbstractBlastPlugin extends AbstractPlugin {
   // field definitions in the config file
   private static final String FILE_CONFIG = "blast-config.xml";
 
+  // defline written to the sequence file if the user did not supply one
+  private static final String DEFAULT_DEFLINE = ">MySeq1";
+
   private static final Logger logger = Logger.getLogger(AbstractBlastPlugin.class);
 
   // ========== member variables ==========
@@ -151,25 +159,22 @@ public abstract class AbstractBlastPlugin extends AbstractPlugin {
     }
   }
 
-  private File getSequenceFile(Map<String, String> params) throws IOException, PluginUserException {
-    // get sequence and save it into the sequence file
-    String sequence = params.get(PARAM_SEQUENCE).trim();
-
-    // may need to filter out certain character sequences; additional sequences should be added as needed
-    sequence = sequence.replaceAll("&#65532;", "");
-
-    // check if the input contains multiple sequences
-    if (sequence.indexOf('>', 1) > -1)
-      throw new PluginUserException("Only one input sequence is allowed");
+  private File getSequenceFile(Map<String, String> params) throws PluginUserException, PluginModelException, IOException {
+    // normalize, validate and write the sequence to the sequence file in a single pass
+    QuerySequenceNormalizer normalizer = new QuerySequenceNormalizer(
+        Alphabet.forAlgorithm(params.get(PARAM_ALGORITHM)), 1);
 
     File seqFile = File.createTempFile(this.getClass().getSimpleName() + "_", ".in", config.getTempDir());
-    PrintWriter out = new PrintWriter(new FileWriter(seqFile));
-    if (!sequence.startsWith(">"))
-      out.println(">MySeq1");
-    out.println(sequence);
-    out.flush();
-    out.close();
-    return seqFile;
+    try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(seqFile), StandardCharsets.UTF_8))) {
+      Statistics stats = normalizer.normalize(params.get(PARAM_SEQUENCE), out, DEFAULT_DEFLINE);
+      logger.info("Wrote query sequence file " + seqFile.getName() + ": " + stats);
+      return seqFile;
+    }
+    catch (PluginUserException | PluginModelException e) {
+      // invalid sequence; do not leave partial file behind
+      seqFile.delete();
+      throw e;
+    }
   }
 
   private void cleanup() {
@@ -1,28 +1,45 @@
 package org.eupathdb.websvccommon.wsfplugin.blast;
 
-import static org.gusdb.fgputil.FormatUtil.NL;
-
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Map;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
-
-import javax.ws.rs.core.Response.Status.Family;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import org.apache.log4j.Logger;
 import org.eupathdb.common.model.MultiBlastServiceUtil;
 import org.eupathdb.common.model.ProjectMapper;
 import org.eupathdb.common.service.PostValidationUserException;
+import org.eupathdb.websvccommon.wsfplugin.CircuitBreaker;
+import org.eupathdb.websvccommon.wsfplugin.ExpiringCache;
+import org.eupathdb.websvccommon.wsfplugin.HttpTransport;
 import org.eupathdb.websvccommon.wsfplugin.PluginUtilities;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastJobJournal.InFlightJob;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastJobTracker.CompletedJob;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastJobTracker.LifecycleListener;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastRequestCoalescer.Flight;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastServiceClient.AuthHeaderRejectedException;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastServiceClient.ReportSizeExceededException;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastServiceClient.ReportUnavailableException;
+import org.eupathdb.websvccommon.wsfplugin.blast.QuerySequenceNormalizer.Statistics;
 import org.gusdb.fgputil.FormatUtil;
-import org.gusdb.fgputil.json.JsonUtil;
-import org.gusdb.fgputil.MapBuilder;
 import org.gusdb.fgputil.Timer;
 import org.gusdb.fgputil.Tuples.TwoTuple;
-import org.gusdb.fgputil.client.ClientUtil;
-import org.gusdb.fgputil.client.CloseableResponse;
-import org.gusdb.fgputil.runtime.ThreadUtil;
-import org.gusdb.fgputil.web.HttpMethod;
 import org.gusdb.wdk.model.Utilities;
 import org.gusdb.wdk.model.WdkModel;
 import org.gusdb.wdk.model.WdkModelException;
@@ -40,15 +57,36 @@ public abstract class AbstractMultiBlastServicePlugin extends AbstractPlugin {
 
   private static final Logger LOG = Logger.getLogger(AbstractMultiBlastServicePlugin.class);
 
-  private static final int INITIAL_WAIT_TIME_MILLIS = 2 /* seconds */ * 1000;
-  private static final int POLLING_INTERVAL_MILLIS = 5 /* seconds */ * 1000;
   private static final int MAX_WAIT_TIME_MILLIS = 5 /* minutes */ * 60 * 1000;
-  private static final int MAX_REPORT_SIZE_BYTES = 90 /* megabytes */ * 1000 * 1000;
 
-  private static final String CONTENT_MAX_LENGTH_EXCEEDED_STATUS =
-    "bad-request";
-  private static final String CONTENT_MAX_LENGTH_EXCEEDED_MESSAGE =
-    "Requested report is larger than the specified max content size.";
+  // maximum number of completed jobs remembered for reuse
+  private static final int MAX_CACHED_JOBS = 1000;
+
+  // completed jobs by request key, which includes the requesting user (only
+  //   the user who created a job may read its reports); lets a user's reruns
+  //   of a step skip straight to the report download until the service
+  //   expires the report
+  private static final ExpiringCache<String, CompletedJob> COMPLETED_JOBS = new ExpiringCache<>(MAX_CACHED_JOBS);
+
+  // maximum number of scattered jobs' reports downloaded at once, across all
+  //   requests; further downloads wait in the queue
+  private static final int REPORT_DOWNLOAD_THREADS = 16;
+
+  // downloads the reports of scattered jobs concurrently; separate from the
+  //   job tracker's I/O threads so long downloads cannot delay status polling
+  private static final ExecutorService REPORT_DOWNLOAD_EXECUTOR = newReportDownloadExecutor();
+
+  private static ExecutorService newReportDownloadExecutor() {
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(REPORT_DOWNLOAD_THREADS, REPORT_DOWNLOAD_THREADS,
+        60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+      Thread thread = new Thread(runnable, "multiblast-report-download-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
 
   // field definitions in the config file
   private static final String FILE_CONFIG = "multiblast-config.xml";
@@ -60,7 +98,25 @@ public abstract class AbstractMultiBlastServicePlugin extends AbstractPlugin {
   }
 
   private final ResultFormatter _resultFormatter;
+  private MultiBlastConfig _config;
+
+  /**
+   * Creates a plugin which formats results from the service's JSON report
+   * (see MultiBlastJsonResultFormatter).
+   */
+  public AbstractMultiBlastServicePlugin() {
+    this(new MultiBlastJsonResultFormatter());
+  }
 
+  /**
+   * Creates a plugin which formats results with the passed formatter, in the
+   * report format the formatter declares.  Formatters customizing result rows
+   * should extend MultiBlastJsonResultFormatter, which streams the JSON
+   * report; those extending NcbiBlastResultFormatter scrape the pairwise text
+   * report, which cannot be streamed by hit or merged across scattered jobs.
+   *
+   * @param resultFormatter formatter of results
+   */
   public AbstractMultiBlastServicePlugin(ResultFormatter resultFormatter) {
     super(FILE_CONFIG);
     _resultFormatter = resultFormatter;
@@ -69,7 +125,19 @@ public abstract class AbstractMultiBlastServicePlugin extends AbstractPlugin {
   @Override
   public void initialize(PluginRequest request) throws PluginModelException {
     super.initialize(request);
-    _resultFormatter.setConfig(new BlastConfig(properties));
+    _config = new MultiBlastConfig(properties);
+    _resultFormatter.setConfig(_config);
+    LOG.info(getClass().getSimpleName() + " formats results from multi-blast \"" +
+        _resultFormatter.getReportFormat() + "\" reports using " + _resultFormatter.getClass().getSimpleName());
+    if (_config.getScatterMaxJobs() > 1 && !isScatterSupported()) {
+      LOG.warn(MultiBlastConfig.FIELD_SCATTER_MAX_JOBS + " is ignored by " + getClass().getSimpleName() +
+          "; only reports in the \"" + MultiBlastJsonResultFormatter.REPORT_FORMAT + "\" format can be merged");
+    }
+  }
+
+  // scattered jobs' reports must be merged, which is only possible for JSON reports
+  private boolean isScatterSupported() {
+    return _resultFormatter.getReportFormat().equals(MultiBlastJsonResultFormatter.REPORT_FORMAT);
   }
 
   @Override
@@ -84,13 +152,19 @@ public abstract class AbstractMultiBlastServicePlugin extends AbstractPlugin {
 
   @Override
   public void validateParameters(PluginRequest request) throws PluginModelException, PluginUserException {
-    // WDK handles most validation; simply confirm single submitted sequence
-    String sequence = request.getParams().get(MultiBlastServiceParams.BLAST_QUERY_SEQUENCE_PARAM_NAME);
-    int firstIndex = sequence.indexOf('>');
-    if (firstIndex != -1 && sequence.indexOf('>', firstIndex + 1) != -1) {
-      // more than one sequence
-      throw new PluginUserException("Only one sequence can be submitted at a time (should have been validated by StringParam regex).");
+    // WDK handles most validation; confirm a supported tool, a valid organism
+    //   selection and a single, well-formed submitted sequence before any
+    //   service call is made
+    MultiBlastJobConfig jobConfig = MultiBlastJobConfig.parse(request.getParams());
+    Optional<Statistics> queryStatistics = jobConfig.getQueryStatistics();
+    if (queryStatistics.isEmpty()) {
+      throw new PluginUserException(jobConfig.getQueryError().orElse("Invalid query sequence."));
+    }
+    Statistics stats = queryStatistics.get();
+    if (stats.getRecordCount() > 1) {
+      throw new PluginUserException("Only one input sequence is allowed");
     }
+    LOG.info("Validated " + jobConfig.getTool() + " query sequence: " + stats);
   }
 
   @Override
@@ -110,7 +184,8 @@ public abstract class AbstractMultiBlastServicePlugin extends AbstractPlugin {
     }
 
     // get the required authentication header for this user
-    TwoTuple<String,String> authHeader = getAuthHeader(wdkModel, request.getContext());
+    long userId = Long.parseLong(request.getContext().get(Utilities.QUERY_CTX_USER));
+    TwoTuple<String,String> authHeader = getAuthHeader(wdkModel, userId);
 
     // find base URL for multi-blast service
     String multiBlastServiceUrl = MultiBlastServiceUtil.getMultiBlastServiceUrl(
@@ -120,330 +195,307 @@ public abstract class AbstractMultiBlastServicePlugin extends AbstractPlugin {
     String projectId = wdkModel.getProjectId();
 
     // use passed params to POST new job request to blast service
-    JSONObject newJobRequestJson = new JSONObject()
-      .put("site", projectId)
-      .put("maxResultSize", 0)
-      .put("maxSequences", 1)
-      .put("isPrimary", false)
-      .put("config", MultiBlastServiceParams.buildNewJobRequestConfigJson(request.getParams()))
-      .put("targets", MultiBlastServiceParams.buildNewJobRequestTargetJson(request.getParams()));
+    MultiBlastJobConfig jobConfig = MultiBlastServiceParams.buildJobConfig(request.getParams());
 
-    String jobId = createJob(newJobRequestJson, multiBlastServiceUrl, authHeader);
+    MultiBlastServiceClient client = new MultiBlastServiceClient(multiBlastServiceUrl, authHeader,
+        HttpTransport.getInstance(_config.getHttpSettings()),
+        CircuitBreaker.getInstance(multiBlastServiceUrl, _config.getCircuitBreakerSettings()),
+        _config.getHedgeStatusPercentile());
 
     // start timer on wait time
     Timer t = new Timer();
-    
-    // wait a short interval for blast service to look job up in cache and assign complete status
-    ThreadUtil.sleep(INITIAL_WAIT_TIME_MILLIS);
-
-    // keep going until job complete or max wait time expired
-    while (true) {
-
-      // query the job status (if results in cache, should return complete immediately)
-      if (isJobComplete(multiBlastServiceUrl, jobId, authHeader)) {
-        break;
-      }
-
-      // if max wait time reached, throw delayed result exception
-      if (t.getElapsed() > (MAX_WAIT_TIME_MILLIS)) {
-        throw new DelayedResultException();
-      }
-
-      // sleep until ready to poll again
-      ThreadUtil.sleep(POLLING_INTERVAL_MILLIS);
-    }
-
-    // create a new "pairwise" report for this job
-    JSONObject newReportRequestJson = new JSONObject()
-      .put("jobID", jobId)
-      .put("format", "pairwise");
-
-    String reportId = createReport(newReportRequestJson, multiBlastServiceUrl, authHeader);
-
-    // keep going until report complete or max wait time expired
-    while (true) {
-
-      // query the report status (if results in cache, should return complete immediately)
-      if (isReportComplete(multiBlastServiceUrl, reportId, authHeader)) {
-        break;
-      }
-
-      // if max wait time reached, throw delayed result exception
-      if (t.getElapsed() > (MAX_WAIT_TIME_MILLIS)) {
-        throw new DelayedResultException();
-      }
-
-      // sleep until ready to poll again
-      ThreadUtil.sleep(POLLING_INTERVAL_MILLIS);
-    }
-
-    // job and report complete; gather remaining prerequisites
+    MultiBlastRequestTimings timings = new MultiBlastRequestTimings();
+    timings.queryParsed(jobConfig.getQueryStatistics());
+
+    // if configured, searches over many organisms are split into several
+    //   smaller jobs run concurrently, whose reports are merged before formatting
+    String reportFormat = _resultFormatter.getReportFormat();
+    List<MultiBlastJobConfig> subJobConfigs = isScatterSupported()
+      ? MultiBlastReportMerger.scatter(jobConfig, _config.getScatterMaxJobs(), _config.getScatterMinTargetsPerJob())
+      : List.of(jobConfig);
+    MultiBlastJobJournal journal = MultiBlastJobJournal.getInstance(_config.getJobJournalFile(projectId));
+
+    // gather remaining prerequisites for writing results
     RecordClass recordClass = PluginUtilities.getRecordClass(request);
     String dbType = request.getParams().get(MultiBlastServiceParams.BLAST_DATABASE_TYPE_PARAM_NAME);
     String[] orderedColumns = request.getOrderedColumns();
 
-    // write results to plugin response
-    writeResults(multiBlastServiceUrl, reportId, authHeader, response, wdkModel, recordClass, dbType, orderedColumns);
-
-    return 0;
-  }
-
-  private TwoTuple<String, String> getAuthHeader(WdkModel wdkModel, Map<String, String> requestContext) {
-    try {
-      User user = wdkModel.getUserFactory().getUserById(
-          Long.parseLong(requestContext.get(Utilities.QUERY_CTX_USER))).orElseThrow();
-      return MultiBlastServiceUtil.getAuthHeader(wdkModel, user);
-    }
-    catch(WdkModelException e) {
-      throw new RuntimeException(e);
-    }
-  }
-
-  private void writeResults(String multiBlastServiceUrl, String reportId, TwoTuple<String,String> authHeader,
-      PluginResponse response, WdkModel wdkModel, RecordClass recordClass,
-      String dbType, String[] orderedColumns) throws PluginModelException, PluginUserException {
-
-    // define request data
-    String downloadReportUrl = multiBlastServiceUrl + "/reports/" + reportId + "/files/report.txt?download=false";
-
-    LOG.info("Requesting multi-blast report results at " + downloadReportUrl);
-
-    TwoTuple<String,String> contentMaxLengthHeader =
-      new TwoTuple<String, String>("Content-Max-Length", String.valueOf(MAX_REPORT_SIZE_BYTES));
-
-    Map<String,String> headers = new MapBuilder<String,String>(authHeader)
-      .put(contentMaxLengthHeader)
-      .toMap();
-
-    // make job report request
-    try (CloseableResponse downloadReportResponse = ClientUtil.makeRequest(
-        downloadReportUrl, HttpMethod.GET, Optional.empty(), headers)) {
-
-      if (downloadReportResponse.getStatus() != 200) {
-        // error occurred; read entire body for error message
-        String responseBody = ClientUtil.readSmallResponseBody(downloadReportResponse);
-
-        JSONObject responseJson = new JSONObject(responseBody);
-
-        if (
-          JsonUtil.getStringOrDefault(responseJson, "status", "").equals(CONTENT_MAX_LENGTH_EXCEEDED_STATUS) &&
-          JsonUtil.getStringOrDefault(responseJson, "message", "").equals(CONTENT_MAX_LENGTH_EXCEEDED_MESSAGE)
-        ) {
-          throw new BlastServiceBadRequestException(
-            "We're sorry, but we cannot handle BLAST results larger than " +
-            MAX_REPORT_SIZE_BYTES/1000000 + "MB. \nIf you see the option to download your result, you may do so. \nTo reduce the result size, you " +
-            "could decrease V=B or the Expectation value, turn on the Low " +
-            "Complexity filter, or decrease the number of target organisms selected.");
+    // a report may expire between creation and download (most likely for a
+    //   reused job); if so, forget it and run the full flow once more
+    for (boolean isRetry = false; ; isRetry = true) {
+      List<Flight> flights = new ArrayList<>();
+      try {
+        for (MultiBlastJobConfig subJobConfig : subJobConfigs) {
+          flights.add(joinFlight(client, subJobConfig, projectId, userId, reportFormat, journal));
         }
 
-        throw new PluginModelException("Unexpected response from multi-blast " +
-            "service while fetching report results (reportId=" + reportId + "): " +
-            downloadReportResponse.getStatus() + FormatUtil.NL + responseBody);
+        // wait until all jobs and reports complete or max wait time expired
+        List<CompletedJob> jobs = new ArrayList<>();
+        for (Flight flight : flights) {
+          jobs.add(waitForCompletion(t, flight.getJob()));
+        }
+        timings.jobsCompleted(jobs);
+
+        try {
+          // write results to plugin response
+          writeResults(t, flights, jobs, client, jobConfig, response, wdkModel, recordClass, dbType, orderedColumns, timings);
+          timings.record();
+          LOG.info(timings.getSummary());
+          return 0;
+        }
+        catch (ReportUnavailableException e) {
+          if (isRetry) throw e;
+          LOG.info("Report of a multi-blast job is no longer available; rerunning request: " + e.getMessage());
+        }
       }
-
-      // request appears to be successful; read, parse and write result stream data into plugin response
-      try (InputStream resultStream = (InputStream)downloadReportResponse.getEntity()) {
-        String message = _resultFormatter.formatResult(response, orderedColumns, resultStream, recordClass, dbType, wdkModel);
-        response.setMessage(message);
+      catch (AuthHeaderRejectedException e) {
+        // the cached header may be out of date; look it up again next time
+        AuthHeaderCache.getInstance().invalidate(userId);
+        throw e;
+      }
+      finally {
+        flights.forEach(Flight::close);
       }
-    }
-    catch (IOException e) {
-      throw new PluginModelException("Unable to read response body from service response.", e);
     }
   }
 
   /**
-   * Makes a request to the multi-blast service to check the status of the job
-   * with the passed ID.  Returns whether job is complete or still running. If
-   * job status is "errored", throws a PluginModelException with the description.
-   *
-   * NOTE: If the job if found to be "expired", it will be rerun
+   * Joins the flight for the passed job request.  A completed job the same
+   * user ran with identical content is reused if we know of one; otherwise
+   * the flight joins any identical in-flight request of that user, resumes a job started by an earlier
+   * attempt at this request, or starts a new job.  The shared tracker creates
+   * the job, polls it (quickly at first so jobs the blast service finds in its
+   * cache return promptly), then creates and polls a report in the format our
+   * formatter reads.
    *
-   * @param multiBlastServiceUrl blast service base URL
-   * @param jobId job whose status to fetch
-   * @return true if job is complete, else false (if still running)
-   * @throws PluginModelException if job has errored
+   * @return joined flight; caller must close
    */
-  private static boolean isJobComplete(String multiBlastServiceUrl, String jobId, TwoTuple<String,String> authHeader) throws PluginModelException {
-    String jobIdEndpointUrl = multiBlastServiceUrl + "/jobs/" + jobId;
-    LOG.info("Requesting multi-blast job status at " + jobIdEndpointUrl);
-
-    // make job status request
-    try (CloseableResponse jobStatusResponse = ClientUtil.makeRequest(
-        jobIdEndpointUrl, HttpMethod.GET, Optional.empty(), new MapBuilder<String,String>(authHeader).toMap())) {
-  
-      String responseBody = ClientUtil.readSmallResponseBody(jobStatusResponse);
-      if (jobStatusResponse.getStatus() != 200) {
-        throw new PluginModelException("Unexpected response from multi-blast " +
-            "service while checking job status (jobId=" + jobId + "): " +
-            jobStatusResponse.getStatus() + FormatUtil.NL + responseBody);
-      }
-  
-      // parse response and analyze
-      JSONObject responseObj = new JSONObject(responseBody);
-      switch(responseObj.getString("status")) {
-        case "queued":
-        case "in-progress":
-          return false;
-        case "expired":
-          rerunJob(multiBlastServiceUrl, jobId, authHeader);
-          return false;
-        case "completed":
-          return true;
-        case "errored":
-          throw new PluginModelException(
-            "Multi-blast service job failed: " + responseObj.getString("description"));
-        default:
-          throw new PluginModelException(
-            "Multi-blast service job status endpoint returned unrecognized status value: " + responseObj.getString("status"));
+  private Flight joinFlight(MultiBlastServiceClient client, MultiBlastJobConfig jobConfig,
+      String projectId, long userId, String reportFormat, MultiBlastJobJournal journal) {
+    // jobs are only visible to the user who created them, so are never shared
+    //   between users; the client authenticates as the same user
+    String requestKey = jobConfig.getRequestKey(projectId, userId, reportFormat);
+    JSONObject jobRequestJson = jobConfig.toNewJobRequestJson(projectId);
+    Supplier<CompletableFuture<CompletedJob>> lifecycleStarter = () -> {
+      Optional<CompletedJob> completedJob = COMPLETED_JOBS.get(requestKey);
+      if (completedJob.isPresent()) {
+        LOG.info("Reusing completed multi-blast job " + completedJob.get() + " of user " + userId +
+            " for request " + requestKey);
+        // this request spent no time in the reused job's phases
+        return CompletableFuture.completedFuture(
+            new CompletedJob(completedJob.get().getJobId(), completedJob.get().getReportId()));
       }
-    }
-    catch (IOException e) {
-      throw new PluginModelException("Unable to read response body from service response.", e);
-    }
+      Optional<InFlightJob> inFlightJob = journal.get(requestKey);
+      CompletableFuture<CompletedJob> lifecycle = MultiBlastJobTracker.getInstance().runJob(
+          client, jobRequestJson, reportFormat, _config.getPollingPolicy(),
+          inFlightJob.map(InFlightJob::getJobId), inFlightJob.flatMap(InFlightJob::getReportId),
+          new LifecycleListener() {
+            @Override
+            public void jobCreated(String jobId) {
+              journal.record(requestKey, jobId, Optional.empty());
+            }
+            @Override
+            public void reportCreated(CompletedJob job) {
+              journal.record(requestKey, job.getJobId(), Optional.of(job.getReportId()));
+            }
+          });
+      // the returned lifecycle must be the tracker's own future so cancelling it
+      //   stops polling; a cancelled lifecycle stays journaled for later resumption
+      lifecycle.whenComplete((job, exception) -> {
+        if (exception == null) {
+          MultiBlastRequestTimings.recordLifecycle(job);
+          COMPLETED_JOBS.put(requestKey, job, _config.getJobCacheTtlSeconds() * 1000);
+        }
+        if (!(exception instanceof CancellationException)) {
+          journal.remove(requestKey);
+        }
+      });
+      return lifecycle;
+    };
+    return MultiBlastRequestCoalescer.getInstance().join(
+        requestKey, lifecycleStarter, _config.getAbandonedJobTimeoutSeconds() * 1000);
   }
 
   /**
-   * Makes a request to the multi-blast service to check the status of the report
-   * with the passed ID.  Returns whether report is complete or still running. If
-   * report status is "errored", throws a PluginModelException with the description.
-   *
-   * NOTE: If the report if found to be "expired", it will be rerun
+   * Waits for the passed job lifecycle to complete.  The calling thread does
+   * no polling itself; it is released by the tracker's threads.  If
+   * this request gives up waiting, the lifecycle keeps running so that WDK's
+   * retry of the request can pick it up where it left off.
    *
-   * @param multiBlastServiceUrl blast service base URL
-   * @param reportId report whose status to fetch
-   * @return true if report is complete, else false (if still running)
-   * @throws PluginModelException if report has errored
+   * @param t timer started when the request began waiting
+   * @param completion future returned by the job tracker
+   * @return result of the completed lifecycle
+   * @throws PluginModelException if a status check fails
+   * @throws DelayedResultException if max wait time passes before completion
    */
-  private static boolean isReportComplete(String multiBlastServiceUrl, String reportId, TwoTuple<String,String> authHeader) throws PluginModelException {
-    String reportIdEndpointUrl = multiBlastServiceUrl + "/reports/" + reportId;
-    LOG.info("Requesting multi-blast report status at " + reportIdEndpointUrl);
-
-    // make job status request
-    try (CloseableResponse reportStatusResponse = ClientUtil.makeRequest(
-        reportIdEndpointUrl, HttpMethod.GET, Optional.empty(), new MapBuilder<String,String>(authHeader).toMap())) {
-
-      String responseBody = ClientUtil.readSmallResponseBody(reportStatusResponse);
-      if (reportStatusResponse.getStatus() != 200) {
-        throw new PluginModelException("Unexpected response from multi-blast " +
-            "service while checking report status (reportId=" + reportId + "): " +
-            reportStatusResponse.getStatus() + FormatUtil.NL + responseBody);
-      }
-
-      // parse response and analyze
-      JSONObject responseObj = new JSONObject(responseBody);
-      switch(responseObj.getString("status")) {
-        case "queued":
-        case "in-progress":
-          return false;
-        case "expired":
-          rerunReport(multiBlastServiceUrl, reportId, authHeader);
-          return false;
-        case "completed":
-          return true;
-        case "errored":
-          throw new PluginModelException(
-            "Multi-blast service report failed: " + responseObj.getString("description"));
-        default:
-          throw new PluginModelException(
-            "Multi-blast service report status endpoint returned unrecognized status value: " + responseObj.getString("status"));
-      }
+  private static <T> T waitForCompletion(Timer t, CompletableFuture<T> completion)
+      throws PluginModelException, DelayedResultException {
+    try {
+      return completion.get(Math.max(0, MAX_WAIT_TIME_MILLIS - t.getElapsed()), TimeUnit.MILLISECONDS);
     }
-    catch (IOException e) {
-      throw new PluginModelException("Unable to read response body from service response.", e);
+    catch (TimeoutException e) {
+      // max wait time reached; throw delayed result exception
+      throw new DelayedResultException();
+    }
+    catch (CancellationException e) {
+      throw new PluginModelException("Multi-blast request was abandoned", e);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PluginModelException("Interrupted while waiting for multi-blast service", e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof PluginModelException) throw (PluginModelException)cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      throw new PluginModelException(cause);
     }
   }
 
-  private static String createJob(JSONObject newJobRequestBody, String multiBlastServiceUrl, TwoTuple<String,String> authHeader) throws PluginModelException {
-    String jobsEndpointUrl = multiBlastServiceUrl + "/jobs";
-    LOG.info("Requesting new multi-blast job at " + jobsEndpointUrl + " with JSON body: " + newJobRequestBody.toString(2));
-
-    // make new job request
-    try (CloseableResponse newJobResponse = ClientUtil.makeRequest(
-        jobsEndpointUrl, HttpMethod.POST, Optional.of(newJobRequestBody), new MapBuilder<String,String>(authHeader).toMap())) {
+  private TwoTuple<String, String> getAuthHeader(WdkModel wdkModel, long userId) {
+    try {
+      return AuthHeaderCache.getInstance().get(userId, _config.getAuthHeaderCacheTtlSeconds() * 1000, id -> {
+        User user = wdkModel.getUserFactory().getUserById(id).orElseThrow();
+        return MultiBlastServiceUtil.getAuthHeader(wdkModel, user);
+      });
+    }
+    catch(WdkModelException e) {
+      throw new RuntimeException(e);
+    }
+  }
 
-      String responseBody = ClientUtil.readSmallResponseBody(newJobResponse);
+  private void writeResults(Timer t, List<Flight> flights, List<CompletedJob> jobs, MultiBlastServiceClient client,
+      MultiBlastJobConfig jobConfig, PluginResponse response, WdkModel wdkModel, RecordClass recordClass,
+      String dbType, String[] orderedColumns, MultiBlastRequestTimings timings)
+      throws PluginModelException, PluginUserException {
 
-      if (newJobResponse.getStatus() == 200) {
-        // success!  return job ID
-        return new JSONObject(responseBody).getString("jobId");
+    if (flights.size() == 1) {
+      // read, parse and write result stream data into plugin response as it
+      //   arrives; the report is downloaded once for all requests sharing this flight
+      try (InputStream resultStream = timings.timeReads(openReport(t, flights.get(0), jobs.get(0), client))) {
+        formatResult(resultStream, response, wdkModel, recordClass, dbType, orderedColumns, timings);
       }
-
-      if (Family.CLIENT_ERROR.equals(newJobResponse.getStatusInfo().getFamily())) {
-        // error implying bad parameters
-        throw new BlastServiceBadRequestException(
-            "Multi-Blast service job request returned " + newJobResponse.getStatus() + NL + responseBody);
+      catch (IOException e) {
+        throw new PluginModelException("Unable to read response body from service response.", e);
       }
+      return;
+    }
 
-      // other error
-      throw new PluginModelException("Unexpected response from multi-blast " +
-          "service while requesting new job: " + newJobResponse.getStatus() + NL + responseBody);
+    // download the sub-jobs' reports concurrently, then merge them into one report
+    List<Path> reportFiles = new ArrayList<>();
+    try {
+      List<Future<Void>> downloads = new ArrayList<>();
+      for (int i = 0; i < flights.size(); i++) {
+        Path reportFile = Files.createTempFile("multiblast-subreport-", ".json");
+        reportFiles.add(reportFile);
+        Flight flight = flights.get(i);
+        CompletedJob job = jobs.get(i);
+        downloads.add(REPORT_DOWNLOAD_EXECUTOR.submit(() -> {
+          try (InputStream in = timings.timeReads(openReport(t, flight, job, client))) {
+            Files.copy(in, reportFile, StandardCopyOption.REPLACE_EXISTING);
+          }
+          return null;
+        }));
+      }
+      awaitDownloads(downloads);
+      Path mergedFile = Files.createTempFile("multiblast-merged-", ".json");
+      reportFiles.add(mergedFile);
+      long mergeStart = System.currentTimeMillis();
+      try (OutputStream out = Files.newOutputStream(mergedFile)) {
+        MultiBlastReportMerger.merge(reportFiles.subList(0, flights.size()),
+            jobConfig.getEValue(), jobConfig.getMaxTargetSeqs(), out);
+      }
+      timings.mergeCompleted(System.currentTimeMillis() - mergeStart);
+      try (InputStream resultStream = Files.newInputStream(mergedFile)) {
+        formatResult(resultStream, response, wdkModel, recordClass, dbType, orderedColumns, timings);
+      }
+    }
+    catch (ReportSizeExceededException e) {
+      throw new BlastServiceBadRequestException(MultiBlastServiceClient.REPORT_TOO_LARGE_MESSAGE);
     }
     catch (IOException e) {
-      throw new PluginModelException("Unable to read response body from service response.", e);
+      throw new PluginModelException("Unable to merge multi-blast sub-job reports.", e);
+    }
+    finally {
+      for (Path reportFile : reportFiles) {
+        try {
+          Files.deleteIfExists(reportFile);
+        }
+        catch (IOException e) {
+          LOG.warn("Unable to delete multi-blast report file " + reportFile, e);
+        }
+      }
     }
   }
 
-  private static String createReport(JSONObject newReportRequestBody, String multiBlastServiceUrl, TwoTuple<String,String> authHeader) throws PluginModelException {
-    String reportsEndpointUrl = multiBlastServiceUrl + "/reports";
-    LOG.info("Requesting new multi-blast report at " + reportsEndpointUrl + " with JSON body: " + newReportRequestBody.toString(2));
-
-    // make new report request
-    try (CloseableResponse newReportResponse = ClientUtil.makeRequest(
-        reportsEndpointUrl, HttpMethod.POST, Optional.of(newReportRequestBody), new MapBuilder<String,String>(authHeader).toMap())) {
-
-      String responseBody = ClientUtil.readSmallResponseBody(newReportResponse);
-
-      if (newReportResponse.getStatus() == 200) {
-        // success!  return report ID
-        return new JSONObject(responseBody).getString("reportID");
+  // waits for all downloads to finish, so none is still writing when the files
+  //   are deleted, then throws the first failure, if any
+  private static void awaitDownloads(List<Future<Void>> downloads) throws PluginModelException, IOException {
+    Throwable failure = null;
+    boolean interrupted = false;
+    for (Future<Void> download : downloads) {
+      while (true) {
+        try {
+          download.get();
+          break;
+        }
+        catch (ExecutionException e) {
+          if (failure == null) failure = e.getCause();
+          break;
+        }
+        catch (InterruptedException e) {
+          interrupted = true;
+        }
       }
-
-      throw new PluginModelException("Unexpected response from multi-blast " +
-          "service while requesting new report: " + newReportResponse.getStatus() + NL + responseBody);
     }
-    catch (IOException e) {
-      throw new PluginModelException("Unable to read response body from service response.", e);
+    if (interrupted) {
+      Thread.currentThread().interrupt();
     }
+    if (failure == null) return;
+    if (failure instanceof PluginModelException) throw (PluginModelException)failure;
+    if (failure instanceof IOException) throw (IOException)failure;
+    if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+    throw new PluginModelException("Unable to download multi-blast sub-job report", failure);
   }
 
-  private static void rerunJob(String multiBlastServiceUrl, String jobId, TwoTuple<String,String> authHeader) throws PluginModelException {
-    String jobsIdEndpointUrl = multiBlastServiceUrl + "/jobs/" + jobId;
-    LOG.info("Rerunning expired multi-blast job at " + jobsIdEndpointUrl + " with job id " + jobId);
-
-    // make rerun job request
-    try (CloseableResponse rerunJobResponse = ClientUtil.makeRequest(
-        jobsIdEndpointUrl, HttpMethod.POST, Optional.of(new JSONObject()), new MapBuilder<String,String>(authHeader).toMap())) {
-
-      String responseBody = ClientUtil.readSmallResponseBody(rerunJobResponse);
-
-      if (!rerunJobResponse.getStatusInfo().getFamily().equals(Family.SUCCESSFUL)) {
-        throw new PluginModelException("Unexpected response from multi-blast " +
-            "service while rerunning job: " + rerunJobResponse.getStatus() + NL + responseBody);
-      }
+  private InputStream openReport(Timer t, Flight flight, CompletedJob job, MultiBlastServiceClient client)
+      throws PluginModelException {
+    try {
+      // wait for another request's download of the report no longer than this
+      //   request would have waited for the job itself
+      return flight.openReport(() -> client.openReport(job.getReportId(), _resultFormatter.getReportFileName()),
+          Math.max(0, MAX_WAIT_TIME_MILLIS - t.getElapsed()));
     }
-    catch (IOException e) {
-      throw new PluginModelException("Unable to read response body from service response.", e);
+    catch (ReportUnavailableException e) {
+      // forget the expired report so a rerun starts a new lifecycle
+      COMPLETED_JOBS.invalidate(flight.getKey(), job);
+      flight.markStale();
+      throw e;
     }
   }
 
-  private static void rerunReport(String multiBlastServiceUrl, String reportId, TwoTuple<String,String> authHeader) throws PluginModelException {
-    String reportsIdEndpointUrl = multiBlastServiceUrl + "/reports/" + reportId;
-    LOG.info("Rerunning expired multi-blast report at " + reportsIdEndpointUrl + " with report id " + reportId);
-
-    // make rerun report request
-    try (CloseableResponse rerunReportResponse = ClientUtil.makeRequest(
-        reportsIdEndpointUrl, HttpMethod.POST, Optional.of(new JSONObject()), new MapBuilder<String,String>(authHeader).toMap())) {
-
-      String responseBody = ClientUtil.readSmallResponseBody(rerunReportResponse);
-
-      if (!rerunReportResponse.getStatusInfo().getFamily().equals(Family.SUCCESSFUL)) {
-        throw new PluginModelException("Unexpected response from multi-blast " +
-            "service while rerunning report: " + rerunReportResponse.getStatus() + NL + responseBody);
+  private void formatResult(InputStream resultStream, PluginResponse response, WdkModel wdkModel,
+      RecordClass recordClass, String dbType, String[] orderedColumns, MultiBlastRequestTimings timings)
+      throws PluginModelException, PluginUserException {
+    try {
+      timings.formatStarted();
+      String message = _resultFormatter.formatResult(timings.countRows(response),
+          orderedColumns, resultStream, recordClass, dbType, wdkModel);
+      timings.formatCompleted();
+      if (LOG.isDebugEnabled()) {
+        // lets developers see where a slow request spent its time
+        message = (message == null ? "" : message + FormatUtil.NL) + timings.getSummary();
       }
+      response.setMessage(message);
     }
-    catch (IOException e) {
-      throw new PluginModelException("Unable to read response body from service response.", e);
+    catch (PluginModelException e) {
+      // formatters wrap read errors; surface an oversized report as a user error
+      for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+        if (cause instanceof ReportSizeExceededException) {
+          throw new BlastServiceBadRequestException(MultiBlastServiceClient.REPORT_TOO_LARGE_MESSAGE);
+        }
+      }
+      throw e;
     }
   }
 }
@@ -0,0 +1,73 @@
+package org.eupathdb.websvccommon.wsfplugin.blast;
+
+import org.apache.log4j.Logger;
+import org.eupathdb.websvccommon.wsfplugin.ExpiringCache;
+import org.eupathdb.websvccommon.wsfplugin.MetricsRegistry;
+import org.gusdb.fgputil.Tuples.TwoTuple;
+import org.gusdb.wdk.model.WdkModelException;
+
+/**
+ * Remembers the multi-blast authentication header of recent users so that
+ * looking it up does not cost a user database query on every request.
+ * Headers expire after a configured time, and a header the service rejects
+ * must be invalidated so the next request looks it up again.  Hits and
+ * misses are counted in the MetricsRegistry, and reported with the other
+ * multi-blast metrics.
+ */
+public class AuthHeaderCache {
+
+  private static final Logger LOG = Logger.getLogger(AuthHeaderCache.class);
+
+  // maximum number of users whose headers are remembered
+  private static final int MAX_USERS = 10000;
+
+  private static final String HIT_METRIC = "multiblast.authHeaderHits";
+  private static final String MISS_METRIC = "multiblast.authHeaderMisses";
+
+  private static final AuthHeaderCache INSTANCE = new AuthHeaderCache();
+
+  public static AuthHeaderCache getInstance() {
+    return INSTANCE;
+  }
+
+  @FunctionalInterface
+  public interface HeaderLoader {
+    TwoTuple<String,String> load(long userId) throws WdkModelException;
+  }
+
+  private final ExpiringCache<Long, TwoTuple<String,String>> _headers = new ExpiringCache<>(MAX_USERS);
+
+  private AuthHeaderCache() {}
+
+  /**
+   * @param userId ID of user whose header is requested
+   * @param timeToLiveMillis time a newly loaded header is remembered; a
+   * non-positive value disables caching
+   * @param loader looks up the header if it is not cached
+   * @return authentication header of the passed user
+   * @throws WdkModelException if unable to look up the header
+   */
+  public TwoTuple<String,String> get(long userId, long timeToLiveMillis, HeaderLoader loader)
+      throws WdkModelException {
+    TwoTuple<String,String> header = _headers.get(userId).orElse(null);
+    if (header == null) {
+      MetricsRegistry.getInstance().counter(MISS_METRIC).increment();
+      header = loader.load(userId);
+      _headers.put(userId, header, timeToLiveMillis);
+    }
+    else {
+      MetricsRegistry.getInstance().counter(HIT_METRIC).increment();
+    }
+    return header;
+  }
+
+  /**
+   * Forgets the header of the passed user, e.g. because the service rejected it.
+   *
+   * @param userId ID of user whose header should be forgotten
+   */
+  public void invalidate(long userId) {
+    LOG.info("Invalidating cached multi-blast auth header of user " + userId);
+    _headers.invalidate(userId);
+  }
+}
@@ -0,0 +1,193 @@
+package org.eupathdb.websvccommon.wsfplugin.blast;
+
+import java.io.InputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Pull-style reader over a JSON stream, built on org.json's JSONTokener.  The
+ * caller walks the document one name or value at a time, so arbitrarily large
+ * documents can be processed while only the current value is held in memory.
+ * Values the caller does not need can be skipped without being materialized.
+ *
+ * Separating commas are consumed after each value; the reader does not
+ * validate that they are present.
+ */
+class JsonStreamReader {
+
+  private final JSONTokener _tokener;
+
+  public JsonStreamReader(InputStream in) {
+    _tokener = new JSONTokener(in);
+  }
+
+  public void beginObject() throws JSONException {
+    expect('{');
+  }
+
+  public void endObject() throws JSONException {
+    expect('}');
+    afterValue();
+  }
+
+  public void beginArray() throws JSONException {
+    expect('[');
+  }
+
+  public void endArray() throws JSONException {
+    expect(']');
+    afterValue();
+  }
+
+  /**
+   * @return true if the current object or array has another member
+   */
+  public boolean hasNext() throws JSONException {
+    char c = peek();
+    return c != '}' && c != ']' && c != 0;
+  }
+
+  /**
+   * @return name of the next member of the current object
+   */
+  public String nextName() throws JSONException {
+    expect('"');
+    String name = _tokener.nextString('"');
+    expect(':');
+    return name;
+  }
+
+  public String nextString() throws JSONException {
+    expect('"');
+    String value = _tokener.nextString('"');
+    afterValue();
+    return value;
+  }
+
+  public double nextDouble() throws JSONException {
+    String literal = nextLiteral();
+    try {
+      return Double.parseDouble(literal);
+    }
+    catch (NumberFormatException e) {
+      throw _tokener.syntaxError("Expected number but found '" + literal + "'");
+    }
+  }
+
+  public long nextLong() throws JSONException {
+    return (long)nextDouble();
+  }
+
+  /**
+   * Reads the next value, of any type, into memory.  Only suitable for small
+   * values.
+   *
+   * @return next value (JSONObject, JSONArray, String, Number, Boolean or
+   * JSONObject.NULL)
+   */
+  public Object nextValue() throws JSONException {
+    Object value = _tokener.nextValue();
+    afterValue();
+    return value;
+  }
+
+  /**
+   * Reads the next value, which must be an object, into memory.
+   *
+   * @return next object
+   */
+  public JSONObject nextObject() throws JSONException {
+    Object value = nextValue();
+    if (!(value instanceof JSONObject)) {
+      throw _tokener.syntaxError("Expected an object");
+    }
+    return (JSONObject)value;
+  }
+
+  /**
+   * Skips the next value, of any type, without building it.
+   */
+  public void skipValue() throws JSONException {
+    char c = _tokener.nextClean();
+    switch (c) {
+      case '"':
+        skipString();
+        break;
+      case '{':
+      case '[':
+        skipContainer();
+        break;
+      default:
+        _tokener.back();
+        nextLiteral();
+        return;
+    }
+    afterValue();
+  }
+
+  private void skipContainer() throws JSONException {
+    int depth = 1;
+    while (depth > 0) {
+      char c = _tokener.next();
+      switch (c) {
+        case '"': skipString(); break;
+        case '{': case '[': depth++; break;
+        case '}': case ']': depth--; break;
+        case 0: throw _tokener.syntaxError("Unterminated object or array");
+        default: // other characters need no handling
+      }
+    }
+  }
+
+  private void skipString() throws JSONException {
+    while (true) {
+      char c = _tokener.next();
+      switch (c) {
+        case '"': return;
+        case '\\': _tokener.next(); break;
+        case 0: throw _tokener.syntaxError("Unterminated string");
+        default: // part of string
+      }
+    }
+  }
+
+  private String nextLiteral() throws JSONException {
+    StringBuilder literal = new StringBuilder();
+    char c = _tokener.nextClean();
+    while (c != 0 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+      literal.append(c);
+      c = _tokener.next();
+    }
+    _tokener.back();
+    afterValue();
+    if (literal.length() == 0) {
+      throw _tokener.syntaxError("Expected a value");
+    }
+    return literal.toString();
+  }
+
+  private char peek() throws JSONException {
+    char c = _tokener.nextClean();
+    if (c != 0) {
+      _tokener.back();
+    }
+    return c;
+  }
+
+  private void afterValue() throws JSONException {
+    char c = _tokener.nextClean();
+    if (c != ',' && c != 0) {
+      _tokener.back();
+    }
+  }
+
+  private void expect(char expected) throws JSONException {
+    char c = _tokener.nextClean();
+    if (c != expected) {
+      throw _tokener.syntaxError("Expected '" + expected + "' but found " +
+          (c == 0 ? "end of input" : "'" + c + "'"));
+    }
+  }
+}
@@ -0,0 +1,174 @@
+package org.eupathdb.websvccommon.wsfplugin.blast;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.Properties;
+
+import org.eupathdb.websvccommon.wsfplugin.CircuitBreaker;
+import org.eupathdb.websvccommon.wsfplugin.HttpTransport.Settings;
+import org.gusdb.wsf.plugin.PluginModelException;
+
+public class MultiBlastConfig extends BlastConfig {
+
+  // The following properties are optional, and a default is provided for each.
+  public static final String FIELD_INITIAL_POLL_INTERVAL = "InitialPollIntervalMillis";
+  public static final String FIELD_MAX_POLL_INTERVAL = "MaxPollIntervalMillis";
+  public static final String FIELD_POLL_BACKOFF_FACTOR = "PollBackoffFactor";
+  public static final String FIELD_POLL_JITTER = "PollJitter";
+  public static final String FIELD_JOB_CACHE_TTL = "JobCacheTtlSeconds";
+  public static final String FIELD_ABANDONED_JOB_TIMEOUT = "AbandonedJobTimeoutSeconds";
+  public static final String FIELD_JOB_JOURNAL_DIR = "JobJournalDir";
+  public static final String FIELD_HTTP_CONNECT_TIMEOUT = "HttpConnectTimeoutMillis";
+  public static final String FIELD_HTTP_READ_TIMEOUT = "HttpReadTimeoutMillis";
+  public static final String FIELD_HTTP_MAX_CONNECTIONS_PER_HOST = "HttpMaxConnectionsPerHost";
+  public static final String FIELD_AUTH_HEADER_CACHE_TTL = "AuthHeaderCacheTtlSeconds";
+  public static final String FIELD_CIRCUIT_WINDOW_SIZE = "CircuitWindowSize";
+  public static final String FIELD_CIRCUIT_MIN_CALLS = "CircuitMinCalls";
+  public static final String FIELD_CIRCUIT_FAILURE_RATE = "CircuitFailureRateThreshold";
+  public static final String FIELD_CIRCUIT_SLOW_CALL = "CircuitSlowCallMillis";
+  public static final String FIELD_CIRCUIT_OPEN = "CircuitOpenMillis";
+  public static final String FIELD_HEDGE_STATUS_PERCENTILE = "HedgeStatusPercentile";
+  public static final String FIELD_SCATTER_MAX_JOBS = "ScatterMaxJobs";
+  public static final String FIELD_SCATTER_MIN_TARGETS_PER_JOB = "ScatterMinTargetsPerJob";
+
+  // default values for the optional properties
+  private static final String DEFAULT_INITIAL_POLL_INTERVAL = "250";
+  private static final String DEFAULT_MAX_POLL_INTERVAL = "5000";
+  private static final String DEFAULT_POLL_BACKOFF_FACTOR = "2";
+  private static final String DEFAULT_POLL_JITTER = "0.2";
+  private static final String DEFAULT_JOB_CACHE_TTL = "3600";
+  private static final String DEFAULT_ABANDONED_JOB_TIMEOUT = "1800";
+  private static final String DEFAULT_HTTP_CONNECT_TIMEOUT = String.valueOf(Settings.DEFAULT_CONNECT_TIMEOUT_MILLIS);
+  private static final String DEFAULT_HTTP_READ_TIMEOUT = String.valueOf(Settings.DEFAULT_READ_TIMEOUT_MILLIS);
+  private static final String DEFAULT_HTTP_MAX_CONNECTIONS_PER_HOST = String.valueOf(Settings.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+  private static final String DEFAULT_AUTH_HEADER_CACHE_TTL = "300";
+  private static final String DEFAULT_CIRCUIT_WINDOW_SIZE = String.valueOf(CircuitBreaker.Settings.DEFAULT_WINDOW_SIZE);
+  private static final String DEFAULT_CIRCUIT_MIN_CALLS = String.valueOf(CircuitBreaker.Settings.DEFAULT_MIN_CALLS);
+  private static final String DEFAULT_CIRCUIT_FAILURE_RATE = String.valueOf(CircuitBreaker.Settings.DEFAULT_FAILURE_RATE_THRESHOLD);
+  private static final String DEFAULT_CIRCUIT_SLOW_CALL = String.valueOf(CircuitBreaker.Settings.DEFAULT_SLOW_CALL_MILLIS);
+  private static final String DEFAULT_CIRCUIT_OPEN = String.valueOf(CircuitBreaker.Settings.DEFAULT_OPEN_MILLIS);
+  private static final String DEFAULT_HEDGE_STATUS_PERCENTILE = "0";
+  private static final String DEFAULT_SCATTER_MAX_JOBS = "1";
+  private static final String DEFAULT_SCATTER_MIN_TARGETS_PER_JOB = "20";
+
+  public MultiBlastConfig(Properties properties) throws PluginModelException {
+    super(properties);
+  }
+
+  @Override
+  protected void validate() throws PluginModelException {
+    try {
+      if (getInitialPollIntervalMillis() < 1 || getMaxPollIntervalMillis() < getInitialPollIntervalMillis())
+        throw new PluginModelException("Invalid multi-blast polling intervals: " +
+            FIELD_MAX_POLL_INTERVAL + " must be at least " + FIELD_INITIAL_POLL_INTERVAL +
+            ", which must be a positive integer.");
+      if (getPollBackoffFactor() < 1)
+        throw new PluginModelException("Invalid " + FIELD_POLL_BACKOFF_FACTOR +
+            ": " + getPollBackoffFactor() + ". The value must be at least 1.");
+      if (getPollJitter() < 0 || getPollJitter() >= 1)
+        throw new PluginModelException("Invalid " + FIELD_POLL_JITTER +
+            ": " + getPollJitter() + ". The value must be in the range [0,1).");
+      if (getJobCacheTtlSeconds() < 0)
+        throw new PluginModelException("Invalid " + FIELD_JOB_CACHE_TTL +
+            ": " + getJobCacheTtlSeconds() + ". The value must be non-negative (0 disables the cache).");
+      if (getAuthHeaderCacheTtlSeconds() < 0)
+        throw new PluginModelException("Invalid " + FIELD_AUTH_HEADER_CACHE_TTL +
+            ": " + getAuthHeaderCacheTtlSeconds() + ". The value must be non-negative (0 disables the cache).");
+      if (getAbandonedJobTimeoutSeconds() < 0)
+        throw new PluginModelException("Invalid " + FIELD_ABANDONED_JOB_TIMEOUT +
+            ": " + getAbandonedJobTimeoutSeconds() + ". The value must be non-negative.");
+      Settings http = getHttpSettings();
+      if (http.getConnectTimeoutMillis() < 1 || http.getReadTimeoutMillis() < 1 || http.getMaxConnectionsPerHost() < 1)
+        throw new PluginModelException("Invalid HTTP settings: " + FIELD_HTTP_CONNECT_TIMEOUT + ", " +
+            FIELD_HTTP_READ_TIMEOUT + " and " + FIELD_HTTP_MAX_CONNECTIONS_PER_HOST + " must be positive integers.");
+      CircuitBreaker.Settings circuit = getCircuitBreakerSettings();
+      if (circuit.getWindowSize() < 1 || circuit.getMinCalls() < 1 || circuit.getSlowCallMillis() < 1 || circuit.getOpenMillis() < 1)
+        throw new PluginModelException("Invalid circuit breaker settings: " + FIELD_CIRCUIT_WINDOW_SIZE + ", " +
+            FIELD_CIRCUIT_MIN_CALLS + ", " + FIELD_CIRCUIT_SLOW_CALL + " and " + FIELD_CIRCUIT_OPEN + " must be positive integers.");
+      if (circuit.getFailureRateThreshold() <= 0 || circuit.getFailureRateThreshold() > 1)
+        throw new PluginModelException("Invalid " + FIELD_CIRCUIT_FAILURE_RATE +
+            ": " + circuit.getFailureRateThreshold() + ". The value must be in the range (0,1].");
+      if (getHedgeStatusPercentile() < 0 || getHedgeStatusPercentile() >= 1)
+        throw new PluginModelException("Invalid " + FIELD_HEDGE_STATUS_PERCENTILE +
+            ": " + getHedgeStatusPercentile() + ". The value must be in the range [0,1) (0 disables hedging).");
+      if (getScatterMaxJobs() < 1 || getScatterMinTargetsPerJob() < 1)
+        throw new PluginModelException("Invalid scatter settings: " + FIELD_SCATTER_MAX_JOBS + " and " +
+            FIELD_SCATTER_MIN_TARGETS_PER_JOB + " must be positive integers (a max of 1 disables scatter).");
+    }
+    catch (NumberFormatException e) {
+      throw new PluginModelException("Invalid numeric value in multi-blast config", e);
+    }
+  }
+
+  public long getInitialPollIntervalMillis() {
+    return Long.valueOf(_properties.getProperty(FIELD_INITIAL_POLL_INTERVAL, DEFAULT_INITIAL_POLL_INTERVAL));
+  }
+
+  public long getMaxPollIntervalMillis() {
+    return Long.valueOf(_properties.getProperty(FIELD_MAX_POLL_INTERVAL, DEFAULT_MAX_POLL_INTERVAL));
+  }
+
+  public double getPollBackoffFactor() {
+    return Double.valueOf(_properties.getProperty(FIELD_POLL_BACKOFF_FACTOR, DEFAULT_POLL_BACKOFF_FACTOR));
+  }
+
+  public double getPollJitter() {
+    return Double.valueOf(_properties.getProperty(FIELD_POLL_JITTER, DEFAULT_POLL_JITTER));
+  }
+
+  public long getJobCacheTtlSeconds() {
+    return Long.valueOf(_properties.getProperty(FIELD_JOB_CACHE_TTL, DEFAULT_JOB_CACHE_TTL));
+  }
+
+  public long getAuthHeaderCacheTtlSeconds() {
+    return Long.valueOf(_properties.getProperty(FIELD_AUTH_HEADER_CACHE_TTL, DEFAULT_AUTH_HEADER_CACHE_TTL));
+  }
+
+  public long getAbandonedJobTimeoutSeconds() {
+    return Long.valueOf(_properties.getProperty(FIELD_ABANDONED_JOB_TIMEOUT, DEFAULT_ABANDONED_JOB_TIMEOUT));
+  }
+
+  /**
+   * @param projectId project whose journal file is requested
+   * @return file in which to journal in-flight jobs, if a directory is configured
+   */
+  public Optional<Path> getJobJournalFile(String projectId) {
+    return Optional.ofNullable(_properties.getProperty(FIELD_JOB_JOURNAL_DIR))
+      .filter(dir -> !dir.isBlank())
+      .map(dir -> Paths.get(dir.trim(), "multiblast-jobs-" + projectId + ".jsonl"));
+  }
+
+  public Settings getHttpSettings() {
+    return new Settings(
+        Integer.valueOf(_properties.getProperty(FIELD_HTTP_CONNECT_TIMEOUT, DEFAULT_HTTP_CONNECT_TIMEOUT)),
+        Integer.valueOf(_properties.getProperty(FIELD_HTTP_READ_TIMEOUT, DEFAULT_HTTP_READ_TIMEOUT)),
+        Integer.valueOf(_properties.getProperty(FIELD_HTTP_MAX_CONNECTIONS_PER_HOST, DEFAULT_HTTP_MAX_CONNECTIONS_PER_HOST)));
+  }
+
+  public CircuitBreaker.Settings getCircuitBreakerSettings() {
+    return new CircuitBreaker.Settings(
+        Integer.valueOf(_properties.getProperty(FIELD_CIRCUIT_WINDOW_SIZE, DEFAULT_CIRCUIT_WINDOW_SIZE)),
+        Integer.valueOf(_properties.getProperty(FIELD_CIRCUIT_MIN_CALLS, DEFAULT_CIRCUIT_MIN_CALLS)),
+        Double.valueOf(_properties.getProperty(FIELD_CIRCUIT_FAILURE_RATE, DEFAULT_CIRCUIT_FAILURE_RATE)),
+        Long.valueOf(_properties.getProperty(FIELD_CIRCUIT_SLOW_CALL, DEFAULT_CIRCUIT_SLOW_CALL)),
+        Long.valueOf(_properties.getProperty(FIELD_CIRCUIT_OPEN, DEFAULT_CIRCUIT_OPEN)));
+  }
+
+  public double getHedgeStatusPercentile() {
+    return Double.valueOf(_properties.getProperty(FIELD_HEDGE_STATUS_PERCENTILE, DEFAULT_HEDGE_STATUS_PERCENTILE));
+  }
+
+  public int getScatterMaxJobs() {
+    return Integer.valueOf(_properties.getProperty(FIELD_SCATTER_MAX_JOBS, DEFAULT_SCATTER_MAX_JOBS));
+  }
+
+  public int getScatterMinTargetsPerJob() {
+    return Integer.valueOf(_properties.getProperty(FIELD_SCATTER_MIN_TARGETS_PER_JOB, DEFAULT_SCATTER_MIN_TARGETS_PER_JOB));
+  }
+
+  public PollingPolicy getPollingPolicy() {
+    return new PollingPolicy(getInitialPollIntervalMillis(),
+        getMaxPollIntervalMillis(), getPollBackoffFactor(), getPollJitter());
+  }
+}
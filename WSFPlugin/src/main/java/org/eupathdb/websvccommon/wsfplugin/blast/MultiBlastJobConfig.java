@@ -0,0 +1,408 @@
+package org.eupathdb.websvccommon.wsfplugin.blast;
+
+import static org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastServiceParams.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.eupathdb.websvccommon.wsfplugin.blast.QuerySequenceNormalizer.Alphabet;
+import org.eupathdb.websvccommon.wsfplugin.blast.QuerySequenceNormalizer.Statistics;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.gusdb.wsf.plugin.PluginUserException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Immutable, typed representation of a multi-blast job, parsed from the WDK
+ * multi-blast param values in a single pass (see MultiBlastServiceParams for
+ * the param names and the web-multi-blast code this must match).
+ *
+ * A job config produces the JSON sent to the multi-blast service, and a
+ * canonical form in which differences that cannot change the job's result
+ * are removed: param order, quoting, formatting of the query sequence and
+ * formatting of the e-value.  Targets keep the order in which they were
+ * selected, as the service is given them.  Jobs with equal canonical forms,
+ * submitted by the same user, have equal request keys, which caching and
+ * request deduplication rely on.
+ */
+public class MultiBlastJobConfig {
+
+  // FIXME Should have the outFormat be "pairwise". This will
+  // require fixes to the multi-blast service. (The multi-blast service
+  // currently doesn't allow "maxTargetSeqs" to be passed when the default
+  // report format is "pairwise".)
+  private static final String OUT_FORMAT = "single-file-json";
+
+  /**
+   * A database searched by a job.  Targets are shared by the jobs of all
+   * requests selecting them (see MultiBlastTargetCatalog), so their JSON is
+   * built once and must never be modified.
+   */
+  public static class Target {
+
+    private final String _organism;
+    private final String _target;
+    private final JSONObject _json;
+
+    private Target(String organism, String target) {
+      _organism = organism;
+      _target = target;
+      _json = new JSONObject().put("organism", organism).put("target", target);
+    }
+
+    public String getOrganism() { return _organism; }
+    public String getTarget() { return _target; }
+
+    private JSONObject toJson() {
+      return _json;
+    }
+  }
+
+  private final String _tool;
+  private final String _query;
+  private final String _canonicalQuery;
+  private final Optional<Statistics> _queryStatistics;
+  private final Optional<String> _queryError;
+  private final String _eValue;
+  private final int _maxTargetSeqs;
+  private final int _wordSize;
+  private final boolean _softMasking;
+  private final boolean _lowerCaseMasking;
+  private final int _maxHsps;
+  private final boolean _filterLowComplexity;
+  private final Optional<String> _gapCosts;
+  private final Optional<String> _matchMismatchScore;
+  private final Optional<String> _scoringMatrix;
+  private final Optional<String> _compBasedStats;
+  private final List<Target> _targets;
+
+  /**
+   * Parses the internal values of the WDK multi-blast query params.
+   *
+   * @param params internal values of params
+   * @return job config described by the params
+   * @throws PluginUserException if a param value is missing or invalid, or
+   * the selected tool is not supported
+   */
+  public static MultiBlastJobConfig parse(Map<String, String> params) throws PluginUserException {
+    String tool = null, query = null, eValue = null, numQueryResults = null, maxMatches = null,
+        wordSize = null, softMask = null, lowerCaseMask = null, filterLowComplex = null,
+        gapCosts = null, matchMismatch = null, scoringMatrix = null, compAdjust = null,
+        organisms = null, dbType = null;
+
+    for (Map.Entry<String, String> param : params.entrySet()) {
+      String value = param.getValue();
+      switch (param.getKey()) {
+        case BLAST_ALGORITHM_PARAM_NAME:          tool = stripQuotes(value); break;
+        case BLAST_QUERY_SEQUENCE_PARAM_NAME:     query = stripQuotes(value); break;
+        case EXPECTATION_VALUE_PARAM_NAME:        eValue = stripQuotes(value); break;
+        case NUM_QUERY_RESULTS_PARAM_NAME:        numQueryResults = stripQuotes(value); break;
+        case MAX_MATCHES_QUERY_RANGE_PARAM_NAME:  maxMatches = stripQuotes(value); break;
+        case WORD_SIZE_PARAM_NAME:                wordSize = stripQuotes(value); break;
+        case SOFT_MASK_PARAM_NAME:                softMask = stripQuotes(value); break;
+        case LOWER_CASE_MASK_PARAM_NAME:          lowerCaseMask = stripQuotes(value); break;
+        case FILTER_LOW_COMPLEX_PARAM_NAME:       filterLowComplex = stripQuotes(value); break;
+        case GAP_COSTS_PARAM_NAME:                gapCosts = stripQuotes(value); break;
+        case MATCH_MISMATCH_SCORE:                matchMismatch = stripQuotes(value); break;
+        case SCORING_MATRIX_PARAM_NAME:           scoringMatrix = stripQuotes(value); break;
+        case COMP_ADJUST_PARAM_NAME:              compAdjust = stripQuotes(value); break;
+        case BLAST_DATABASE_ORGANISM_PARAM_NAME:  organisms = value; break;
+        case BLAST_DATABASE_TYPE_PARAM_NAME:      dbType = value; break;
+        default: // not a job param
+      }
+    }
+
+    tool = require(tool, BLAST_ALGORITHM_PARAM_NAME);
+    boolean isBlastn = tool.equals("blastn");
+    switch (tool) {
+      case "blastn": case "blastp": case "blastx": case "tblastn": case "tblastx": break;
+      default: throw new PluginUserException("The tool type '" + tool + "' is unsupported");
+    }
+
+    // the query is validated and canonicalized in one pass, once per request
+    query = require(query, BLAST_QUERY_SEQUENCE_PARAM_NAME);
+    StringBuilder canonicalQuery = new StringBuilder(query.length());
+    String queryError = null;
+    Optional<Statistics> queryStatistics = Optional.empty();
+    try {
+      queryStatistics = Optional.of(new QuerySequenceNormalizer(Alphabet.forAlgorithm(tool), Integer.MAX_VALUE)
+          .canonicalize(query, canonicalQuery));
+    }
+    catch (PluginUserException | PluginModelException e) {
+      // the service will reject the query; keep it as submitted
+      queryError = e.getMessage();
+    }
+
+    return new MultiBlastJobConfig(
+        tool,
+        query,
+        queryStatistics.isPresent() ? canonicalQuery.toString() : query.strip(),
+        queryStatistics,
+        Optional.ofNullable(queryError),
+        require(eValue, EXPECTATION_VALUE_PARAM_NAME),
+        toInt(numQueryResults, NUM_QUERY_RESULTS_PARAM_NAME),
+        toInt(wordSize, WORD_SIZE_PARAM_NAME),
+        "true".equals(require(softMask, SOFT_MASK_PARAM_NAME)),
+        "true".equals(require(lowerCaseMask, LOWER_CASE_MASK_PARAM_NAME)),
+        toInt(maxMatches, MAX_MATCHES_QUERY_RANGE_PARAM_NAME),
+        !require(filterLowComplex, FILTER_LOW_COMPLEX_PARAM_NAME).startsWith("no"),
+        tool.equals("tblastx") ? Optional.empty() : Optional.of(toIntPair(gapCosts, GAP_COSTS_PARAM_NAME)),
+        isBlastn ? Optional.of(toIntPair(matchMismatch, MATCH_MISMATCH_SCORE)) : Optional.empty(),
+        isBlastn ? Optional.empty() : Optional.of(require(scoringMatrix, SCORING_MATRIX_PARAM_NAME)),
+        isBlastn || tool.equals("tblastx") ? Optional.empty() : Optional.of(require(compAdjust, COMP_ADJUST_PARAM_NAME)),
+        MultiBlastTargetCatalog.getInstance().getTargets(
+            require(dbType, BLAST_DATABASE_TYPE_PARAM_NAME), require(organisms, BLAST_DATABASE_ORGANISM_PARAM_NAME)));
+  }
+
+  /**
+   * Builds the targets of an organism selection without validating or
+   * caching them; most callers should use MultiBlastTargetCatalog.
+   *
+   * @param organisms comma-delimited organism param value
+   * @param wdkTargetType database type param value
+   * @return targets to search
+   */
+  static List<Target> parseTargets(String organisms, String wdkTargetType) {
+
+    // FIXME This is a carryover of some hardcoding from
+    // ApiCommonWebService's EuPathBlastCommandFormatter.
+    // We should explore more permanent solutions.
+    String blastTargetType = wdkTargetType.equals("PopSet") ? "Isolates" : wdkTargetType;
+
+    List<Target> targets = new ArrayList<>();
+    for (String organism : organisms.split(",")) {
+      if (!(organism.equals("-1") || organism.length() <= 3)) {
+        targets.add(new Target(organism, organism + blastTargetType));
+      }
+    }
+    return targets;
+  }
+
+  private MultiBlastJobConfig(String tool, String query, String canonicalQuery,
+      Optional<Statistics> queryStatistics, Optional<String> queryError, String eValue,
+      int maxTargetSeqs, int wordSize, boolean softMasking, boolean lowerCaseMasking, int maxHsps,
+      boolean filterLowComplexity, Optional<String> gapCosts, Optional<String> matchMismatchScore,
+      Optional<String> scoringMatrix, Optional<String> compBasedStats, List<Target> targets) {
+    _tool = tool;
+    _query = query;
+    _canonicalQuery = canonicalQuery;
+    _queryStatistics = queryStatistics;
+    _queryError = queryError;
+    _eValue = eValue;
+    _maxTargetSeqs = maxTargetSeqs;
+    _wordSize = wordSize;
+    _softMasking = softMasking;
+    _lowerCaseMasking = lowerCaseMasking;
+    _maxHsps = maxHsps;
+    _filterLowComplexity = filterLowComplexity;
+    _gapCosts = gapCosts;
+    _matchMismatchScore = matchMismatchScore;
+    _scoringMatrix = scoringMatrix;
+    _compBasedStats = compBasedStats;
+    _targets = Collections.unmodifiableList(new ArrayList<>(targets));
+  }
+
+  /**
+   * @param targets targets to search instead of this config's
+   * @return copy of this config searching the passed targets
+   */
+  public MultiBlastJobConfig withTargets(List<Target> targets) {
+    return new MultiBlastJobConfig(_tool, _query, _canonicalQuery, _queryStatistics, _queryError,
+        _eValue, _maxTargetSeqs, _wordSize, _softMasking, _lowerCaseMasking, _maxHsps,
+        _filterLowComplexity, _gapCosts, _matchMismatchScore, _scoringMatrix, _compBasedStats, targets);
+  }
+
+  public String getTool() { return _tool; }
+  public String getQuery() { return _query; }
+  public int getMaxTargetSeqs() { return _maxTargetSeqs; }
+  public List<Target> getTargets() { return _targets; }
+
+  /**
+   * @return size of the query sequence, gathered while canonicalizing it, or
+   * empty if the query is not a valid sequence (the service will reject it)
+   */
+  public Optional<Statistics> getQueryStatistics() { return _queryStatistics; }
+
+  /**
+   * @return why the query is not a valid sequence, or empty if it is
+   */
+  public Optional<String> getQueryError() { return _queryError; }
+
+  /**
+   * @return e-value cutoff as a number
+   * @throws NumberFormatException if the e-value param is not numeric
+   */
+  public double getEValue() {
+    return Double.parseDouble(_eValue);
+  }
+
+  /**
+   * @return JSON passed as "config" to the multi-blast service
+   */
+  public JSONObject toConfigJson() {
+    return toConfigJson(_query, _eValue);
+  }
+
+  /**
+   * @return JSON passed as "targets" to the multi-blast service
+   */
+  public JSONArray toTargetsJson() {
+    return toTargetsJson(_targets);
+  }
+
+  /**
+   * @param site project ID of the site submitting the job
+   * @return body of the new job request sent to the multi-blast service
+   */
+  public JSONObject toNewJobRequestJson(String site) {
+    return toNewJobRequestJson(site, toConfigJson(), toTargetsJson());
+  }
+
+  /**
+   * @param site project ID of the site submitting the job
+   * @return new job request in which the query and e-value are in
+   * canonical form; identical for configs that would produce identical jobs
+   */
+  public JSONObject toCanonicalJson(String site) {
+    return toNewJobRequestJson(site, toConfigJson(_canonicalQuery, canonicalizeNumber(_eValue)), toTargetsJson());
+  }
+
+  /**
+   * @param site project ID of the site submitting the job
+   * @return deterministic serialization of this config's canonical form
+   */
+  public String toCanonicalString(String site) {
+    return MultiBlastRequestCoalescer.toCanonicalString(toCanonicalJson(site));
+  }
+
+  /**
+   * @param site project ID of the site submitting the job
+   * @param userId ID of the user submitting the job
+   * @param reportFormat format of the report requested for the job
+   * @return key shared by all of the user's requests for the same job and
+   * report format
+   */
+  public String getRequestKey(String site, long userId, String reportFormat) {
+    return MultiBlastRequestCoalescer.getKey(toCanonicalJson(site), userId, reportFormat);
+  }
+
+  private JSONObject toConfigJson(String query, String eValue) {
+    JSONObject config = new JSONObject()
+      .put("tool", _tool)
+      .put("query", query)
+      .put("eValue", eValue)
+      .put("maxTargetSeqs", _maxTargetSeqs)
+      .put("wordSize", _wordSize)
+      .put("softMasking", _softMasking)
+      .put("lcaseMasking", _lowerCaseMasking)
+      .put("outFormat", new JSONObject().put("format", OUT_FORMAT));
+
+    if (_maxHsps >= 1) {
+      config.put("maxHSPs", _maxHsps);
+    }
+
+    _gapCosts.ifPresent(pair -> config
+      .put("gapOpen", first(pair))
+      .put("gapExtend", second(pair)));
+
+    switch (_tool) {
+      case "blastn":
+        return config
+          .put("task", _tool)
+          .put("dust", _filterLowComplexity ? "yes" : "no")
+          .put("reward", first(_matchMismatchScore.get()))
+          .put("penalty", second(_matchMismatchScore.get()));
+      case "tblastx":
+        return config
+          .put("matrix", _scoringMatrix.get())
+          .put("seg", _filterLowComplexity ? "yes" : "no")
+          .put("queryGeneticCode", 1);
+      case "blastx":
+        return config
+          .put("matrix", _scoringMatrix.get())
+          .put("seg", _filterLowComplexity ? "yes" : "no")
+          .put("compBasedStats", _compBasedStats.get())
+          .put("queryGeneticCode", 1);
+      default: // blastp, tblastn
+        return config
+          .put("task", _tool)
+          .put("matrix", _scoringMatrix.get())
+          .put("seg", _filterLowComplexity ? "yes" : "no")
+          .put("compBasedStats", _compBasedStats.get());
+    }
+  }
+
+  static JSONArray toTargetsJson(List<Target> targets) {
+    JSONArray json = new JSONArray();
+    for (Target target : targets) {
+      json.put(target.toJson());
+    }
+    return json;
+  }
+
+  private static JSONObject toNewJobRequestJson(String site, JSONObject config, JSONArray targets) {
+    return new JSONObject()
+      .put("site", site)
+      .put("maxResultSize", 0)
+      .put("maxSequences", 1)
+      .put("isPrimary", false)
+      .put("config", config)
+      .put("targets", targets);
+  }
+
+  private static String canonicalizeNumber(String value) {
+    try {
+      return new BigDecimal(value.strip()).stripTrailingZeros().toString();
+    }
+    catch (NumberFormatException e) {
+      return value;
+    }
+  }
+
+  // param values may be wrapped in single quotes
+  private static String stripQuotes(String value) {
+    if (value == null) return null;
+    int start = value.startsWith("'") ? 1 : 0;
+    int end = value.length() > start && value.endsWith("'") ? value.length() - 1 : value.length();
+    return value.substring(start, end);
+  }
+
+  private static String require(String value, String paramName) throws PluginUserException {
+    if (value == null) {
+      throw new PluginUserException("Required parameter " + paramName + " is missing.");
+    }
+    return value;
+  }
+
+  private static int toInt(String value, String paramName) throws PluginUserException {
+    try {
+      return Integer.parseInt(require(value, paramName));
+    }
+    catch (NumberFormatException e) {
+      throw new PluginUserException("Parameter " + paramName + " must be an integer: " + value);
+    }
+  }
+
+  // validates a comma-delimited pair of integers, e.g. "11,1"
+  private static String toIntPair(String value, String paramName) throws PluginUserException {
+    String[] pair = require(value, paramName).split(",", 2);
+    if (pair.length != 2) {
+      throw new PluginUserException("Parameter " + paramName + " must be a pair of integers: " + value);
+    }
+    toInt(pair[0], paramName);
+    toInt(pair[1], paramName);
+    return value;
+  }
+
+  private static int first(String intPair) {
+    return Integer.parseInt(intPair.split(",", 2)[0]);
+  }
+
+  private static int second(String intPair) {
+    return Integer.parseInt(intPair.split(",", 2)[1]);
+  }
+}
@@ -0,0 +1,267 @@
+package org.eupathdb.websvccommon.wsfplugin.blast;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Remembers the multi-blast jobs and reports still being generated for each
+ * request key, so a request retried after a DelayedResultException (or after
+ * a restart) resumes polling the existing job instead of creating a new one.
+ *
+ * Entries are held in memory and, if a journal file is configured, appended
+ * to it as JSON lines.  The file is read when the journal is first used and
+ * rewritten with only live entries once it accumulates enough dead lines.
+ * Writes are queued, in the order the entries changed, to a single writer
+ * thread which keeps the file open, so callers (the job tracker's threads)
+ * never wait on disk I/O.  The journal is an optimization only; failures to
+ * write it are logged and otherwise ignored.
+ */
+public class MultiBlastJobJournal {
+
+  private static final Logger LOG = Logger.getLogger(MultiBlastJobJournal.class);
+
+  // entries older than this are assumed to have been expired by the service
+  private static final long MAX_ENTRY_AGE_MILLIS = 24 /* hours */ * 60 * 60 * 1000;
+
+  // number of superseded lines tolerated before the file is rewritten
+  private static final int MAX_DEAD_LINES = 1000;
+
+  private static final String KEY = "key";
+  private static final String JOB_ID = "jobId";
+  private static final String REPORT_ID = "reportId";
+  private static final String TIME = "time";
+  private static final String REMOVED = "removed";
+
+  private static final Map<Optional<Path>, MultiBlastJobJournal> INSTANCES = new HashMap<>();
+
+  // writes all journal files, in the order writes are queued
+  private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "multiblast-journal-writer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * @param journalFile file in which to persist entries, or empty to keep
+   * entries in memory only
+   * @return journal backed by the passed file
+   */
+  public static synchronized MultiBlastJobJournal getInstance(Optional<Path> journalFile) {
+    return INSTANCES.computeIfAbsent(journalFile, MultiBlastJobJournal::new);
+  }
+
+  /**
+   * A job still being generated, and its report if one has been requested
+   */
+  public static class InFlightJob {
+
+    private final String _jobId;
+    private final Optional<String> _reportId;
+    private final long _time;
+
+    private InFlightJob(String jobId, Optional<String> reportId, long time) {
+      _jobId = jobId;
+      _reportId = reportId;
+      _time = time;
+    }
+
+    public String getJobId() { return _jobId; }
+    public Optional<String> getReportId() { return _reportId; }
+
+    @Override
+    public String toString() {
+      return "{ jobId: " + _jobId + ", reportId: " + _reportId.orElse("none") + " }";
+    }
+  }
+
+  private final Optional<Path> _journalFile;
+  private final Map<String, InFlightJob> _jobs = new LinkedHashMap<>();
+  private int _deadLines = 0;
+
+  // journal file open for appending; only used on the writer thread
+  private Writer _out;
+
+  private MultiBlastJobJournal(Optional<Path> journalFile) {
+    _journalFile = journalFile;
+    _journalFile.ifPresent(this::load);
+  }
+
+  /**
+   * @param key request key
+   * @return the in-flight job for the passed key, if any
+   */
+  public synchronized Optional<InFlightJob> get(String key) {
+    InFlightJob job = _jobs.get(key);
+    if (job != null && isTooOld(job)) {
+      remove(key);
+      return Optional.empty();
+    }
+    return Optional.ofNullable(job);
+  }
+
+  /**
+   * Records the job (and report, if requested yet) being generated for the
+   * passed key, replacing any existing entry.
+   *
+   * @param key request key
+   * @param jobId ID of the job
+   * @param reportId ID of the report, if requested yet
+   */
+  public synchronized void record(String key, String jobId, Optional<String> reportId) {
+    InFlightJob job = new InFlightJob(jobId, reportId, System.currentTimeMillis());
+    if (_jobs.put(key, job) != null) {
+      _deadLines++;
+    }
+    queueWrite(toJson(key, job));
+  }
+
+  /**
+   * Removes the entry for the passed key, if any.
+   *
+   * @param key request key
+   */
+  public synchronized void remove(String key) {
+    if (_jobs.remove(key) != null) {
+      // both the entry and the removal are now dead
+      _deadLines += 2;
+      queueWrite(new JSONObject().put(KEY, key).put(REMOVED, true));
+    }
+  }
+
+  private static boolean isTooOld(InFlightJob job) {
+    return System.currentTimeMillis() - job._time > MAX_ENTRY_AGE_MILLIS;
+  }
+
+  private static JSONObject toJson(String key, InFlightJob job) {
+    JSONObject json = new JSONObject()
+      .put(KEY, key)
+      .put(JOB_ID, job._jobId)
+      .put(TIME, job._time);
+    job._reportId.ifPresent(reportId -> json.put(REPORT_ID, reportId));
+    return json;
+  }
+
+  private void load(Path journalFile) {
+    if (!Files.exists(journalFile)) {
+      return;
+    }
+    try (BufferedReader in = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (line.isBlank()) continue;
+        try {
+          JSONObject json = new JSONObject(line);
+          String key = json.getString(KEY);
+          if (json.optBoolean(REMOVED)) {
+            _jobs.remove(key);
+          }
+          else {
+            _jobs.put(key, new InFlightJob(json.getString(JOB_ID),
+                Optional.ofNullable(json.optString(REPORT_ID, null)), json.getLong(TIME)));
+          }
+        }
+        catch (JSONException e) {
+          // likely a partial line from an interrupted write
+          LOG.warn("Skipping unreadable line in multi-blast job journal " + journalFile + ": " + line);
+        }
+      }
+      _jobs.values().removeIf(MultiBlastJobJournal::isTooOld);
+      LOG.info("Loaded " + _jobs.size() + " in-flight multi-blast jobs from " + journalFile);
+      rewrite(journalFile, getLiveLines());
+    }
+    catch (IOException e) {
+      LOG.warn("Unable to read multi-blast job journal " + journalFile, e);
+    }
+  }
+
+  // called with this journal's lock held, so writes are queued in the order
+  //   entries change; queueing does no I/O
+  private void queueWrite(JSONObject entry) {
+    if (_journalFile.isEmpty()) {
+      return;
+    }
+    Path journalFile = _journalFile.get();
+    if (_deadLines > MAX_DEAD_LINES && _deadLines > _jobs.size()) {
+      List<String> liveLines = getLiveLines();
+      _deadLines = 0;
+      WRITER.execute(() -> rewrite(journalFile, liveLines));
+      return;
+    }
+    String line = entry.toString();
+    WRITER.execute(() -> append(journalFile, line));
+  }
+
+  private List<String> getLiveLines() {
+    List<String> lines = new ArrayList<>(_jobs.size());
+    for (Map.Entry<String, InFlightJob> job : _jobs.entrySet()) {
+      lines.add(toJson(job.getKey(), job.getValue()).toString());
+    }
+    return lines;
+  }
+
+  private void append(Path journalFile, String line) {
+    try {
+      if (_out == null) {
+        _out = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      }
+      _out.write(line);
+      _out.write('\n');
+      _out.flush();
+    }
+    catch (IOException e) {
+      LOG.warn("Unable to write multi-blast job journal " + journalFile, e);
+      closeFile(journalFile);
+    }
+  }
+
+  private void rewrite(Path journalFile, List<String> liveLines) {
+    // the next append reopens the rewritten file
+    closeFile(journalFile);
+    Path tmpFile = journalFile.resolveSibling(journalFile.getFileName() + ".tmp");
+    try {
+      try (BufferedWriter out = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+        for (String line : liveLines) {
+          out.write(line);
+          out.newLine();
+        }
+      }
+      Files.move(tmpFile, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (IOException e) {
+      LOG.warn("Unable to rewrite multi-blast job journal " + journalFile, e);
+    }
+  }
+
+  private void closeFile(Path journalFile) {
+    if (_out == null) {
+      return;
+    }
+    try {
+      _out.close();
+    }
+    catch (IOException e) {
+      LOG.warn("Unable to close multi-blast job journal " + journalFile, e);
+    }
+    _out = null;
+  }
+}
@@ -0,0 +1,391 @@
+package org.eupathdb.websvccommon.wsfplugin.blast;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.json.JSONObject;
+
+/**
+ * Tracks in-flight multi-blast jobs and reports for all plugin requests on a
+ * small, shared pool of threads.  Each tracked resource is polled on its own
+ * schedule (see PollingPolicy) and the future returned to the caller is
+ * completed when the resource is complete or its status check fails.  Waiting
+ * requests therefore do no polling of their own, and thousands of pending
+ * jobs cost only the shared threads.
+ *
+ * A single scheduler thread only keeps time: when a resource is due for a
+ * status check, the check (like every other service call) is handed to a
+ * bounded pool of I/O threads.  A slow service therefore delays only the
+ * calls queued behind it, never the timers of other resources.
+ *
+ * The full job lifecycle (create job, wait, create report, wait) can also be
+ * run here via runJob(), which lets several requests share one lifecycle.
+ */
+public class MultiBlastJobTracker {
+
+  private static final Logger LOG = Logger.getLogger(MultiBlastJobTracker.class);
+
+  // number of threads shared by all requests to make service calls, including
+  //   job and report status checks; further calls wait in a queue
+  private static final int IO_THREADS = 16;
+
+  // how long an idle I/O thread is kept
+  private static final long IO_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+  private static final MultiBlastJobTracker INSTANCE = new MultiBlastJobTracker(IO_THREADS);
+
+  public static MultiBlastJobTracker getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Outcome of a single job or report status request
+   */
+  public static class StatusCheck {
+
+    private final boolean _isComplete;
+    private final Optional<Long> _retryAfterMillis;
+    private final boolean _isQueued;
+
+    public StatusCheck(boolean isComplete, Optional<Long> retryAfterMillis) {
+      this(isComplete, retryAfterMillis, false);
+    }
+
+    /**
+     * @param isComplete whether the resource is complete
+     * @param retryAfterMillis wait requested by the service before the next check
+     * @param isQueued whether the resource is waiting to start running
+     */
+    public StatusCheck(boolean isComplete, Optional<Long> retryAfterMillis, boolean isQueued) {
+      _isComplete = isComplete;
+      _retryAfterMillis = retryAfterMillis;
+      _isQueued = isQueued;
+    }
+
+    public boolean isComplete() { return _isComplete; }
+    public Optional<Long> getRetryAfterMillis() { return _retryAfterMillis; }
+    public boolean isQueued() { return _isQueued; }
+  }
+
+  // lifecycle phases whose durations are reported with a completed job
+  public static final String PHASE_SUBMIT = "submit";
+  public static final String PHASE_QUEUE = "queue";
+  public static final String PHASE_RUN = "run";
+  public static final String PHASE_REPORT = "report";
+
+  /**
+   * IDs of a job and a completed report generated from it, along with the
+   * duration of each lifecycle phase this tracker observed while producing
+   * them.  Durations are not part of a completed job's identity.
+   */
+  public static class CompletedJob {
+
+    private final String _jobId;
+    private final String _reportId;
+    private final Map<String, Long> _phaseMillis;
+
+    public CompletedJob(String jobId, String reportId) {
+      this(jobId, reportId, Collections.emptyMap());
+    }
+
+    public CompletedJob(String jobId, String reportId, Map<String, Long> phaseMillis) {
+      _jobId = jobId;
+      _reportId = reportId;
+      _phaseMillis = Collections.unmodifiableMap(new HashMap<>(phaseMillis));
+    }
+
+    public String getJobId() { return _jobId; }
+    public String getReportId() { return _reportId; }
+
+    /**
+     * @return duration of each observed phase (PHASE_*); phases that were
+     * skipped (e.g. because the job was resumed or reused) are absent
+     */
+    public Map<String, Long> getPhaseMillis() { return _phaseMillis; }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof CompletedJob)) return false;
+      CompletedJob other = (CompletedJob)obj;
+      return _jobId.equals(other._jobId) && _reportId.equals(other._reportId);
+    }
+
+    @Override
+    public int hashCode() {
+      return _jobId.hashCode() * 31 + _reportId.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return "{ jobId: " + _jobId + ", reportId: " + _reportId + " }";
+    }
+  }
+
+  /**
+   * Notified as a job lifecycle creates service resources, so they can be
+   * found again if the lifecycle is interrupted.  Called on the tracker's I/O
+   * threads; implementations must be quick and must not throw.
+   */
+  public interface LifecycleListener {
+    default void jobCreated(String jobId) {}
+    default void reportCreated(CompletedJob job) {}
+  }
+
+  @FunctionalInterface
+  public interface StatusChecker {
+    StatusCheck check() throws PluginModelException;
+  }
+
+  @FunctionalInterface
+  public interface ServiceCall<T> {
+    T call() throws PluginModelException;
+  }
+
+  private final ScheduledThreadPoolExecutor _scheduler;
+  private final ExecutorService _ioExecutor;
+  private final AtomicInteger _inFlightCount = new AtomicInteger();
+
+  /**
+   * @param ioThreads maximum number of service calls made at once
+   */
+  public MultiBlastJobTracker(int ioThreads) {
+    _scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "multiblast-scheduler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    _scheduler.setRemoveOnCancelPolicy(true);
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadPoolExecutor ioExecutor = new ThreadPoolExecutor(ioThreads, ioThreads,
+        IO_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+      Thread thread = new Thread(runnable, "multiblast-io-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    ioExecutor.allowCoreThreadTimeOut(true);
+    _ioExecutor = ioExecutor;
+  }
+
+  /**
+   * Begins tracking a job or report.  Cancelling the returned future stops
+   * polling of the resource.
+   *
+   * @param description description of the resource, for logging
+   * @param statusChecker checks the status of the resource
+   * @param policy policy determining waits between status checks
+   * @return future completed when the resource is complete, or completed
+   * exceptionally if a status check fails
+   */
+  public CompletableFuture<Void> track(String description, StatusChecker statusChecker, PollingPolicy policy) {
+    CompletableFuture<Void> completion = new CompletableFuture<>();
+    int inFlight = _inFlightCount.incrementAndGet();
+    completion.whenComplete((result, exception) -> _inFlightCount.decrementAndGet());
+    LOG.debug("Tracking " + description + " (" + inFlight + " resources in flight)");
+    schedule(description, statusChecker, policy.newPoller(), completion, Optional.empty());
+    return completion;
+  }
+
+  /**
+   * Runs the full lifecycle of a multi-blast job on the tracker's threads: the
+   * job is created, polled until complete, a report of the requested format is
+   * created, and the report is polled until complete.  Cancelling the returned
+   * future stops the lifecycle at its next step.
+   *
+   * @param client client used to make service requests
+   * @param newJobRequestJson body of the new job request
+   * @param reportFormat format of the report to create
+   * @param policy policy determining waits between status checks
+   * @return future completed with the IDs of the job and completed report
+   */
+  public CompletableFuture<CompletedJob> runJob(MultiBlastServiceClient client,
+      JSONObject newJobRequestJson, String reportFormat, PollingPolicy policy) {
+    return runJob(client, newJobRequestJson, reportFormat, policy,
+        Optional.empty(), Optional.empty(), new LifecycleListener() {});
+  }
+
+  /**
+   * Runs the lifecycle of a multi-blast job as above, but resumes polling of
+   * an existing job (and report, if passed) created by an earlier lifecycle.
+   * If the existing job or report cannot be resumed, a new job is created.
+   *
+   * @param client client used to make service requests
+   * @param newJobRequestJson body of the new job request
+   * @param reportFormat format of the report to create
+   * @param policy policy determining waits between status checks
+   * @param existingJobId previously created job to resume, if any
+   * @param existingReportId previously created report of the existing job to
+   * resume, if any
+   * @param listener notified as the job and report are created
+   * @return future completed with the IDs of the job and completed report
+   */
+  public CompletableFuture<CompletedJob> runJob(MultiBlastServiceClient client,
+      JSONObject newJobRequestJson, String reportFormat, PollingPolicy policy,
+      Optional<String> existingJobId, Optional<String> existingReportId, LifecycleListener listener) {
+    CompletableFuture<CompletedJob> result = new CompletableFuture<>();
+    runLifecycle(result, client, newJobRequestJson, reportFormat, policy, existingJobId, existingReportId, listener);
+    return result;
+  }
+
+  private void runLifecycle(CompletableFuture<CompletedJob> result, MultiBlastServiceClient client,
+      JSONObject newJobRequestJson, String reportFormat, PollingPolicy policy,
+      Optional<String> existingJobId, Optional<String> existingReportId, LifecycleListener listener) {
+
+    boolean isResumed = existingJobId.isPresent();
+    PhaseTimer phases = new PhaseTimer();
+
+    CompletableFuture<CompletedJob> reportCreated;
+    if (isResumed && existingReportId.isPresent()) {
+      LOG.info("Resuming multi-blast report " + existingReportId.get() + " of job " + existingJobId.get());
+      reportCreated = CompletableFuture.completedFuture(new CompletedJob(existingJobId.get(), existingReportId.get()));
+    }
+    else {
+      CompletableFuture<String> jobCreated;
+      if (isResumed) {
+        LOG.info("Resuming multi-blast job " + existingJobId.get());
+        jobCreated = CompletableFuture.completedFuture(existingJobId.get());
+      }
+      else {
+        jobCreated = call(result, () -> client.createJob(newJobRequestJson))
+          .thenApply(jobId -> { phases.end(PHASE_SUBMIT); listener.jobCreated(jobId); return jobId; });
+      }
+      reportCreated = jobCreated
+        .thenCompose(jobId -> track("job " + jobId,
+            guard(result, phases.timeJob(() -> client.checkJobStatus(jobId))), policy).thenApply(v -> jobId))
+        .thenCompose(jobId -> call(result, () -> client.createReport(new JSONObject()
+            .put("jobID", jobId)
+            .put("format", reportFormat)))
+            .thenApply(reportId -> new CompletedJob(jobId, reportId)))
+        .thenApply(job -> { listener.reportCreated(job); return job; });
+    }
+
+    reportCreated
+      .thenCompose(job -> track("report " + job.getReportId(),
+          guard(result, () -> client.checkReportStatus(job.getReportId())), policy).thenApply(v -> job))
+      .whenComplete((job, exception) -> {
+        if (exception == null) {
+          phases.end(PHASE_REPORT);
+          result.complete(new CompletedJob(job.getJobId(), job.getReportId(), phases.getPhaseMillis()));
+          return;
+        }
+        Throwable cause = exception instanceof CompletionException ? exception.getCause() : exception;
+        if (isResumed && !result.isDone() && !(cause instanceof CancellationException)) {
+          // existing job may have been removed by the service; start over
+          LOG.warn("Unable to resume multi-blast job " + existingJobId.get() + "; creating a new job", cause);
+          runLifecycle(result, client, newJobRequestJson, reportFormat, policy, Optional.empty(), Optional.empty(), listener);
+        }
+        else {
+          result.completeExceptionally(cause);
+        }
+      });
+  }
+
+  /**
+   * Measures consecutive phases of one lifecycle: each phase ends when the
+   * next begins.  The queue and run phases of a job are told apart by its
+   * status checks, so are only as precise as the polling interval.
+   */
+  private static class PhaseTimer {
+
+    private final Map<String, Long> _phaseMillis = new ConcurrentHashMap<>();
+    private long _phaseStart = System.currentTimeMillis();
+
+    synchronized void end(String phase) {
+      long now = System.currentTimeMillis();
+      _phaseMillis.put(phase, now - _phaseStart);
+      _phaseStart = now;
+    }
+
+    StatusChecker timeJob(StatusChecker jobStatusChecker) {
+      AtomicBoolean isRunning = new AtomicBoolean();
+      return () -> {
+        StatusCheck status = jobStatusChecker.check();
+        if (!status.isQueued() && isRunning.compareAndSet(false, true)) {
+          end(PHASE_QUEUE);
+        }
+        if (status.isComplete()) {
+          end(PHASE_RUN);
+        }
+        return status;
+      };
+    }
+
+    Map<String, Long> getPhaseMillis() {
+      return _phaseMillis;
+    }
+  }
+
+  /**
+   * @return number of jobs and reports currently being polled
+   */
+  public int getInFlightCount() {
+    return _inFlightCount.get();
+  }
+
+  private <T> CompletableFuture<T> call(CompletableFuture<?> lifecycle, ServiceCall<T> serviceCall) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    _ioExecutor.execute(() -> {
+      try {
+        if (lifecycle.isDone()) throw new CancellationException();
+        future.complete(serviceCall.call());
+      }
+      catch (Exception e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
+  }
+
+  private static StatusChecker guard(CompletableFuture<?> lifecycle, StatusChecker statusChecker) {
+    return () -> {
+      // stop polling if all waiters have abandoned the lifecycle
+      if (lifecycle.isDone()) throw new CancellationException();
+      return statusChecker.check();
+    };
+  }
+
+  private void schedule(String description, StatusChecker statusChecker, PollingPolicy.Poller poller,
+      CompletableFuture<Void> completion, Optional<Long> retryAfterMillis) {
+    if (completion.isDone()) {
+      // waiter gave up on this resource
+      return;
+    }
+    // the scheduler thread only hands the status check to the I/O threads
+    _scheduler.schedule(() -> _ioExecutor.execute(() -> poll(description, statusChecker, poller, completion)),
+        poller.nextDelayMillis(retryAfterMillis), TimeUnit.MILLISECONDS);
+  }
+
+  private void poll(String description, StatusChecker statusChecker, PollingPolicy.Poller poller,
+      CompletableFuture<Void> completion) {
+    if (completion.isDone()) {
+      return;
+    }
+    try {
+      StatusCheck status = statusChecker.check();
+      if (status.isComplete()) {
+        LOG.debug("Tracked " + description + " is complete");
+        completion.complete(null);
+      }
+      else {
+        schedule(description, statusChecker, poller, completion, status.getRetryAfterMillis());
+      }
+    }
+    catch (Exception e) {
+      completion.completeExceptionally(e);
+    }
+  }
+}
@@ -0,0 +1,505 @@
+package org.eupathdb.websvccommon.wsfplugin.blast;
+
+import static org.gusdb.fgputil.FormatUtil.NL;
+
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.eupathdb.websvccommon.wsfplugin.EuPathServiceException;
+import org.gusdb.wdk.model.WdkModel;
+import org.gusdb.wdk.model.WdkModelException;
+import org.gusdb.wdk.model.record.RecordClass;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.gusdb.wsf.plugin.PluginResponse;
+import org.gusdb.wsf.plugin.PluginUserException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Formats multi-blast results from the service's "single-file-json" report
+ * (BLAST+ outfmt 15) instead of scraping the pairwise text report.
+ *
+ * The report is read as a stream: each hit is parsed, formatted and written to
+ * the response before the next is read, so memory use does not grow with the
+ * size of the report.  Hit IDs, scores, e-values and HSP coordinates are read
+ * directly from their JSON fields.  The summary line and alignment text are
+ * only built if those columns are requested; otherwise the (large) aligned
+ * sequences are skipped unread.  When built, they mimic the pairwise report so
+ * the result page renders them the same way.
+ */
+public class MultiBlastJsonResultFormatter extends NcbiBlastResultFormatter {
+
+  private static final Logger LOG = Logger.getLogger(MultiBlastJsonResultFormatter.class);
+
+  public static final String REPORT_FORMAT = "single-file-json";
+  public static final String REPORT_FILE_NAME = "report.json";
+
+  // residues per line of rendered alignment, as in the pairwise report
+  private static final int ALIGNMENT_LINE_LENGTH = 60;
+
+  // width of the description in rendered summary lines
+  private static final int SUMMARY_DESCRIPTION_LENGTH = 66;
+
+  // ID given by BLAST to sequences in databases built without -parse_seqids
+  private static final String LOCAL_ID_PREFIX = "gnl|BL_ORD_ID|";
+
+  private static class Hsp {
+    double bitScore;
+    long score;
+    double evalue;
+    long identity;
+    long positive;
+    long gaps;
+    long alignLength;
+    long queryFrom;
+    long queryTo;
+    long hitFrom;
+    long hitTo;
+    int queryFrame;
+    int hitFrame;
+    String queryStrand;
+    String hitStrand;
+    String querySeq;
+    String midline;
+    String hitSeq;
+  }
+
+  private static class Hit {
+    String id;
+    String accession;
+    String title;
+    long length;
+    List<Hsp> hsps = new ArrayList<>();
+  }
+
+  /**
+   * Report-level information, collected as the report is read, from which the
+   * response message is built
+   */
+  private static class ReportHeader {
+    String program = "";
+    String version = "";
+    String database = "";
+    String queryTitle = "";
+    long queryLength;
+    String searchMessage;
+    int hitCount;
+  }
+
+  /**
+   * Per-request state used while formatting hits
+   */
+  private static class FormatContext {
+    PluginResponse response;
+    String[] columns;
+    RecordClass recordClass;
+    String dbType;
+    WdkModel wdkModel;
+    boolean renderSummary;
+    boolean renderAlignment;
+    ReportHeader header;
+  }
+
+  @Override
+  public String getReportFormat() {
+    return REPORT_FORMAT;
+  }
+
+  @Override
+  public String getReportFileName() {
+    return REPORT_FILE_NAME;
+  }
+
+  @Override
+  public String formatResult(PluginResponse response, String[] orderedColumns, InputStream resultStream,
+      RecordClass recordClass, String dbType, WdkModel wdkModel) throws PluginUserException, PluginModelException {
+
+    FormatContext context = new FormatContext();
+    context.response = response;
+    context.columns = orderedColumns;
+    context.recordClass = recordClass;
+    context.dbType = dbType;
+    context.wdkModel = wdkModel;
+    context.renderSummary = Arrays.asList(orderedColumns).contains(COLUMN_SUMMARY);
+    context.renderAlignment = Arrays.asList(orderedColumns).contains(COLUMN_ALIGNMENT);
+    context.header = new ReportHeader();
+
+    try {
+      JsonStreamReader reader = new JsonStreamReader(resultStream);
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if (reader.nextName().equals("BlastOutput2")) {
+          reader.beginArray();
+          while (reader.hasNext()) {
+            readOutput(reader, context);
+          }
+          reader.endArray();
+        }
+        else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    }
+    catch (JSONException e) {
+      throw new EuPathServiceException("Unable to parse multi-blast JSON report", e);
+    }
+
+    LOG.debug("Formatted " + context.header.hitCount + " hits from multi-blast JSON report");
+    return buildMessage(context.header);
+  }
+
+  private void readOutput(JsonStreamReader reader, FormatContext context) throws PluginModelException, PluginUserException {
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals("report")) {
+        readReport(reader, context);
+      }
+      else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+  }
+
+  private void readReport(JsonStreamReader reader, FormatContext context) throws PluginModelException, PluginUserException {
+    ReportHeader header = context.header;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "program":
+          header.program = reader.nextString();
+          break;
+        case "version":
+          header.version = reader.nextString();
+          break;
+        case "search_target":
+          header.database = reader.nextObject().optString("db", "");
+          break;
+        case "results":
+          reader.beginObject();
+          while (reader.hasNext()) {
+            if (reader.nextName().equals("search")) {
+              readSearch(reader, context);
+            }
+            else {
+              reader.skipValue();
+            }
+          }
+          reader.endObject();
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+  }
+
+  private void readSearch(JsonStreamReader reader, FormatContext context) throws PluginModelException, PluginUserException {
+    ReportHeader header = context.header;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "query_title":
+          header.queryTitle = reader.nextString();
+          break;
+        case "query_len":
+          header.queryLength = reader.nextLong();
+          break;
+        case "message":
+          header.searchMessage = reader.nextString();
+          break;
+        case "hits":
+          reader.beginArray();
+          while (reader.hasNext()) {
+            // each hit is written to the response before the next is read
+            processHit(readHit(reader, context.renderAlignment), context);
+            header.hitCount++;
+          }
+          reader.endArray();
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+  }
+
+  private static Hit readHit(JsonStreamReader reader, boolean readSequences) {
+    Hit hit = new Hit();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "description":
+          // first description is that of the hit sequence; others are identical sequences
+          JSONArray descriptions = (JSONArray)reader.nextValue();
+          JSONObject description = descriptions.getJSONObject(0);
+          hit.id = description.getString("id");
+          hit.accession = description.optString("accession", hit.id);
+          hit.title = description.optString("title", "");
+          break;
+        case "len":
+          hit.length = reader.nextLong();
+          break;
+        case "hsps":
+          reader.beginArray();
+          while (reader.hasNext()) {
+            hit.hsps.add(readHsp(reader, readSequences));
+          }
+          reader.endArray();
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return hit;
+  }
+
+  private static Hsp readHsp(JsonStreamReader reader, boolean readSequences) {
+    Hsp hsp = new Hsp();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      switch (name) {
+        case "bit_score": hsp.bitScore = reader.nextDouble(); break;
+        case "score": hsp.score = reader.nextLong(); break;
+        case "evalue": hsp.evalue = reader.nextDouble(); break;
+        case "identity": hsp.identity = reader.nextLong(); break;
+        case "positive": hsp.positive = reader.nextLong(); break;
+        case "gaps": hsp.gaps = reader.nextLong(); break;
+        case "align_len": hsp.alignLength = reader.nextLong(); break;
+        case "query_from": hsp.queryFrom = reader.nextLong(); break;
+        case "query_to": hsp.queryTo = reader.nextLong(); break;
+        case "hit_from": hsp.hitFrom = reader.nextLong(); break;
+        case "hit_to": hsp.hitTo = reader.nextLong(); break;
+        case "query_frame": hsp.queryFrame = (int)reader.nextLong(); break;
+        case "hit_frame": hsp.hitFrame = (int)reader.nextLong(); break;
+        case "query_strand": hsp.queryStrand = reader.nextString(); break;
+        case "hit_strand": hsp.hitStrand = reader.nextString(); break;
+        case "qseq":
+        case "midline":
+        case "hseq":
+          if (!readSequences) {
+            reader.skipValue();
+          }
+          else if (name.equals("qseq")) hsp.querySeq = reader.nextString();
+          else if (name.equals("midline")) hsp.midline = reader.nextString();
+          else hsp.hitSeq = reader.nextString();
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return hsp;
+  }
+
+  private void processHit(Hit hit, FormatContext context) throws PluginModelException, PluginUserException {
+    if (hit.hsps.isEmpty()) {
+      return;
+    }
+    try {
+      // sequences in databases built without parsed IDs have a local ID; their
+      //   whole defline is then in the title
+      String defline = ">" + (hit.id.startsWith(LOCAL_ID_PREFIX) ? hit.title : hit.accession + " " + hit.title).trim();
+
+      // the hit's first HSP is its best
+      Hsp best = hit.hsps.get(0);
+
+      int[] sourceIdLocation = findSourceId(defline);
+      if (sourceIdLocation == null) {
+        throw new EuPathServiceException("Unable to find source ID in multi-blast hit defline: " + defline);
+      }
+      String sourceId = getField(defline, sourceIdLocation);
+
+      // Note: Ortho does not have organism info in defline; null is the expected return value
+      int[] organismRange = findOrganism(defline);
+      String projectId = context.wdkModel.getProjectId().equals("OrthoMCL")
+          ? "OrthoMCL"
+          : organismRange == null
+          ? "none"
+          : getProject(getField(defline, organismRange)); // look up project ID by organism
+
+      String idUrl = (context.renderSummary || context.renderAlignment)
+          ? getIdUrl(context.recordClass, projectId, sourceId, defline) : null;
+
+      String evalue = formatEvalue(best.evalue);
+
+      String summary = context.renderSummary
+          ? renderSummary(defline, sourceIdLocation, sourceId, idUrl, best.bitScore, evalue) : null;
+
+      String alignment = context.renderAlignment
+          ? renderAlignment(hit, defline, sourceIdLocation, sourceId, idUrl, projectId, context) : null;
+
+      context.response.addRow(formatRow(context.columns, projectId, sourceId,
+          summary, alignment, evalue, (float)best.bitScore, defline));
+    }
+    catch (WdkModelException e) {
+      throw new EuPathServiceException(e);
+    }
+  }
+
+  private String renderSummary(String defline, int[] sourceIdLocation, String sourceId,
+      String idUrl, double bitScore, String evalue) {
+    // summary line of the pairwise report: description, bit score and e-value,
+    //   with links to the record page and the hit's alignment
+    String description = defline.substring(1);
+    int sourceIdEnd = sourceIdLocation[1] - 1;
+    if (description.length() > SUMMARY_DESCRIPTION_LENGTH) {
+      description = description.substring(0, SUMMARY_DESCRIPTION_LENGTH - 3) + "...";
+    }
+    String score = String.valueOf(Math.round(bitScore));
+    String line = String.format("%-" + SUMMARY_DESCRIPTION_LENGTH + "s  %6s  %s", description, score, evalue);
+    int scoreStart = SUMMARY_DESCRIPTION_LENGTH + 2 + (6 - Math.min(6, score.length()));
+    line = insertUrl(line, new int[] { scoreStart, scoreStart + score.length() }, "#" + sourceId);
+    return sourceIdEnd <= description.length()
+        ? insertUrl(line, new int[] { sourceIdLocation[0] - 1, sourceIdEnd }, idUrl)
+        : line;
+  }
+
+  private String renderAlignment(Hit hit, String defline, int[] sourceIdLocation, String sourceId,
+      String idUrl, String projectId, FormatContext context) throws WdkModelException {
+    StringBuilder alignment = new StringBuilder()
+      .append(insertUrl(defline, sourceIdLocation, idUrl, sourceId)).append(NL)
+      .append("Length=").append(hit.length).append(NL);
+
+    boolean isGenome = DB_TYPE_GENOME.equals(context.dbType);
+    int queryStep = isTranslated(context.header.program, true) ? 3 : 1;
+    int hitStep = isTranslated(context.header.program, false) ? 3 : 1;
+
+    for (Hsp hsp : hit.hsps) {
+      alignment.append(NL);
+      if (isGenome) {
+        alignment.append("<a href=\"")
+          .append(getJbrowseUrl(context.wdkModel, projectId, sourceId,
+              Math.min(hsp.hitFrom, hsp.hitTo), Math.max(hsp.hitFrom, hsp.hitTo)))
+          .append("\"> <B><font color=\"red\">Link to Genome Browser</font></B></a>").append(NL);
+      }
+      alignment
+        .append(" Score = ").append(String.format("%.1f", hsp.bitScore)).append(" bits (").append(hsp.score)
+        .append("),  Expect = ").append(formatEvalue(hsp.evalue)).append(NL)
+        .append(" Identities = ").append(fraction(hsp.identity, hsp.alignLength));
+      if (hsp.positive > 0 && hsp.positive != hsp.identity) {
+        alignment.append(", Positives = ").append(fraction(hsp.positive, hsp.alignLength));
+      }
+      alignment.append(", Gaps = ").append(fraction(hsp.gaps, hsp.alignLength)).append(NL);
+      if (hsp.queryStrand != null && hsp.hitStrand != null) {
+        alignment.append(" Strand=").append(hsp.queryStrand).append("/").append(hsp.hitStrand).append(NL);
+      }
+      else if (hsp.queryFrame != 0 || hsp.hitFrame != 0) {
+        alignment.append(" Frame = ").append(frameText(hsp.queryFrame, hsp.hitFrame)).append(NL);
+      }
+      alignment.append(NL);
+      appendAlignedSequences(alignment, hsp, queryStep, hitStep);
+    }
+    return alignment.toString();
+  }
+
+  private static void appendAlignedSequences(StringBuilder out, Hsp hsp, int queryStep, int hitStep) {
+    if (hsp.querySeq == null || hsp.hitSeq == null) {
+      return;
+    }
+    // coordinates run backwards on reverse strands and frames
+    long queryPos = hsp.queryFrame < 0 ? hsp.queryTo : hsp.queryFrom;
+    int queryDir = hsp.queryFrame < 0 || hsp.queryTo < hsp.queryFrom ? -1 : 1;
+    long hitPos = hsp.hitFrame < 0 ? Math.max(hsp.hitFrom, hsp.hitTo) : hsp.hitFrom;
+    int hitDir = hsp.hitFrame < 0 || hsp.hitTo < hsp.hitFrom ? -1 : 1;
+    int width = String.valueOf(Math.max(Math.max(hsp.queryFrom, hsp.queryTo), Math.max(hsp.hitFrom, hsp.hitTo))).length();
+    String midline = hsp.midline == null ? "" : hsp.midline;
+
+    for (int start = 0; start < hsp.querySeq.length(); start += ALIGNMENT_LINE_LENGTH) {
+      int end = Math.min(start + ALIGNMENT_LINE_LENGTH, hsp.querySeq.length());
+      String querySegment = hsp.querySeq.substring(start, end);
+      String hitSegment = hsp.hitSeq.substring(start, Math.min(end, hsp.hitSeq.length()));
+      String midSegment = start < midline.length() ? midline.substring(start, Math.min(end, midline.length())) : "";
+
+      long queryEnd = queryPos + queryDir * (residues(querySegment) * queryStep - 1);
+      long hitEnd = hitPos + hitDir * (residues(hitSegment) * hitStep - 1);
+
+      out.append(String.format("Query  %-" + width + "d  %s  %d", queryPos, querySegment, queryEnd)).append(NL)
+         .append(" ".repeat(width + 9)).append(midSegment).append(NL)
+         .append(String.format("Sbjct  %-" + width + "d  %s  %d", hitPos, hitSegment, hitEnd)).append(NL)
+         .append(NL);
+
+      queryPos = queryEnd + queryDir;
+      hitPos = hitEnd + hitDir;
+    }
+  }
+
+  private static int residues(String alignedSegment) {
+    int count = 0;
+    for (int i = 0; i < alignedSegment.length(); i++) {
+      if (alignedSegment.charAt(i) != '-') count++;
+    }
+    return count;
+  }
+
+  private static boolean isTranslated(String program, boolean isQuery) {
+    switch (program) {
+      case "blastx": return isQuery;
+      case "tblastn": return !isQuery;
+      case "tblastx": return true;
+      default: return false;
+    }
+  }
+
+  private static String frameText(int queryFrame, int hitFrame) {
+    String query = queryFrame > 0 ? "+" + queryFrame : String.valueOf(queryFrame);
+    String hit = hitFrame > 0 ? "+" + hitFrame : String.valueOf(hitFrame);
+    return queryFrame != 0 && hitFrame != 0 ? query + "/" + hit : queryFrame != 0 ? query : hit;
+  }
+
+  private static String fraction(long count, long total) {
+    long percent = total == 0 ? 0 : Math.round(100.0 * count / total);
+    return count + "/" + total + " (" + percent + "%)";
+  }
+
+  /**
+   * Formats an e-value as mantissa and exponent (e.g. 3.2e-45), the form
+   * expected by formatRow; zero is formatted as in the pairwise report.
+   */
+  private static String formatEvalue(double evalue) {
+    if (evalue <= 0) {
+      return "0.0";
+    }
+    int exponent = (int)Math.floor(Math.log10(evalue));
+    double mantissa = Math.round(evalue / Math.pow(10, exponent) * 10) / 10.0;
+    if (mantissa >= 10) {
+      mantissa /= 10;
+      exponent++;
+    }
+    return exponent == 0 ? String.valueOf(mantissa) : mantissa + "e" + exponent;
+  }
+
+  private static String buildMessage(ReportHeader header) {
+    StringBuilder message = new StringBuilder()
+      .append(header.version).append(NL).append(NL)
+      .append("Query= ").append(header.queryTitle).append(NL).append(NL)
+      .append("Length=").append(header.queryLength).append(NL).append(NL);
+    if (header.hitCount == 0) {
+      message.append(header.searchMessage == null ? "***** No hits found *****" : header.searchMessage).append(NL);
+    }
+    else {
+      message
+        .append(NL + MACRO_SUMMARY + NL + NL)
+        .append(NL + MACRO_ALIGNMENT + NL + NL);
+    }
+    // remove database full paths from result display
+    List<String> databases = new ArrayList<>();
+    for (String database : header.database.split("\\s+")) {
+      if (!database.isBlank()) {
+        databases.add(Paths.get(database).getFileName().toString());
+      }
+    }
+    return message
+      .append(NL).append(DB_LINES_START_GREP).append(NL)
+      .append(String.join(";" + NL, databases)).append(NL)
+      .toString();
+  }
+}
@@ -0,0 +1,283 @@
+package org.eupathdb.websvccommon.wsfplugin.blast;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastJobConfig.Target;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Supports scatter-gather execution of multi-blast searches over many
+ * organisms: a new job request is split into several requests over disjoint
+ * subsets of its targets, and the single-file-json reports of the resulting
+ * jobs are merged into one report as if a single job had been run.
+ *
+ * BLAST e-values grow in proportion to the size of the database searched, so
+ * each sub-report's e-values are scaled by the ratio of the total size of all
+ * searched databases to the size of that sub-report's databases before the
+ * user's e-value cutoff is applied.  Bit scores do not depend on database size
+ * and are left as is.  Since e-values are then computed against the same
+ * total size, ordering hits by e-value matches ordering by bit score.  The
+ * scaling ignores BLAST's per-search length adjustments, so merged e-values
+ * are close to, but not exactly, those of a single job.
+ *
+ * Reports are merged as streams, holding only the current hit of each.
+ */
+public class MultiBlastReportMerger {
+
+  private static final Logger LOG = Logger.getLogger(MultiBlastReportMerger.class);
+
+  /**
+   * Splits a job into jobs over disjoint, contiguous subsets of its targets.
+   * Jobs with too few targets to give each sub-job the minimum are not split.
+   *
+   * @param jobConfig job to split
+   * @param maxJobs maximum number of jobs to split into
+   * @param minTargetsPerJob minimum number of targets searched by each job
+   * @return jobs, each a copy of the original with a subset of targets
+   */
+  public static List<MultiBlastJobConfig> scatter(MultiBlastJobConfig jobConfig, int maxJobs, int minTargetsPerJob) {
+    List<Target> targets = jobConfig.getTargets();
+    int numJobs = Math.min(maxJobs, targets.size() / Math.max(1, minTargetsPerJob));
+    if (numJobs <= 1) {
+      return List.of(jobConfig);
+    }
+    List<MultiBlastJobConfig> jobConfigs = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i < numJobs; i++) {
+      // spread any remainder over the first jobs
+      int end = start + targets.size() / numJobs + (i < targets.size() % numJobs ? 1 : 0);
+      jobConfigs.add(jobConfig.withTargets(targets.subList(start, end)));
+      start = end;
+    }
+    LOG.info("Split multi-blast request over " + targets.size() + " targets into " + numJobs + " jobs");
+    return jobConfigs;
+  }
+
+  /**
+   * Report-level values of a single-file-json report
+   */
+  private static class ReportSummary {
+    String program = "";
+    String version = "";
+    String database = "";
+    String queryTitle = "";
+    long queryLength;
+    long dbNum;
+    long dbLength;
+  }
+
+  /**
+   * Reads the hits of one report in order
+   */
+  private static class HitCursor implements AutoCloseable {
+
+    private final InputStream _in;
+    private final JsonStreamReader _reader;
+    private final double _evalueFactor;
+    private boolean _hasHits;
+    private JSONObject _current;
+
+    HitCursor(Path report, double evalueFactor) throws IOException {
+      _in = new BufferedInputStream(Files.newInputStream(report));
+      _reader = new JsonStreamReader(_in);
+      _evalueFactor = evalueFactor;
+      _hasHits = seekHits(_reader);
+      advance();
+    }
+
+    JSONObject current() { return _current; }
+
+    double bestEvalue() { return _current.getJSONArray("hsps").getJSONObject(0).getDouble("evalue"); }
+
+    double bestBitScore() { return _current.getJSONArray("hsps").getJSONObject(0).getDouble("bit_score"); }
+
+    void advance() {
+      _current = null;
+      if (_hasHits && _reader.hasNext()) {
+        _current = _reader.nextObject();
+        JSONArray hsps = _current.optJSONArray("hsps");
+        if (hsps == null || hsps.isEmpty()) {
+          // hits without HSPs cannot be ranked or formatted
+          advance();
+          return;
+        }
+        for (int i = 0; i < hsps.length(); i++) {
+          JSONObject hsp = hsps.getJSONObject(i);
+          hsp.put("evalue", hsp.getDouble("evalue") * _evalueFactor);
+        }
+      }
+      else {
+        _hasHits = false;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      _in.close();
+    }
+  }
+
+  /**
+   * Merges single-file-json reports of jobs over disjoint targets into one
+   * single-file-json report.
+   *
+   * @param reports reports to merge
+   * @param evalueCutoff maximum (scaled) e-value of hits to keep
+   * @param maxTargetSeqs maximum number of hits to keep
+   * @param out stream to which merged report is written
+   * @return number of hits written
+   * @throws IOException if unable to read a report or write the result
+   */
+  public static int merge(List<Path> reports, double evalueCutoff, int maxTargetSeqs, OutputStream out) throws IOException {
+    try {
+      // first pass: read database sizes (stats follow the hits, so skip them)
+      List<ReportSummary> summaries = new ArrayList<>();
+      long totalDbLength = 0, totalDbNum = 0;
+      StringBuilder databases = new StringBuilder();
+      for (Path report : reports) {
+        ReportSummary summary = readSummary(report);
+        summaries.add(summary);
+        totalDbLength += summary.dbLength;
+        totalDbNum += summary.dbNum;
+        databases.append(databases.length() == 0 ? "" : " ").append(summary.database);
+      }
+
+      // second pass: k-way merge of the hits by scaled e-value, then bit score
+      PriorityQueue<HitCursor> queue = new PriorityQueue<>(Math.max(1, reports.size()),
+          Comparator.comparingDouble(HitCursor::bestEvalue)
+            .thenComparing(Comparator.comparingDouble(HitCursor::bestBitScore).reversed()));
+      List<HitCursor> cursors = new ArrayList<>();
+      int hitCount = 0;
+      try {
+        for (int i = 0; i < reports.size(); i++) {
+          long dbLength = summaries.get(i).dbLength;
+          HitCursor cursor = new HitCursor(reports.get(i), dbLength > 0 ? (double)totalDbLength / dbLength : 1);
+          cursors.add(cursor);
+          if (cursor.current() != null) queue.add(cursor);
+        }
+
+        ReportSummary first = summaries.isEmpty() ? new ReportSummary() : summaries.get(0);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.write("{\"BlastOutput2\":[{\"report\":{" +
+            "\"program\":" + JSONObject.quote(first.program) + "," +
+            "\"version\":" + JSONObject.quote(first.version) + "," +
+            "\"search_target\":{\"db\":" + JSONObject.quote(databases.toString()) + "}," +
+            "\"results\":{\"search\":{" +
+            "\"query_title\":" + JSONObject.quote(first.queryTitle) + "," +
+            "\"query_len\":" + first.queryLength + "," +
+            "\"hits\":[");
+
+        while (!queue.isEmpty() && hitCount < maxTargetSeqs) {
+          HitCursor cursor = queue.poll();
+          if (cursor.bestEvalue() > evalueCutoff) {
+            // hits are taken in scaled e-value order, so none of the rest can pass
+            break;
+          }
+          if (hitCount > 0) writer.write(',');
+          writer.write(cursor.current().put("num", ++hitCount).toString());
+          cursor.advance();
+          if (cursor.current() != null) queue.add(cursor);
+        }
+
+        writer.write("],\"stat\":{\"db_num\":" + totalDbNum + ",\"db_len\":" + totalDbLength + "}}}}}]}");
+        writer.flush();
+      }
+      finally {
+        for (HitCursor cursor : cursors) cursor.close();
+      }
+      LOG.info("Merged " + reports.size() + " multi-blast reports into " + hitCount + " hits");
+      return hitCount;
+    }
+    catch (JSONException e) {
+      throw new IOException("Unable to merge multi-blast JSON reports", e);
+    }
+  }
+
+  private static ReportSummary readSummary(Path report) throws IOException {
+    ReportSummary summary = new ReportSummary();
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(report))) {
+      JsonStreamReader reader = new JsonStreamReader(in);
+      if (!seekReport(reader)) {
+        return summary;
+      }
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "program": summary.program = reader.nextString(); break;
+          case "version": summary.version = reader.nextString(); break;
+          case "search_target": summary.database = reader.nextObject().optString("db", ""); break;
+          case "results":
+            reader.beginObject();
+            if (seekName(reader, "search")) {
+              reader.beginObject();
+              while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                  case "query_title": summary.queryTitle = reader.nextString(); break;
+                  case "query_len": summary.queryLength = reader.nextLong(); break;
+                  case "stat":
+                    JSONObject stat = reader.nextObject();
+                    summary.dbNum = stat.optLong("db_num");
+                    summary.dbLength = stat.optLong("db_len");
+                    break;
+                  default: reader.skipValue();
+                }
+              }
+            }
+            // rest of the document is not needed
+            return summary;
+          default:
+            reader.skipValue();
+        }
+      }
+      return summary;
+    }
+  }
+
+  // positions the reader inside the first report object
+  private static boolean seekReport(JsonStreamReader reader) {
+    reader.beginObject();
+    if (!seekName(reader, "BlastOutput2")) return false;
+    reader.beginArray();
+    if (!reader.hasNext()) return false;
+    reader.beginObject();
+    if (!seekName(reader, "report")) return false;
+    reader.beginObject();
+    return true;
+  }
+
+  // positions the reader inside the hits array of the first report
+  private static boolean seekHits(JsonStreamReader reader) {
+    if (!seekReport(reader) || !seekName(reader, "results")) return false;
+    reader.beginObject();
+    if (!seekName(reader, "search")) return false;
+    reader.beginObject();
+    if (!seekName(reader, "hits")) return false;
+    reader.beginArray();
+    return true;
+  }
+
+  private static boolean seekName(JsonStreamReader reader, String name) {
+    while (reader.hasNext()) {
+      if (reader.nextName().equals(name)) {
+        return true;
+      }
+      reader.skipValue();
+    }
+    return false;
+  }
+}
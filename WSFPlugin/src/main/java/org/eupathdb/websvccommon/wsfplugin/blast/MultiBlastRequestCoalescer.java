@@ -0,0 +1,389 @@
+package org.eupathdb.websvccommon.wsfplugin.blast;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import org.apache.log4j.Logger;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastJobTracker.CompletedJob;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Coalesces concurrent, identical multi-blast requests so they share a single
+ * job/report lifecycle and a single report download.
+ *
+ * Requests join a Flight keyed by a hash of their canonical job request and
+ * the requesting user; jobs belong to the user whose authentication created
+ * them, so requests of different users are never coalesced.  The first
+ * request to join starts the lifecycle; later requests wait on the same
+ * future.  The first request to open the completed report streams it from the
+ * service (writing a copy to a temporary file as it reads); the others read
+ * that copy once the download finishes.  Each request still formats its own
+ * response.
+ *
+ * When the last request closes a flight whose lifecycle is still running
+ * (e.g. because it gave up waiting), the lifecycle keeps running for a while
+ * so a retried request can rejoin it.  The flight and its report copy are
+ * discarded once it has no requests and its lifecycle is complete or that
+ * time has passed.
+ */
+public class MultiBlastRequestCoalescer {
+
+  private static final Logger LOG = Logger.getLogger(MultiBlastRequestCoalescer.class);
+
+  private static final MultiBlastRequestCoalescer INSTANCE = new MultiBlastRequestCoalescer();
+
+  public static MultiBlastRequestCoalescer getInstance() {
+    return INSTANCE;
+  }
+
+  @FunctionalInterface
+  public interface ReportOpener {
+    InputStream open() throws PluginModelException;
+  }
+
+  /**
+   * A job/report lifecycle shared by all requests with the same key.  Each
+   * request that joins a flight must close it when done.
+   */
+  public class Flight implements AutoCloseable {
+
+    private final String _key;
+    private final CompletableFuture<CompletedJob> _job;
+    private final long _abandonTimeoutMillis;
+
+    // guarded by the coalescer
+    private int _participants = 0;
+    private boolean _isStale = false;
+    private boolean _isDiscarded = false;
+    private CompletableFuture<File> _reportCopy;
+
+    private Flight(String key, CompletableFuture<CompletedJob> job, long abandonTimeoutMillis) {
+      _key = key;
+      _job = job;
+      _abandonTimeoutMillis = abandonTimeoutMillis;
+    }
+
+    /**
+     * @return key of the requests sharing this flight
+     */
+    public String getKey() {
+      return _key;
+    }
+
+    /**
+     * @return future completed with the IDs of the job and completed report
+     */
+    public CompletableFuture<CompletedJob> getJob() {
+      return _job;
+    }
+
+    /**
+     * Marks this flight's result as unusable (e.g. its report has expired) so
+     * subsequent joins start a new lifecycle instead of joining this one.
+     */
+    public void markStale() {
+      synchronized (MultiBlastRequestCoalescer.this) {
+        _isStale = true;
+      }
+    }
+
+    /**
+     * Opens the completed report.  The first caller receives a stream of the
+     * service response; others receive a stream of the shared copy once the
+     * first download is complete, or a stream of the service response if that
+     * download failed or does not complete within the passed wait.
+     *
+     * @param opener opens a new stream of the report from the service
+     * @param maxWaitMillis how long to wait for another request's download
+     * @return report stream; caller must close
+     * @throws PluginModelException if unable to open report
+     */
+    public InputStream openReport(ReportOpener opener, long maxWaitMillis) throws PluginModelException {
+      CompletableFuture<File> reportCopy;
+      boolean isDownloader = false;
+      synchronized (MultiBlastRequestCoalescer.this) {
+        if (_reportCopy == null) {
+          _reportCopy = new CompletableFuture<>();
+          isDownloader = true;
+        }
+        reportCopy = _reportCopy;
+      }
+
+      if (isDownloader) {
+        try {
+          File copy = File.createTempFile("multiblast-report-", ".tmp");
+          return new CopyingInputStream(opener.open(), copy, reportCopy);
+        }
+        catch (IOException | PluginModelException | RuntimeException e) {
+          reportCopy.completeExceptionally(e);
+          if (e instanceof PluginModelException) throw (PluginModelException)e;
+          if (e instanceof RuntimeException) throw (RuntimeException)e;
+          throw new PluginModelException("Unable to create shared report file", e);
+        }
+      }
+
+      try {
+        File copy = reportCopy.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+        LOG.info("Reading report for flight " + _key + " from shared copy " + copy);
+        return new FileInputStream(copy);
+      }
+      catch (ExecutionException | IOException e) {
+        // shared download failed; fetch our own copy
+        LOG.warn("Shared report download failed for flight " + _key + "; downloading again", e);
+        return opener.open();
+      }
+      catch (TimeoutException e) {
+        // shared download is slow (or its reader stalled); fetch our own copy
+        LOG.warn("Shared report download for flight " + _key + " did not complete within " +
+            maxWaitMillis + "ms; downloading again");
+        return opener.open();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new PluginModelException("Interrupted while waiting for shared report download", e);
+      }
+    }
+
+    @Override
+    public void close() {
+      release(this);
+    }
+  }
+
+  private final Map<String, Flight> _flights = new HashMap<>();
+
+  /**
+   * Joins the in-progress flight for the passed key, or starts a new one if
+   * none exists (or the existing one failed or is stale).
+   *
+   * @param key key of identical requests
+   * @param lifecycleStarter starts a new job lifecycle
+   * @param abandonTimeoutMillis how long a new flight's lifecycle keeps
+   * running after its last request leaves
+   * @return flight for the passed key; caller must close
+   */
+  public synchronized Flight join(String key, Supplier<CompletableFuture<CompletedJob>> lifecycleStarter,
+      long abandonTimeoutMillis) {
+    Flight flight = _flights.get(key);
+    if (flight == null || flight._isStale || flight._job.isCompletedExceptionally()) {
+      flight = new Flight(key, lifecycleStarter.get(), abandonTimeoutMillis);
+      _flights.put(key, flight);
+    }
+    else {
+      LOG.info("Joining in-flight multi-blast request " + key + " (" + flight._participants + " other waiters)");
+    }
+    flight._participants++;
+    return flight;
+  }
+
+  private synchronized void release(Flight flight) {
+    if (--flight._participants > 0) {
+      return;
+    }
+    if (!flight._job.isDone() && flight._abandonTimeoutMillis > 0) {
+      // keep lifecycle running so a retried request can rejoin it
+      LOG.info("Detaching from multi-blast request " + flight._key + "; lifecycle continues for up to " +
+          flight._abandonTimeoutMillis + "ms");
+      flight._job.whenComplete((job, exception) -> discardIfAbandoned(flight));
+      CompletableFuture.delayedExecutor(flight._abandonTimeoutMillis, TimeUnit.MILLISECONDS)
+        .execute(() -> discardIfAbandoned(flight));
+      return;
+    }
+    discard(flight);
+  }
+
+  private synchronized void discardIfAbandoned(Flight flight) {
+    if (flight._participants == 0) {
+      discard(flight);
+    }
+  }
+
+  private void discard(Flight flight) {
+    if (flight._isDiscarded) {
+      return;
+    }
+    flight._isDiscarded = true;
+    // abandon lifecycle if still running and discard shared copy
+    flight._job.cancel(false);
+    if (_flights.get(flight._key) == flight) {
+      _flights.remove(flight._key);
+    }
+    if (flight._reportCopy != null) {
+      flight._reportCopy.thenAccept(copy -> {
+        if (!copy.delete()) {
+          LOG.warn("Unable to delete shared report copy " + copy);
+        }
+      });
+    }
+  }
+
+  /**
+   * Computes a key for a new job request which is identical for requests by
+   * the same user with identical content, regardless of JSON property order.
+   *
+   * @param newJobRequestJson job request sent to the multi-blast service
+   * @param userId ID of the user on whose behalf the job is requested
+   * @param reportFormat format of the report requested for the job
+   * @return key for the request
+   */
+  public static String getKey(JSONObject newJobRequestJson, long userId, String reportFormat) {
+    return toDigest(userId + "\n" + reportFormat + '\n' + toCanonicalString(newJobRequestJson));
+  }
+
+  /**
+   * @param value value to digest
+   * @return hex SHA-256 digest of the passed value, for use as a short key
+   */
+  static String toDigest(String value) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256")
+          .digest(value.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 must be supported by the JVM", e);
+    }
+  }
+
+  /**
+   * @param json JSON to serialize
+   * @return serialization of the passed JSON with object properties in name order
+   */
+  static String toCanonicalString(JSONObject json) {
+    StringBuilder canonical = new StringBuilder();
+    appendCanonical(canonical, json);
+    return canonical.toString();
+  }
+
+  private static void appendCanonical(StringBuilder out, Object json) {
+    if (json instanceof JSONObject) {
+      JSONObject obj = (JSONObject)json;
+      out.append('{');
+      boolean first = true;
+      for (String key : new TreeSet<>(obj.keySet())) {
+        if (!first) out.append(',');
+        first = false;
+        out.append(JSONObject.quote(key)).append(':');
+        appendCanonical(out, obj.get(key));
+      }
+      out.append('}');
+    }
+    else if (json instanceof JSONArray) {
+      JSONArray array = (JSONArray)json;
+      out.append('[');
+      for (int i = 0; i < array.length(); i++) {
+        if (i > 0) out.append(',');
+        appendCanonical(out, array.get(i));
+      }
+      out.append(']');
+    }
+    else if (json instanceof String) {
+      out.append(JSONObject.quote((String)json));
+    }
+    else {
+      out.append(String.valueOf(json));
+    }
+  }
+
+  /**
+   * Passes through a report stream while writing a copy of it to a file.  The
+   * copy is published only if the stream is read to its end.
+   */
+  private static class CopyingInputStream extends FilterInputStream {
+
+    // formatters may read the report a byte at a time
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final File _copy;
+    private final OutputStream _copyOut;
+    private final CompletableFuture<File> _published;
+    private boolean _reachedEnd = false;
+    private boolean _closed = false;
+
+    public CopyingInputStream(InputStream in, File copy, CompletableFuture<File> published) throws IOException {
+      super(in);
+      _copy = copy;
+      _copyOut = new BufferedOutputStream(new FileOutputStream(copy), COPY_BUFFER_SIZE);
+      _published = published;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b == -1) _reachedEnd = true;
+      else _copyOut.write(b);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+      int count = super.read(buf, off, len);
+      if (count == -1) _reachedEnd = true;
+      else _copyOut.write(buf, off, count);
+      return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // skipped bytes must still be copied
+      byte[] buf = new byte[(int)Math.min(n, 8192)];
+      int count = read(buf, 0, buf.length);
+      return Math.max(0, count);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (_closed) return;
+      _closed = true;
+      try {
+        super.close();
+      }
+      finally {
+        // closing flushes the buffered copy, so must succeed before it is published
+        IOException copyError = null;
+        try {
+          _copyOut.close();
+        }
+        catch (IOException e) {
+          copyError = e;
+        }
+        if (_reachedEnd && copyError == null) {
+          _published.complete(_copy);
+        }
+        else {
+          _copy.delete();
+          _published.completeExceptionally(copyError != null ? copyError :
+              new IOException("Report stream closed before end was reached"));
+        }
+      }
+    }
+  }
+}
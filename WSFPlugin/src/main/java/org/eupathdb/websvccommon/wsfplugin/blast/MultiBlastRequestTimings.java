@@ -0,0 +1,178 @@
+package org.eupathdb.websvccommon.wsfplugin.blast;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.eupathdb.websvccommon.wsfplugin.DelegatingPluginResponse;
+import org.eupathdb.websvccommon.wsfplugin.MetricsRegistry;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastJobTracker.CompletedJob;
+import org.eupathdb.websvccommon.wsfplugin.blast.QuerySequenceNormalizer.Statistics;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.gusdb.wsf.plugin.PluginResponse;
+import org.gusdb.wsf.plugin.PluginUserException;
+
+/**
+ * Breaks the time taken by one multi-blast plugin request down by phase:
+ * the job lifecycle phases reported by the tracker (submit, queue, run,
+ * report), the total wait for the lifecycle, the report download (time spent
+ * reading the report stream, and bytes read), merging of scattered reports,
+ * and formatting (time spent in the formatter other than reading).  The size
+ * of the query is kept alongside, since it largely determines how long the
+ * job runs.  Each request's timings are added to histograms in the MetricsRegistry, which
+ * are logged periodically.
+ */
+class MultiBlastRequestTimings {
+
+  private static final Logger LOG = Logger.getLogger(MultiBlastRequestTimings.class);
+
+  private static final String METRIC_PREFIX = "multiblast.";
+
+  // histograms are logged each time this many more requests complete
+  private static final long REQUESTS_PER_LOG = 100;
+
+  private static final AtomicLong REQUEST_COUNT = new AtomicLong();
+
+  /**
+   * Records the phases of a lifecycle that just completed.  Called once per
+   * lifecycle, however many requests shared it.
+   *
+   * @param job completed job
+   */
+  static void recordLifecycle(CompletedJob job) {
+    job.getPhaseMillis().forEach((phase, millis) ->
+        MetricsRegistry.getInstance().histogram(METRIC_PREFIX + phase + "Millis").record(millis));
+  }
+
+  private final long _start = System.currentTimeMillis();
+  private final Map<String, Long> _phaseMillis = new TreeMap<>();
+  private final AtomicLong _readNanos = new AtomicLong();
+  private final AtomicLong _bytesRead = new AtomicLong();
+  private final AtomicInteger _rows = new AtomicInteger();
+  private long _waitMillis;
+  private long _mergeMillis;
+  private long _formatMillis;
+  private long _formatStart;
+  private long _readNanosAtFormatStart;
+  private Optional<Statistics> _queryStatistics = Optional.empty();
+
+  /**
+   * @param queryStatistics size of the request's query sequence, if known
+   */
+  void queryParsed(Optional<Statistics> queryStatistics) {
+    _queryStatistics = queryStatistics;
+  }
+
+  /**
+   * Records that all jobs of the request are complete.  Where the request
+   * was scattered over several jobs, the longest of each phase is kept.
+   *
+   * @param jobs completed jobs
+   */
+  void jobsCompleted(List<CompletedJob> jobs) {
+    _waitMillis = System.currentTimeMillis() - _start;
+    for (CompletedJob job : jobs) {
+      job.getPhaseMillis().forEach((phase, millis) -> _phaseMillis.merge(phase, millis, Math::max));
+    }
+  }
+
+  /**
+   * @param in report stream
+   * @return stream that adds the time spent and bytes read to this request's download
+   */
+  InputStream timeReads(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        long start = System.nanoTime();
+        int b = super.read();
+        _readNanos.addAndGet(System.nanoTime() - start);
+        if (b != -1) _bytesRead.incrementAndGet();
+        return b;
+      }
+
+      @Override
+      public int read(byte[] buf, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        int count = super.read(buf, off, len);
+        _readNanos.addAndGet(System.nanoTime() - start);
+        if (count > 0) _bytesRead.addAndGet(count);
+        return count;
+      }
+    };
+  }
+
+  /**
+   * @param response plugin response
+   * @return response that counts the rows added to it
+   */
+  PluginResponse countRows(PluginResponse response) {
+    return new DelegatingPluginResponse(response) {
+      @Override
+      public void addRow(String[] row) throws PluginModelException, PluginUserException {
+        _rows.incrementAndGet();
+        super.addRow(row);
+      }
+    };
+  }
+
+  void mergeCompleted(long mergeMillis) {
+    _mergeMillis = mergeMillis;
+  }
+
+  void formatStarted() {
+    _formatStart = System.currentTimeMillis();
+    _readNanosAtFormatStart = _readNanos.get();
+  }
+
+  void formatCompleted() {
+    long readMillis = (_readNanos.get() - _readNanosAtFormatStart) / 1000000;
+    _formatMillis = Math.max(0, System.currentTimeMillis() - _formatStart - readMillis);
+  }
+
+  /**
+   * @return one-line summary of this request's timings
+   */
+  String getSummary() {
+    StringBuilder summary = new StringBuilder("multi-blast timings (ms):");
+    _queryStatistics.ifPresent(stats -> summary.append(" queryResidues=").append(stats.getResidueCount()).append(';'));
+    if (_phaseMillis.isEmpty()) {
+      summary.append(" reused completed job;");
+    }
+    _phaseMillis.forEach((phase, millis) -> summary.append(' ').append(phase).append('=').append(millis));
+    summary.append(" wait=").append(_waitMillis)
+      .append(" download=").append(_readNanos.get() / 1000000).append(" (").append(_bytesRead.get()).append(" bytes)");
+    if (_mergeMillis > 0) {
+      summary.append(" merge=").append(_mergeMillis);
+    }
+    return summary.append(" format=").append(_formatMillis)
+      .append(" rows=").append(_rows.get())
+      .append(" total=").append(System.currentTimeMillis() - _start)
+      .toString();
+  }
+
+  /**
+   * Adds this request's timings to the registry's histograms.
+   */
+  void record() {
+    MetricsRegistry metrics = MetricsRegistry.getInstance();
+    _queryStatistics.ifPresent(stats -> metrics.histogram(METRIC_PREFIX + "queryResidues").record(stats.getResidueCount()));
+    metrics.histogram(METRIC_PREFIX + "waitMillis").record(_waitMillis);
+    metrics.histogram(METRIC_PREFIX + "downloadMillis").record(_readNanos.get() / 1000000);
+    metrics.histogram(METRIC_PREFIX + "downloadBytes").record(_bytesRead.get());
+    metrics.histogram(METRIC_PREFIX + "formatMillis").record(_formatMillis);
+    metrics.histogram(METRIC_PREFIX + "rows").record(_rows.get());
+    metrics.histogram(METRIC_PREFIX + "totalMillis").record(System.currentTimeMillis() - _start);
+    if (REQUEST_COUNT.incrementAndGet() % REQUESTS_PER_LOG == 0) {
+      LOG.info("Multi-blast request metrics after " + REQUEST_COUNT.get() + " requests:\n" +
+          metrics.getSummary(METRIC_PREFIX));
+    }
+  }
+}
@@ -0,0 +1,647 @@
+package org.eupathdb.websvccommon.wsfplugin.blast;
+
+import static org.gusdb.fgputil.FormatUtil.NL;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response.Status.Family;
+
+import org.apache.log4j.Logger;
+import org.eupathdb.websvccommon.wsfplugin.CircuitBreaker;
+import org.eupathdb.websvccommon.wsfplugin.CircuitBreaker.Permit;
+import org.eupathdb.websvccommon.wsfplugin.HttpTransport;
+import org.eupathdb.websvccommon.wsfplugin.HttpTransport.RequestFailedException;
+import org.eupathdb.websvccommon.wsfplugin.HttpTransport.ServiceResponse;
+import org.eupathdb.websvccommon.wsfplugin.blast.AbstractMultiBlastServicePlugin.BlastServiceBadRequestException;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastJobTracker.StatusCheck;
+import org.gusdb.fgputil.FormatUtil;
+import org.gusdb.fgputil.MapBuilder;
+import org.gusdb.fgputil.Tuples.TwoTuple;
+import org.gusdb.fgputil.json.JsonUtil;
+import org.gusdb.fgputil.web.HttpMethod;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Makes requests to the multi-blast service's job and report endpoints on
+ * behalf of a single user.  Instances are immutable and may be used from any
+ * thread, which lets status checks run on shared tracker threads.
+ */
+public class MultiBlastServiceClient {
+
+  private static final Logger LOG = Logger.getLogger(MultiBlastServiceClient.class);
+
+  private static final String RETRY_AFTER_HEADER = "Retry-After";
+
+  private static final int MAX_REPORT_SIZE_BYTES = 90 /* megabytes */ * 1000 * 1000;
+
+  private static final String CONTENT_MAX_LENGTH_EXCEEDED_STATUS =
+    "bad-request";
+  private static final String CONTENT_MAX_LENGTH_EXCEEDED_MESSAGE =
+    "Requested report is larger than the specified max content size.";
+
+  public static final String REPORT_TOO_LARGE_MESSAGE =
+    "We're sorry, but we cannot handle BLAST results larger than " +
+    MAX_REPORT_SIZE_BYTES/1000000 + "MB. \nIf you see the option to download your result, you may do so. \nTo reduce the result size, you " +
+    "could decrease V=B or the Expectation value, turn on the Low " +
+    "Complexity filter, or decrease the number of target organisms selected.";
+
+  /**
+   * Thrown when a report can no longer be downloaded because the service has
+   * expired or removed it.  A new job must be run to regenerate it.
+   */
+  public static class ReportUnavailableException extends PluginModelException {
+    public ReportUnavailableException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Thrown while reading a report stream once more than the maximum report
+   * size has been read.
+   */
+  public static class ReportSizeExceededException extends IOException {
+    public ReportSizeExceededException() {
+      super("Multi-blast report exceeds " + MAX_REPORT_SIZE_BYTES + " bytes");
+    }
+  }
+
+  /**
+   * Thrown when the service rejects the user's authentication header.  A
+   * fresh header must be looked up before retrying.
+   */
+  public static class AuthHeaderRejectedException extends PluginModelException {
+    public AuthHeaderRejectedException(String message) {
+      super(message);
+    }
+  }
+
+  // recent status request durations are kept per service to decide when to hedge
+  private static final int STATUS_LATENCY_WINDOW = 100;
+  private static final int MIN_STATUS_LATENCY_SAMPLES = 20;
+  private static final Map<String, LatencyWindow> STATUS_LATENCIES = new ConcurrentHashMap<>();
+
+  // runs status requests that may be hedged, so the caller can stop waiting on a
+  //   slow one; sized for a primary and a hedged request from each of the job
+  //   tracker's I/O threads, beyond which requests wait in the queue
+  private static final int HEDGE_THREADS = 32;
+  private static final ExecutorService HEDGE_EXECUTOR = newHedgeExecutor();
+
+  private static ExecutorService newHedgeExecutor() {
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(HEDGE_THREADS, HEDGE_THREADS,
+        60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+      Thread thread = new Thread(runnable, "multiblast-status-request-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Durations of the most recent requests of one kind
+   */
+  private static class LatencyWindow {
+
+    private final long[] _durations = new long[STATUS_LATENCY_WINDOW];
+    private int _next = 0;
+    private int _recorded = 0;
+
+    synchronized void record(long durationMillis) {
+      _durations[_next] = durationMillis;
+      _next = (_next + 1) % _durations.length;
+      _recorded = Math.min(_recorded + 1, _durations.length);
+    }
+
+    synchronized Optional<Long> getPercentile(double percentile) {
+      if (_recorded < MIN_STATUS_LATENCY_SAMPLES) {
+        return Optional.empty();
+      }
+      long[] sorted = Arrays.copyOf(_durations, _recorded);
+      Arrays.sort(sorted);
+      return Optional.of(sorted[Math.min(_recorded - 1, (int)Math.ceil(percentile * _recorded) - 1)]);
+    }
+  }
+
+  private final String _serviceUrl;
+  private final TwoTuple<String,String> _authHeader;
+  private final HttpTransport _transport;
+  private final CircuitBreaker _breaker;
+  private final double _hedgePercentile;
+
+  /**
+   * @param serviceUrl blast service base URL
+   * @param authHeader authentication header of the requesting user
+   * @param transport transport over which to make requests
+   * @param breaker circuit breaker guarding calls to the service
+   * @param hedgePercentile percentile of recent status request durations
+   * after which a duplicate status request is made, or 0 to never do so
+   */
+  public MultiBlastServiceClient(String serviceUrl, TwoTuple<String,String> authHeader,
+      HttpTransport transport, CircuitBreaker breaker, double hedgePercentile) {
+    _serviceUrl = serviceUrl;
+    _authHeader = authHeader;
+    _transport = transport;
+    _breaker = breaker;
+    _hedgePercentile = hedgePercentile;
+  }
+
+  public String getServiceUrl() {
+    return _serviceUrl;
+  }
+
+  public TwoTuple<String,String> getAuthHeader() {
+    return _authHeader;
+  }
+
+  private Map<String,String> getHeaders() {
+    return new MapBuilder<String,String>(_authHeader).toMap();
+  }
+
+  private ServiceResponse request(String url, HttpMethod method, Optional<JSONObject> body,
+      Map<String,String> headers) throws PluginModelException {
+    Permit permit = _breaker.acquire();
+    long start = System.currentTimeMillis();
+    ServiceResponse response;
+    try {
+      response = _transport.request(url, method, body, headers);
+    }
+    catch (RequestFailedException e) {
+      // service could not be reached or did not respond in time
+      _breaker.record(permit, false, System.currentTimeMillis() - start);
+      throw e;
+    }
+    catch (PluginModelException | RuntimeException e) {
+      // failed before reaching the service (e.g. timed out waiting for a
+      //   request slot), which says nothing of its health
+      _breaker.release(permit);
+      throw e;
+    }
+    // client errors reflect the request, not the health of the service
+    _breaker.record(permit, response.getStatus() < 500, System.currentTimeMillis() - start);
+    if (response.getStatus() == 401) {
+      response.close();
+      throw new AuthHeaderRejectedException("Multi-blast service rejected " +
+          "authentication for " + method + " request to " + url);
+    }
+    return response;
+  }
+
+  /**
+   * Requests the status of a job or report.  Status requests are idempotent,
+   * so if hedging is enabled and a request takes longer than the configured
+   * percentile of recent status requests, a duplicate is sent and whichever
+   * response arrives first is used; the other is closed when it arrives.
+   */
+  private ServiceResponse requestStatus(String url) throws PluginModelException {
+    if (_hedgePercentile <= 0) {
+      return request(url, HttpMethod.GET, Optional.empty(), getHeaders());
+    }
+    LatencyWindow latencies = STATUS_LATENCIES.computeIfAbsent(_serviceUrl, u -> new LatencyWindow());
+    Optional<Long> hedgeDelay = latencies.getPercentile(_hedgePercentile);
+    if (hedgeDelay.isEmpty()) {
+      // not enough samples yet to know what is slow
+      long start = System.currentTimeMillis();
+      ServiceResponse response = request(url, HttpMethod.GET, Optional.empty(), getHeaders());
+      latencies.record(System.currentTimeMillis() - start);
+      return response;
+    }
+    CompletableFuture<ServiceResponse> primary = submitStatusRequest(url, latencies);
+    CompletableFuture<ServiceResponse> first = new CompletableFuture<>();
+    try {
+      try {
+        return primary.get(hedgeDelay.get(), TimeUnit.MILLISECONDS);
+      }
+      catch (TimeoutException e) {
+        LOG.info("Status request to " + url + " exceeded " + hedgeDelay.get() + "ms; sending hedged request");
+      }
+      CompletableFuture<ServiceResponse> hedge = submitStatusRequest(url, latencies);
+      AtomicInteger failures = new AtomicInteger();
+      for (CompletableFuture<ServiceResponse> attempt : List.of(primary, hedge)) {
+        attempt.whenComplete((response, exception) -> {
+          if (exception == null) {
+            if (!first.complete(response)) response.close();
+          }
+          else if (failures.incrementAndGet() == 2) {
+            first.completeExceptionally(exception);
+          }
+        });
+      }
+      return first.get();
+    }
+    catch (InterruptedException e) {
+      // release whichever response arrives, since no one will read it
+      primary.thenAccept(ServiceResponse::close);
+      first.thenAccept(ServiceResponse::close);
+      Thread.currentThread().interrupt();
+      throw new PluginModelException("Interrupted while requesting status at " + url, e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+      if (cause instanceof PluginModelException) throw (PluginModelException)cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      throw new PluginModelException(cause);
+    }
+  }
+
+  private CompletableFuture<ServiceResponse> submitStatusRequest(String url, LatencyWindow latencies) {
+    CompletableFuture<ServiceResponse> future = new CompletableFuture<>();
+    HEDGE_EXECUTOR.execute(() -> {
+      long start = System.currentTimeMillis();
+      try {
+        future.complete(request(url, HttpMethod.GET, Optional.empty(), getHeaders()));
+        latencies.record(System.currentTimeMillis() - start);
+      }
+      catch (Exception e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Makes a request to the multi-blast service to check the status of the job
+   * with the passed ID.  Returns whether job is complete or still running, along
+   * with any wait the service requested before the next check. If job status is
+   * "errored", throws a PluginModelException with the description.
+   *
+   * NOTE: If the job if found to be "expired", it will be rerun
+   *
+   * @param jobId job whose status to fetch
+   * @return status check indicating whether job is complete
+   * @throws PluginModelException if job has errored
+   */
+  public StatusCheck checkJobStatus(String jobId) throws PluginModelException {
+    String jobIdEndpointUrl = _serviceUrl + "/jobs/" + jobId;
+    LOG.info("Requesting multi-blast job status at " + jobIdEndpointUrl);
+
+    // make job status request
+    try (ServiceResponse jobStatusResponse = requestStatus(jobIdEndpointUrl)) {
+  
+      String responseBody = jobStatusResponse.readSmallBody();
+      if (jobStatusResponse.getStatus() != 200) {
+        throw new PluginModelException("Unexpected response from multi-blast " +
+            "service while checking job status (jobId=" + jobId + "): " +
+            jobStatusResponse.getStatus() + FormatUtil.NL + responseBody);
+      }
+  
+      // parse response and analyze
+      JSONObject responseObj = new JSONObject(responseBody);
+      Optional<Long> retryAfterMillis = PollingPolicy.parseRetryAfter(jobStatusResponse.getHeaderString(RETRY_AFTER_HEADER));
+      switch(responseObj.getString("status")) {
+        case "queued":
+          return new StatusCheck(false, retryAfterMillis, true);
+        case "in-progress":
+          return new StatusCheck(false, retryAfterMillis);
+        case "expired":
+          rerunJob(jobId);
+          return new StatusCheck(false, Optional.empty());
+        case "completed":
+          return new StatusCheck(true, Optional.empty());
+        case "errored":
+          throw new PluginModelException(
+            "Multi-blast service job failed: " + responseObj.getString("description"));
+        default:
+          throw new PluginModelException(
+            "Multi-blast service job status endpoint returned unrecognized status value: " + responseObj.getString("status"));
+      }
+    }
+    catch (IOException e) {
+      throw new PluginModelException("Unable to read response body from service response.", e);
+    }
+  }
+
+  /**
+   * Makes a request to the multi-blast service to check the status of the report
+   * with the passed ID.  Returns whether report is complete or still running, along
+   * with any wait the service requested before the next check. If report status is
+   * "errored", throws a PluginModelException with the description.
+   *
+   * NOTE: If the report if found to be "expired", it will be rerun
+   *
+   * @param reportId report whose status to fetch
+   * @return status check indicating whether report is complete
+   * @throws PluginModelException if report has errored
+   */
+  public StatusCheck checkReportStatus(String reportId) throws PluginModelException {
+    String reportIdEndpointUrl = _serviceUrl + "/reports/" + reportId;
+    LOG.info("Requesting multi-blast report status at " + reportIdEndpointUrl);
+
+    // make job status request
+    try (ServiceResponse reportStatusResponse = requestStatus(reportIdEndpointUrl)) {
+
+      String responseBody = reportStatusResponse.readSmallBody();
+      if (reportStatusResponse.getStatus() != 200) {
+        throw new PluginModelException("Unexpected response from multi-blast " +
+            "service while checking report status (reportId=" + reportId + "): " +
+            reportStatusResponse.getStatus() + FormatUtil.NL + responseBody);
+      }
+
+      // parse response and analyze
+      JSONObject responseObj = new JSONObject(responseBody);
+      Optional<Long> retryAfterMillis = PollingPolicy.parseRetryAfter(reportStatusResponse.getHeaderString(RETRY_AFTER_HEADER));
+      switch(responseObj.getString("status")) {
+        case "queued":
+        case "in-progress":
+          return new StatusCheck(false, retryAfterMillis);
+        case "expired":
+          rerunReport(reportId);
+          return new StatusCheck(false, Optional.empty());
+        case "completed":
+          return new StatusCheck(true, Optional.empty());
+        case "errored":
+          throw new PluginModelException(
+            "Multi-blast service report failed: " + responseObj.getString("description"));
+        default:
+          throw new PluginModelException(
+            "Multi-blast service report status endpoint returned unrecognized status value: " + responseObj.getString("status"));
+      }
+    }
+    catch (IOException e) {
+      throw new PluginModelException("Unable to read response body from service response.", e);
+    }
+  }
+
+  public String createJob(JSONObject newJobRequestBody) throws PluginModelException {
+    String jobsEndpointUrl = _serviceUrl + "/jobs";
+    LOG.info("Requesting new multi-blast job at " + jobsEndpointUrl + " with JSON body: " + newJobRequestBody.toString(2));
+
+    // make new job request
+    try (ServiceResponse newJobResponse = request(
+        jobsEndpointUrl, HttpMethod.POST, Optional.of(newJobRequestBody), getHeaders())) {
+
+      String responseBody = newJobResponse.readSmallBody();
+
+      if (newJobResponse.getStatus() == 200) {
+        // success!  return job ID
+        return new JSONObject(responseBody).getString("jobId");
+      }
+
+      if (Family.CLIENT_ERROR.equals(newJobResponse.getStatusInfo().getFamily())) {
+        // error implying bad parameters
+        throw new BlastServiceBadRequestException(
+            "Multi-Blast service job request returned " + newJobResponse.getStatus() + NL + responseBody);
+      }
+
+      // other error
+      throw new PluginModelException("Unexpected response from multi-blast " +
+          "service while requesting new job: " + newJobResponse.getStatus() + NL + responseBody);
+    }
+    catch (IOException e) {
+      throw new PluginModelException("Unable to read response body from service response.", e);
+    }
+  }
+
+  public String createReport(JSONObject newReportRequestBody) throws PluginModelException {
+    String reportsEndpointUrl = _serviceUrl + "/reports";
+    LOG.info("Requesting new multi-blast report at " + reportsEndpointUrl + " with JSON body: " + newReportRequestBody.toString(2));
+
+    // make new report request
+    try (ServiceResponse newReportResponse = request(
+        reportsEndpointUrl, HttpMethod.POST, Optional.of(newReportRequestBody), getHeaders())) {
+
+      String responseBody = newReportResponse.readSmallBody();
+
+      if (newReportResponse.getStatus() == 200) {
+        // success!  return report ID
+        return new JSONObject(responseBody).getString("reportID");
+      }
+
+      throw new PluginModelException("Unexpected response from multi-blast " +
+          "service while requesting new report: " + newReportResponse.getStatus() + NL + responseBody);
+    }
+    catch (IOException e) {
+      throw new PluginModelException("Unable to read response body from service response.", e);
+    }
+  }
+
+  /**
+   * Opens a stream of the completed report with the passed ID.  The report is
+   * requested compressed and decoded as it is read, so the caller can begin
+   * parsing as soon as the first bytes arrive.  Reading more than the maximum
+   * report size causes the stream to throw a ReportSizeExceededException.
+   *
+   * @param reportId completed report to download
+   * @param fileName name of the report file to download
+   * @return stream of report content; closing it releases the connection
+   * @throws ReportUnavailableException if the report has expired or is missing
+   * @throws PluginModelException if the service does not return the report
+   */
+  public InputStream openReport(String reportId, String fileName) throws PluginModelException {
+
+    // define request data
+    String downloadReportUrl = _serviceUrl + "/reports/" + reportId + "/files/" + fileName + "?download=false";
+
+    LOG.info("Requesting multi-blast report results at " + downloadReportUrl);
+
+    TwoTuple<String,String> contentMaxLengthHeader =
+      new TwoTuple<String, String>("Content-Max-Length", String.valueOf(MAX_REPORT_SIZE_BYTES));
+
+    // the service may still reject oversized reports up front; the limit is
+    //   also enforced below as the report is read
+    Map<String,String> headers = new MapBuilder<String,String>(_authHeader)
+      .put(contentMaxLengthHeader)
+      .put(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate")
+      .toMap();
+
+    // make job report request
+    ServiceResponse downloadReportResponse = request(
+        downloadReportUrl, HttpMethod.GET, Optional.empty(), headers);
+    try {
+
+      if (downloadReportResponse.getStatus() != 200) {
+        // error occurred; read entire body for error message
+        String responseBody = downloadReportResponse.readSmallBody();
+
+        if (isUnavailable(downloadReportResponse.getStatus(), responseBody)) {
+          throw new ReportUnavailableException("Multi-blast report " + reportId +
+              " is no longer available: " + downloadReportResponse.getStatus());
+        }
+
+        if (downloadReportResponse.getStatus() == 403) {
+          throw new PluginModelException("Multi-blast service denied access to report " +
+              reportId + ": " + responseBody);
+        }
+
+        JSONObject responseJson = new JSONObject(responseBody);
+
+        if (
+          JsonUtil.getStringOrDefault(responseJson, "status", "").equals(CONTENT_MAX_LENGTH_EXCEEDED_STATUS) &&
+          JsonUtil.getStringOrDefault(responseJson, "message", "").equals(CONTENT_MAX_LENGTH_EXCEEDED_MESSAGE)
+        ) {
+          throw new BlastServiceBadRequestException(REPORT_TOO_LARGE_MESSAGE);
+        }
+
+        throw new PluginModelException("Unexpected response from multi-blast " +
+            "service while fetching report results (reportId=" + reportId + "): " +
+            downloadReportResponse.getStatus() + FormatUtil.NL + responseBody);
+      }
+
+      // request appears to be successful; hand back decoded, size-limited
+      //   stream which closes the response
+      InputStream body = decode(downloadReportResponse.getBodyStream(),
+          downloadReportResponse.getHeaderString(HttpHeaders.CONTENT_ENCODING));
+      return new FilterInputStream(new SizeLimitedInputStream(body, MAX_REPORT_SIZE_BYTES)) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          }
+          finally {
+            downloadReportResponse.close();
+          }
+        }
+      };
+    }
+    catch (IOException e) {
+      downloadReportResponse.close();
+      throw new PluginModelException("Unable to read response body from service response.", e);
+    }
+    catch (PluginModelException | RuntimeException e) {
+      downloadReportResponse.close();
+      throw e;
+    }
+  }
+
+  private static InputStream decode(InputStream body, String contentEncoding) throws IOException {
+    String encoding = contentEncoding == null ? "identity" : contentEncoding.trim().toLowerCase();
+    switch (encoding) {
+      case "identity":
+      case "":
+        return body;
+      case "gzip":
+      case "x-gzip":
+        return new GZIPInputStream(body, 64 * 1024);
+      case "deflate":
+        return new InflaterInputStream(body);
+      default:
+        body.close();
+        throw new IOException("Unsupported content encoding in multi-blast report response: " + contentEncoding);
+    }
+  }
+
+  /**
+   * Counts bytes read through it and fails once more than a limit is read.
+   */
+  private static class SizeLimitedInputStream extends FilterInputStream {
+
+    private final long _limit;
+    private long _count = 0;
+
+    public SizeLimitedInputStream(InputStream in, long limit) {
+      super(in);
+      _limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) count(1);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+      int count = super.read(buf, off, len);
+      if (count > 0) count(count);
+      return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long count = super.skip(n);
+      count(count);
+      return count;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private void count(long bytesRead) throws ReportSizeExceededException {
+      _count += bytesRead;
+      if (_count > _limit) {
+        throw new ReportSizeExceededException();
+      }
+    }
+  }
+
+  // a 403 is not treated as unavailable: it means this user may not read the
+  //   report, which rerunning the request would not change
+  private static boolean isUnavailable(int status, String responseBody) {
+    switch (status) {
+      case 404:
+      case 410:
+        return true;
+      default:
+        try {
+          return new JSONObject(responseBody).optString("status").equals("expired");
+        }
+        catch (JSONException e) {
+          return false;
+        }
+    }
+  }
+
+  private void rerunJob(String jobId) throws PluginModelException {
+    String jobsIdEndpointUrl = _serviceUrl + "/jobs/" + jobId;
+    LOG.info("Rerunning expired multi-blast job at " + jobsIdEndpointUrl + " with job id " + jobId);
+
+    // make rerun job request
+    try (ServiceResponse rerunJobResponse = request(
+        jobsIdEndpointUrl, HttpMethod.POST, Optional.of(new JSONObject()), getHeaders())) {
+
+      String responseBody = rerunJobResponse.readSmallBody();
+
+      if (!rerunJobResponse.getStatusInfo().getFamily().equals(Family.SUCCESSFUL)) {
+        throw new PluginModelException("Unexpected response from multi-blast " +
+            "service while rerunning job: " + rerunJobResponse.getStatus() + NL + responseBody);
+      }
+    }
+    catch (IOException e) {
+      throw new PluginModelException("Unable to read response body from service response.", e);
+    }
+  }
+
+  private void rerunReport(String reportId) throws PluginModelException {
+    String reportsIdEndpointUrl = _serviceUrl + "/reports/" + reportId;
+    LOG.info("Rerunning expired multi-blast report at " + reportsIdEndpointUrl + " with report id " + reportId);
+
+    // make rerun report request
+    try (ServiceResponse rerunReportResponse = request(
+        reportsIdEndpointUrl, HttpMethod.POST, Optional.of(new JSONObject()), getHeaders())) {
+
+      String responseBody = rerunReportResponse.readSmallBody();
+
+      if (!rerunReportResponse.getStatusInfo().getFamily().equals(Family.SUCCESSFUL)) {
+        throw new PluginModelException("Unexpected response from multi-blast " +
+            "service while rerunning report: " + rerunReportResponse.getStatus() + NL + responseBody);
+      }
+    }
+    catch (IOException e) {
+      throw new PluginModelException("Unable to read response body from service response.", e);
+    }
+  }
+}
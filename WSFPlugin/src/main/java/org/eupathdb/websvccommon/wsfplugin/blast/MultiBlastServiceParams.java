@@ -1,12 +1,10 @@
 package org.eupathdb.websvccommon.wsfplugin.blast;
 
-import java.util.Arrays;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.gusdb.fgputil.FormatUtil;
 import org.gusdb.fgputil.FormatUtil.Style;
-import org.gusdb.fgputil.Tuples.TwoTuple;
 import org.gusdb.wsf.plugin.PluginUserException;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -73,6 +71,18 @@ public class MultiBlastServiceParams {
     };
   }
 
+  /**
+   * Parses the internal values of the WDK multiblast query params into a
+   * typed job config.
+   *
+   * @param params internal values of params
+   * @return job config described by the params
+   */
+  public static MultiBlastJobConfig buildJobConfig(Map<String, String> params) throws PluginUserException {
+    LOG.info("Converting the following param values to JSON: " + FormatUtil.prettyPrint(params, Style.MULTI_LINE));
+    return MultiBlastJobConfig.parse(params);
+  }
+
   /**
    * Converts the internal values of the WDK multiblast query params into
    * a JSON object passed to the multi-blast service to configure a new job for
@@ -82,72 +92,7 @@ public class MultiBlastServiceParams {
    * @return json object to be passed as "config" to multi-blast service
    */
   public static JSONObject buildNewJobRequestConfigJson(Map<String, String> params) throws PluginUserException {
-
-    LOG.info("Converting the following param values to JSON: " + FormatUtil.prettyPrint(params, Style.MULTI_LINE));
-
-    var requestConfig = buildBaseRequestConfig(params);
-
-    var selectedTool = getNormalizedParamValue(params, BLAST_ALGORITHM_PARAM_NAME);
-
-    var filterLowComplexityRegionsStr = getNormalizedParamValue(params, FILTER_LOW_COMPLEX_PARAM_NAME);
-    //LOG.debug("\n****filterLowComplexityRegionsStr: ---" + filterLowComplexityRegionsStr + "---");
-    var filterLowComplexityRegions = !filterLowComplexityRegionsStr.startsWith("no");
-    //LOG.debug("\n****filterLowComplexityRegions: ---" + filterLowComplexityRegions + "---");
-
-    if (!selectedTool.equals("tblastx")) {
-      var gapCostsStr = getNormalizedParamValue(params, GAP_COSTS_PARAM_NAME);
-
-      var gapCostsPair = paramValueToIntPair(gapCostsStr);
-      var gapOpen = gapCostsPair.getFirst();
-      var gapExtend = gapCostsPair.getSecond();
-
-      requestConfig
-        .put("gapOpen", gapOpen)
-        .put("gapExtend", gapExtend);
-    }
-
-    if (selectedTool.equals("blastn")) {
-      var matchMismatchStr = getNormalizedParamValue(params, MATCH_MISMATCH_SCORE);
-      var rewardPenaltyPair = paramValueToIntPair(matchMismatchStr);
-      var reward = rewardPenaltyPair.getFirst();
-      var penalty = rewardPenaltyPair.getSecond();
-
-      return requestConfig
-        .put("tool", selectedTool)
-        .put("task", selectedTool)
-        .put("dust", filterLowComplexityRegions ? "yes" : "no")
-        .put("reward", reward)
-        .put("penalty", penalty);
-    }
-
-    var scoringMatrix = getNormalizedParamValue(params, SCORING_MATRIX_PARAM_NAME);
-    requestConfig.put("matrix", scoringMatrix);
-
-    requestConfig.put("seg", filterLowComplexityRegions ? "yes" : "no");
-    //LOG.debug("\n****seg: ---" + (filterLowComplexityRegions ? "yes" : "no") + "---");
-
-    if (selectedTool.equals("tblastx")) {
-      return requestConfig
-        .put("tool", selectedTool)
-        .put("queryGeneticCode", 1);
-    }
-
-    var compBasedStats = getNormalizedParamValue(params, COMP_ADJUST_PARAM_NAME);
-    requestConfig.put("compBasedStats", compBasedStats);
-
-    if (selectedTool.equals("blastp") || selectedTool.equals("tblastn")) {
-      return requestConfig
-        .put("tool", selectedTool)
-        .put("task", selectedTool);
-    }
-
-    if (selectedTool.equals("blastx")) {
-      return requestConfig
-        .put("tool", selectedTool)
-        .put("queryGeneticCode", 1);
-    }
-
-    throw new PluginUserException("The tool type '" + selectedTool + "' is unsupported");
+    return buildJobConfig(params).toConfigJson();
   }
 
   /**
@@ -159,82 +104,7 @@ public class MultiBlastServiceParams {
    * @return json array to be passed as "targets" to multi-blast service
    */
   public static JSONArray buildNewJobRequestTargetJson(Map<String, String> params) {
-    var organismsStr = params.get(BLAST_DATABASE_ORGANISM_PARAM_NAME);
-    var wdkTargetType = params.get(BLAST_DATABASE_TYPE_PARAM_NAME);
-
-    var organisms = organismsStr.split(",");
-
-    // FIXME This is a carryover of some hardcoding from
-    // ApiCommonWebService's EuPathBlastCommandFormatter.
-    // We should explore more permanent solutions.
-    var blastTargetType = wdkTargetType.equals("PopSet")
-      ? "Isolates"
-      : wdkTargetType;
-
-    var targets = Arrays.stream(organisms)
-      .filter(organism -> !(organism.equals("-1") || organism.length() <= 3))
-      .map(leafOrganism ->
-        new JSONObject()
-          .put("organism", leafOrganism)
-          .put("target", leafOrganism + blastTargetType)
-      )
-      .toArray();
-
-    return new JSONArray(targets);
-  }
-
-  private static JSONObject buildBaseRequestConfig(Map<String, String> params) {
-    var query = getNormalizedParamValue(params, BLAST_QUERY_SEQUENCE_PARAM_NAME);
-    var eValue = getNormalizedParamValue(params, EXPECTATION_VALUE_PARAM_NAME);
-    var numQueryResultsStr = getNormalizedParamValue(params, NUM_QUERY_RESULTS_PARAM_NAME);
-    var maxMatchesStr = getNormalizedParamValue(params, MAX_MATCHES_QUERY_RANGE_PARAM_NAME);
-    var wordSizeStr = getNormalizedParamValue(params, WORD_SIZE_PARAM_NAME);
-    var softMaskStr = getNormalizedParamValue(params, SOFT_MASK_PARAM_NAME);
-    var lowerCaseMaskStr = getNormalizedParamValue(params, LOWER_CASE_MASK_PARAM_NAME);
-
-    // FIXME Should have the outFormat be "pairwise". This will
-    // require fixes to the multi-blast service. (The multi-blast service
-    // currently doesn't allow "maxTargetSeqs" to be passed when the default
-    // report format is "pairwise".)
-    var outFormat = new JSONObject().put("format", "single-file-json");
-
-    var baseConfig =
-      new JSONObject()
-        .put("query", query)
-        .put("eValue", eValue)
-        .put("maxTargetSeqs", paramValueToInt(numQueryResultsStr))
-        .put("wordSize", paramValueToInt(wordSizeStr))
-        .put("softMasking", paramValueToBoolean(softMaskStr))
-        .put("lcaseMasking", paramValueToBoolean(lowerCaseMaskStr))
-        .put("outFormat", outFormat);
-
-    var maxMatches = paramValueToInt(maxMatchesStr);
-
-    if (maxMatches >= 1) {
-      baseConfig.put("maxHSPs", paramValueToInt(maxMatchesStr));
-    }
-
-    return baseConfig;
-  }
-
-  private static String getNormalizedParamValue(Map<String, String> params, String paramName) {
-    return params.get(paramName).replaceAll("^'|'$", "");
-  }
-
-  private static boolean paramValueToBoolean(String paramValue) {
-    return paramValue.equals("true");
-  }
-
-  private static int paramValueToInt(String paramValue) {
-    return Integer.parseInt(paramValue);
-  }
-
-  private static TwoTuple<Integer, Integer> paramValueToIntPair(String paramValue) {
-    var pairStrValues = paramValue.split(",", 2);
-
-    return new TwoTuple<>(
-      Integer.parseInt(pairStrValues[0]),
-      Integer.parseInt(pairStrValues[1])
-    );
+    return MultiBlastJobConfig.toTargetsJson(MultiBlastJobConfig.parseTargets(
+        params.get(BLAST_DATABASE_ORGANISM_PARAM_NAME), params.get(BLAST_DATABASE_TYPE_PARAM_NAME)));
   }
 }
@@ -0,0 +1,117 @@
+package org.eupathdb.websvccommon.wsfplugin.blast;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.eupathdb.websvccommon.wsfplugin.ExpiringCache;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastJobConfig.Target;
+import org.gusdb.wsf.plugin.PluginUserException;
+
+/**
+ * Catalog of the multi-blast targets (organism databases) of each database
+ * type, and of recent organism selections.  Portal sites let users select
+ * every organism, so the organism param value can be very long; the targets
+ * of a selection are validated and built once, then reused by every request
+ * making the same selection.  Each target is built once per database type,
+ * with its JSON, and shared by all selections including it.  Both targets
+ * and selections are held in bounded caches, so arbitrary param values
+ * cannot grow the catalog without limit.
+ *
+ * Selections are checked locally so that requests which could never succeed
+ * fail before any service call: a selection must contain at least one
+ * organism, and an organism name must not contain characters that cannot
+ * appear in a database name.  The catalog does not know which databases the
+ * service has; selections of unknown organisms are still rejected by the
+ * service.  Duplicate organisms are searched once.
+ */
+public class MultiBlastTargetCatalog {
+
+  private static final Logger LOG = Logger.getLogger(MultiBlastTargetCatalog.class);
+
+  // maximum number of distinct selections remembered
+  private static final int MAX_SELECTIONS = 1000;
+
+  // maximum number of targets remembered, across all database types; well
+  //   above the organisms of a portal times its database types
+  private static final int MAX_TARGETS = 20000;
+
+  // targets and selections are rebuilt after this long so rarely used ones do not linger
+  private static final long TIME_TO_LIVE_MILLIS = 60 /* minutes */ * 60 * 1000;
+
+  private static final MultiBlastTargetCatalog INSTANCE = new MultiBlastTargetCatalog();
+
+  public static MultiBlastTargetCatalog getInstance() {
+    return INSTANCE;
+  }
+
+  // (database type, organism) -> target
+  private final ExpiringCache<String, Target> _targets = new ExpiringCache<>(MAX_TARGETS);
+
+  // digest of (database type, organism param value) -> targets
+  private final ExpiringCache<String, List<Target>> _selections = new ExpiringCache<>(MAX_SELECTIONS);
+
+  private MultiBlastTargetCatalog() {}
+
+  /**
+   * @param dbType value of the database type param
+   * @param organisms value of the organism param: a comma-delimited list of
+   * organisms, possibly including placeholders for non-leaf tree nodes
+   * @return targets searched for the passed selection, in selection order;
+   * the list is unmodifiable
+   * @throws PluginUserException if the selection contains no organisms or an
+   * invalid organism name
+   */
+  public List<Target> getTargets(String dbType, String organisms) throws PluginUserException {
+    // organism values of portal sites can be tens of KB; key on their digest
+    String key = MultiBlastRequestCoalescer.toDigest(dbType + '\t' + organisms);
+    List<Target> targets = _selections.get(key).orElse(null);
+    if (targets == null) {
+      targets = buildTargets(dbType, organisms);
+      _selections.put(key, targets, TIME_TO_LIVE_MILLIS);
+    }
+    return targets;
+  }
+
+  private List<Target> buildTargets(String dbType, String organisms) throws PluginUserException {
+    Set<Target> targets = new LinkedHashSet<>();
+    for (Target target : MultiBlastJobConfig.parseTargets(organisms, dbType)) {
+      String organism = target.getOrganism();
+      if (!isValidOrganism(organism)) {
+        throw new PluginUserException("Invalid organism selected: '" + organism + "'");
+      }
+      targets.add(getTarget(dbType, target));
+    }
+    if (targets.isEmpty()) {
+      throw new PluginUserException("At least one organism must be selected.");
+    }
+    return Collections.unmodifiableList(new ArrayList<>(targets));
+  }
+
+  // returns the cached target equal to the passed one, caching it if none is
+  //   (concurrent callers may briefly cache equal targets; either is correct)
+  private Target getTarget(String dbType, Target target) {
+    String key = dbType + '\t' + target.getOrganism();
+    Target cached = _targets.get(key).orElse(null);
+    if (cached == null) {
+      LOG.debug("Adding " + dbType + " multi-blast target for organism " + target.getOrganism());
+      _targets.put(key, target, TIME_TO_LIVE_MILLIS);
+      cached = target;
+    }
+    return cached;
+  }
+
+  // database names are file names on the service, so must not contain separators or whitespace
+  private static boolean isValidOrganism(String organism) {
+    for (int i = 0; i < organism.length(); i++) {
+      char c = organism.charAt(i);
+      if (c == '/' || c == '\\' || Character.isWhitespace(c) || Character.isISOControl(c)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -221,24 +221,7 @@ public class NcbiBlastResultFormatter extends AbstractResultFormatter {
       }
       // check if any subject has been found
       if (min <= max) {
-        Map<String, String> props = model.getProperties();
-        boolean isPortal = isPortal(model);
-        // NOTE: current format of JBROWSE props below is:
-        //   JBROWSE_SERVICE_URL=/eupathdb.rdoherty/service/jbrowse
-        //   JBROWSE_WEBPAGE_URL=/eupathdb.rdoherty/app/jbrowse
-        // If this changes then portal JBrowse links will stop working
-        String webappUrl = isPortal ?
-            ProjectMapper.getMapper(model).getWebAppUrl(projectId) :
-            props.get("LEGACY_WEBAPP_BASE_URL");
-        String jbrowseUrl = isPortal ?
-            webappUrl + "app/jbrowse" :
-            props.get("JBROWSE_WEBPAGE_URL");
-        String jbrowseServiceUrl = isPortal ?
-            webappUrl + "service/jbrowse" :
-            props.get("JBROWSE_SERVICE_URL");
-        jbrowseUrl += "?data=" + jbrowseServiceUrl + "/bySequenceId/" + sourceId +
-            "/&loc=" + sourceId + ":" + min + "-" + max + "&tracks=gene";
-        buffer.append("\n<a href=\"" + jbrowseUrl + "\"> <B><font color=\"red\">" +
+        buffer.append("\n<a href=\"" + getJbrowseUrl(model, projectId, sourceId, min, max) + "\"> <B><font color=\"red\">" +
             "Link to Genome Browser</font></B></a>,   Strand = ");
       }
       else if (buffer.length() > 0) {
@@ -249,7 +232,38 @@ public class NcbiBlastResultFormatter extends AbstractResultFormatter {
     return buffer.toString();
   }
 
-  private String[] formatRow(String[] columns, String projectId, String sourceId, String summary,
+  /**
+   * Builds a link to the genome browser showing the passed range of a sequence
+   *
+   * @param model WDK model
+   * @param projectId project of the sequence
+   * @param sourceId ID of the sequence
+   * @param min start of range to show
+   * @param max end of range to show
+   * @return genome browser URL
+   * @throws WdkModelException if unable to look up project URLs
+   */
+  protected String getJbrowseUrl(WdkModel model, String projectId, String sourceId, long min, long max) throws WdkModelException {
+    Map<String, String> props = model.getProperties();
+    boolean isPortal = isPortal(model);
+    // NOTE: current format of JBROWSE props below is:
+    //   JBROWSE_SERVICE_URL=/eupathdb.rdoherty/service/jbrowse
+    //   JBROWSE_WEBPAGE_URL=/eupathdb.rdoherty/app/jbrowse
+    // If this changes then portal JBrowse links will stop working
+    String webappUrl = isPortal ?
+        ProjectMapper.getMapper(model).getWebAppUrl(projectId) :
+        props.get("LEGACY_WEBAPP_BASE_URL");
+    String jbrowseUrl = isPortal ?
+        webappUrl + "app/jbrowse" :
+        props.get("JBROWSE_WEBPAGE_URL");
+    String jbrowseServiceUrl = isPortal ?
+        webappUrl + "service/jbrowse" :
+        props.get("JBROWSE_SERVICE_URL");
+    return jbrowseUrl + "?data=" + jbrowseServiceUrl + "/bySequenceId/" + sourceId +
+        "/&loc=" + sourceId + ":" + min + "-" + max + "&tracks=gene";
+  }
+
+  protected String[] formatRow(String[] columns, String projectId, String sourceId, String summary,
       String alignment, String evalue, float score, String defline) throws EuPathServiceException {
     String[] evalueParts = evalue.split("e");
     String evalueExp = (evalueParts.length == 2) ? evalueParts[1] : "0";
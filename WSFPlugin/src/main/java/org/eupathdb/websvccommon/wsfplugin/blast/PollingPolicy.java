@@ -0,0 +1,95 @@
+package org.eupathdb.websvccommon.wsfplugin.blast;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Computes how long to wait between status checks of a long-running service
+ * resource.  The first check is made after a short interval so results the
+ * service answers from its cache are picked up quickly; subsequent intervals
+ * grow exponentially up to a maximum, with random jitter so many concurrent
+ * pollers do not hit the service in lockstep.  A wait requested by the service
+ * (e.g. via a Retry-After header) always takes precedence.
+ */
+public class PollingPolicy {
+
+  private final long _initialIntervalMillis;
+  private final long _maxIntervalMillis;
+  private final double _backoffFactor;
+  private final double _jitter;
+
+  /**
+   * @param initialIntervalMillis wait before the first status check
+   * @param maxIntervalMillis maximum wait between status checks
+   * @param backoffFactor factor by which the wait grows after each check
+   * @param jitter fraction of each wait that is randomized (0 for none)
+   */
+  public PollingPolicy(long initialIntervalMillis, long maxIntervalMillis, double backoffFactor, double jitter) {
+    _initialIntervalMillis = initialIntervalMillis;
+    _maxIntervalMillis = maxIntervalMillis;
+    _backoffFactor = backoffFactor;
+    _jitter = jitter;
+  }
+
+  /**
+   * @return a new poller, which tracks the backoff state of a single resource
+   */
+  public Poller newPoller() {
+    return new Poller();
+  }
+
+  public class Poller {
+
+    private double _nextBaseIntervalMillis = _initialIntervalMillis;
+
+    /**
+     * Returns the time to wait before the next status check and advances the
+     * backoff state.
+     *
+     * @param serviceHintMillis wait requested by the service, if any
+     * @return number of milliseconds to wait
+     */
+    public long nextDelayMillis(Optional<Long> serviceHintMillis) {
+      long base = (long)_nextBaseIntervalMillis;
+      _nextBaseIntervalMillis = Math.min(_maxIntervalMillis, _nextBaseIntervalMillis * _backoffFactor);
+      if (serviceHintMillis.isPresent()) {
+        return Math.max(0, serviceHintMillis.get());
+      }
+      if (_jitter == 0) {
+        return base;
+      }
+      // spread the delay uniformly across [base * (1 - jitter), base * (1 + jitter)]
+      double spread = base * _jitter;
+      return Math.max(1, Math.round(base - spread + ThreadLocalRandom.current().nextDouble() * 2 * spread));
+    }
+  }
+
+  /**
+   * Parses the value of a Retry-After HTTP header, which may be either a
+   * number of seconds or an HTTP date.
+   *
+   * @param headerValue header value, or null if the header was not sent
+   * @return number of milliseconds the service asked us to wait, if any
+   */
+  public static Optional<Long> parseRetryAfter(String headerValue) {
+    if (headerValue == null || headerValue.isBlank()) {
+      return Optional.empty();
+    }
+    String value = headerValue.trim();
+    try {
+      return Optional.of(Long.parseLong(value) * 1000);
+    }
+    catch (NumberFormatException e) {
+      try {
+        long retryTime = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        return Optional.of(Math.max(0, retryTime - System.currentTimeMillis()));
+      }
+      catch (DateTimeParseException e2) {
+        return Optional.empty();
+      }
+    }
+  }
+}
@@ -0,0 +1,267 @@
+package org.eupathdb.websvccommon.wsfplugin.blast;
+
+import java.io.IOException;
+
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.gusdb.wsf.plugin.PluginUserException;
+
+/**
+ * Normalizes and validates a submitted BLAST query sequence in a single pass
+ * over the raw parameter value.  Unwanted character sequences are stripped,
+ * residues are checked against the alphabet expected by the selected BLAST
+ * algorithm, records and residues are counted, and (optionally) the normalized
+ * or canonical FASTA is written to an output as it is read, so large genomic
+ * inputs are never copied in memory more than once.
+ *
+ * Whitespace and digits inside sequence lines are treated as formatting and
+ * dropped; definition lines are passed through unchanged.  Note this differs
+ * from AbstractBlastPlugin's earlier handling, which wrote the submitted
+ * sequence lines to the BLAST input file unchanged: position numbers and
+ * spaces pasted from GenBank-style or column-formatted sequences are now
+ * silently removed rather than passed on for BLAST to interpret, and any
+ * other non-residue character is rejected.
+ */
+public class QuerySequenceNormalizer {
+
+  // may need to filter out certain character sequences; additional sequences should be added as needed
+  private static final String OBJECT_REPLACEMENT_ENTITY = "&#65532;";
+  private static final char OBJECT_REPLACEMENT_CHAR = '\uFFFC';
+
+  private static final char DEFLINE_START = '>';
+
+  public enum Alphabet {
+
+    // IUPAC nucleotide codes plus gap
+    NUCLEOTIDE("nucleotide", "ACGTURYKMSWBDHVN-"),
+
+    // IUPAC amino acid codes (incl. ambiguity codes) plus stop and gap
+    PROTEIN("protein", "ABCDEFGHIJKLMNOPQRSTUVWXYZ*-"),
+
+    // used when the algorithm is not known; accepts anything BLAST might accept
+    ANY("sequence", "ABCDEFGHIJKLMNOPQRSTUVWXYZ*-");
+
+    private final String _description;
+    private final boolean[] _allowed = new boolean[128];
+
+    private Alphabet(String description, String upperCaseResidues) {
+      _description = description;
+      for (char c : upperCaseResidues.toCharArray()) {
+        _allowed[c] = true;
+        _allowed[Character.toLowerCase(c)] = true;
+      }
+    }
+
+    public boolean allows(char c) {
+      return c < _allowed.length && _allowed[c];
+    }
+
+    public String getDescription() {
+      return _description;
+    }
+
+    /**
+     * @param algorithm name of BLAST program (e.g. blastn, tblastx)
+     * @return alphabet of query sequences accepted by the passed program
+     */
+    public static Alphabet forAlgorithm(String algorithm) {
+      switch (algorithm == null ? "" : algorithm) {
+        case "blastn":
+        case "blastx":
+        case "tblastx":
+          return NUCLEOTIDE;
+        case "blastp":
+        case "tblastn":
+          return PROTEIN;
+        default:
+          return ANY;
+      }
+    }
+  }
+
+  /**
+   * Statistics gathered while normalizing a query; callers may use these to
+   * make scheduling decisions (e.g. how long to wait for a result).
+   */
+  public static class Statistics {
+
+    private final int _recordCount;
+    private final long _residueCount;
+    private final long _maxRecordLength;
+
+    private Statistics(int recordCount, long residueCount, long maxRecordLength) {
+      _recordCount = recordCount;
+      _residueCount = residueCount;
+      _maxRecordLength = maxRecordLength;
+    }
+
+    public int getRecordCount() {
+      return _recordCount;
+    }
+
+    public long getResidueCount() {
+      return _residueCount;
+    }
+
+    public long getMaxRecordLength() {
+      return _maxRecordLength;
+    }
+
+    @Override
+    public String toString() {
+      return "{ records: " + _recordCount + ", residues: " + _residueCount +
+          ", maxRecordLength: " + _maxRecordLength + " }";
+    }
+  }
+
+  private final Alphabet _alphabet;
+  private final int _maxRecords;
+
+  /**
+   * @param alphabet alphabet residues must belong to
+   * @param maxRecords maximum number of FASTA records allowed in the query
+   */
+  public QuerySequenceNormalizer(Alphabet alphabet, int maxRecords) {
+    _alphabet = alphabet;
+    _maxRecords = maxRecords;
+  }
+
+  /**
+   * Validates the passed raw sequence and writes its normalized FASTA form to
+   * the passed output in the same pass.  Output is written as the input is
+   * read, so callers must discard it if a PluginUserException is thrown.
+   *
+   * @param rawSequence submitted sequence
+   * @param out output to write normalized FASTA to, or null to only validate
+   * @param defaultDefline defline (including leading '&gt;') written when the
+   * sequence does not begin with one, or null to write none
+   * @return statistics describing the sequence
+   * @throws PluginUserException if the sequence is invalid
+   * @throws PluginModelException if unable to write output
+   */
+  public Statistics normalize(String rawSequence, Appendable out, String defaultDefline)
+      throws PluginUserException, PluginModelException {
+    return normalize(rawSequence, out, defaultDefline, false);
+  }
+
+  /**
+   * Validates the passed raw sequence and writes its canonical form to the
+   * passed output in the same pass.  The canonical form is the normalized
+   * form with each record's residues joined on one line and trailing
+   * whitespace removed from deflines, so sequences differing only in
+   * formatting have equal canonical forms.  Like normalize(), callers must
+   * discard the output if a PluginUserException is thrown.
+   *
+   * @param rawSequence submitted sequence
+   * @param out output to write canonical form to
+   * @return statistics describing the sequence
+   * @throws PluginUserException if the sequence is invalid
+   * @throws PluginModelException if unable to write output
+   */
+  public Statistics canonicalize(String rawSequence, Appendable out)
+      throws PluginUserException, PluginModelException {
+    return normalize(rawSequence, out, null, true);
+  }
+
+  private Statistics normalize(String rawSequence, Appendable out, String defaultDefline,
+      boolean joinResidueLines) throws PluginUserException, PluginModelException {
+    try {
+      int recordCount = 0;
+      long residueCount = 0;
+      long recordLength = 0;
+      long maxRecordLength = 0;
+      int lineNumber = 1;
+      boolean inDefline = false;
+      boolean lineHasContent = false;
+
+      // when joining residue lines: whether residues were written since the
+      //   last line break, and whitespace held back until more defline follows
+      boolean residuesWritten = false;
+      StringBuilder deflineWhitespace = new StringBuilder();
+
+      int length = rawSequence == null ? 0 : rawSequence.length();
+      for (int i = 0; i < length; i++) {
+        char c = rawSequence.charAt(i);
+
+        // strip unwanted character sequences
+        if (c == OBJECT_REPLACEMENT_CHAR) {
+          continue;
+        }
+        if (c == '&' && rawSequence.startsWith(OBJECT_REPLACEMENT_ENTITY, i)) {
+          i += OBJECT_REPLACEMENT_ENTITY.length() - 1;
+          continue;
+        }
+
+        // end of line; only write line breaks after non-empty lines (when
+        //   joining residue lines, only after deflines)
+        if (c == '\n' || c == '\r') {
+          if (c == '\n') lineNumber++;
+          if (lineHasContent && (inDefline || !joinResidueLines) && out != null) out.append('\n');
+          lineHasContent = false;
+          inDefline = false;
+          deflineWhitespace.setLength(0);
+          continue;
+        }
+
+        if (inDefline) {
+          if (joinResidueLines && Character.isWhitespace(c)) {
+            deflineWhitespace.append(c);
+            continue;
+          }
+          if (out != null) out.append(deflineWhitespace).append(c);
+          deflineWhitespace.setLength(0);
+          continue;
+        }
+
+        if (Character.isWhitespace(c) || Character.isDigit(c)) {
+          continue;
+        }
+
+        if (c == DEFLINE_START && !lineHasContent) {
+          // start of a new record
+          maxRecordLength = Math.max(maxRecordLength, recordLength);
+          recordLength = 0;
+          if (++recordCount > _maxRecords) {
+            throw new PluginUserException(_maxRecords == 1 ?
+                "Only one input sequence is allowed" :
+                "No more than " + _maxRecords + " input sequences are allowed");
+          }
+          inDefline = true;
+          lineHasContent = true;
+          if (residuesWritten && out != null) out.append('\n');
+          residuesWritten = false;
+          if (out != null) out.append(c);
+          continue;
+        }
+
+        if (!_alphabet.allows(c)) {
+          throw new PluginUserException("Invalid character '" + c + "' on line " +
+              lineNumber + " of the " + _alphabet.getDescription() + " query sequence.");
+        }
+
+        if (recordCount == 0) {
+          // residues before any defline; supply one if requested
+          recordCount = 1;
+          if (defaultDefline != null && out != null) out.append(defaultDefline).append('\n');
+        }
+
+        if (out != null) out.append(c);
+        lineHasContent = true;
+        residuesWritten = joinResidueLines;
+        residueCount++;
+        recordLength++;
+      }
+
+      if ((lineHasContent || residuesWritten) && out != null) out.append('\n');
+      maxRecordLength = Math.max(maxRecordLength, recordLength);
+
+      if (residueCount == 0) {
+        throw new PluginUserException("The query sequence does not contain any residues.");
+      }
+
+      return new Statistics(recordCount, residueCount, maxRecordLength);
+    }
+    catch (IOException e) {
+      throw new PluginModelException("Unable to write normalized query sequence", e);
+    }
+  }
+}
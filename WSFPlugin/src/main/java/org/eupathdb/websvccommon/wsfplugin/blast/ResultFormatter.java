@@ -17,6 +17,23 @@ public interface ResultFormatter {
 
   String[] getDeclaredColumns();
 
+  /**
+   * @return format of the multi-blast report this formatter reads; the
+   * pairwise text report by default (multi-blast plugins should use
+   * MultiBlastJsonResultFormatter, which reads the JSON report instead)
+   */
+  default String getReportFormat() {
+    return "pairwise";
+  }
+
+  /**
+   * @return name of the file containing the report within a completed
+   * multi-blast report of this formatter's format
+   */
+  default String getReportFileName() {
+    return "report.txt";
+  }
+
   /**
    * Format the result into the response, and return the message which can be
    * passed to the client.
@@ -1,35 +1,35 @@
 package org.eupathdb.websvccommon.wsfplugin.solrsearch;
 
-import static org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchUtil.getSearchFields;
+import static org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchUtil.getDocumentType;
+import static org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchUtil.getFanOutMaxRows;
+import static org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchUtil.getFanOutProjectIds;
+import static org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchUtil.getMaxRows;
 import static org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchUtil.getSiteSearchServiceUrl;
+import static org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchUtil.getTransport;
 
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
-import javax.ws.rs.client.Entity;
-import javax.ws.rs.client.Invocation;
-import javax.ws.rs.client.WebTarget;
-import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.Response;
+import javax.ws.rs.core.HttpHeaders;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.Priority;
+import org.eupathdb.websvccommon.wsfplugin.HttpTransport.ServiceResponse;
 import org.eupathdb.websvccommon.wsfplugin.PluginUtilities;
+import org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchResultCache.CachedResult;
+import org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchResultCache.Recording;
+import org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchRowPipeline.RowBuilder;
 import org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchUtil.SearchField;
 import org.gusdb.fgputil.ArrayUtil;
 import org.gusdb.fgputil.FormatUtil;
 import org.gusdb.fgputil.FormatUtil.Style;
-import org.gusdb.fgputil.functional.Functions;
-import org.gusdb.fgputil.json.JsonUtil;
+import org.gusdb.fgputil.web.HttpMethod;
 import org.gusdb.fgputil.web.MimeTypes;
 import org.gusdb.wdk.model.record.PrimaryKeyDefinition;
 import org.gusdb.wdk.model.record.RecordClass;
@@ -88,57 +88,146 @@ public class EuPathSiteSearchPlugin extends AbstractPlugin {
       throws PluginModelException, PluginUserException {
     LOG.info("Executing " + EuPathSiteSearchPlugin.class.getSimpleName() +
         " with params " + FormatUtil.prettyPrint(request.getParams(), Style.MULTI_LINE));
-    Response searchResponse = null;
     try {
       // build request elements
       String searchUrl = getSiteSearchServiceUrl(request);
       JSONObject requestBody = buildRequestJson(request);
-      LOG.info("Querying site search service at " + searchUrl + " with JSON body: " + requestBody.toString(2));
+      RecordClass recordClass = PluginUtilities.getRecordClass(request);
 
-      // make request
-      Client client = ClientBuilder.newClient();
-      WebTarget webTarget = client.target(searchUrl);
-      Invocation.Builder invocationBuilder = webTarget.request(MimeTypes.ND_JSON);
-      searchResponse = invocationBuilder.post(Entity.entity(requestBody.toString(), MediaType.APPLICATION_JSON));
+      // a search spanning all projects may be split into concurrent per-project searches
+      List<String> fanOutProjectIds = requestBody.has("restrictToProject") ?
+          Collections.emptyList() : getFanOutProjectIds(request);
 
-      LOG.info("Received response from site search service with status: " + searchResponse.getStatus());
+      // cap the number of rows; the service is asked for one more so truncation can be detected
+      int maxRows = fanOutProjectIds.isEmpty() ? getMaxRows(request) :
+          getSmallerRowLimit(getMaxRows(request), getFanOutMaxRows(request));
+      if (maxRows > 0) {
+        requestBody.put("pagination", new JSONObject()
+          .put("offset", 0)
+          .put("numRecords", maxRows + 1L));
+      }
 
-      BufferedReader br = new BufferedReader(new InputStreamReader((InputStream)searchResponse.getEntity()));
-      String line;
-      RecordClass recordClass = PluginUtilities.getRecordClass(request);
-      boolean pkHasProjectId = recordClass.getPrimaryKeyDefinition().hasColumn("project_id");
-      Priority recordLoggingPriority = Level.DEBUG;
-      boolean logRecordProcessing = LOG.isEnabledFor(recordLoggingPriority);
-      while ((line = br.readLine()) != null) {
-        if (logRecordProcessing) LOG.log(recordLoggingPriority,
-          "Site Search Service response line: " + line);
-        String[] tokens = line.split(FormatUtil.TAB);
-        if (tokens.length < 2 || tokens.length > 3) {
-          throw new PluginModelException("Unexpected format in line: " + line);
-        }
-        JSONArray primaryKey = new JSONArray(tokens[0]);
-        String score = tokens[1];
-        Optional<String> solrRecordProjectId = tokens.length == 3 && !tokens[2].isBlank() ?
-            Optional.of(tokens[2].trim()) : Optional.empty();
-        String recordProjectId = computeRecordProjectId(solrRecordProjectId, primaryKey, request);
-
-        // build WSF plugin result row from parsed site search row
-        String[] row = readResultRow(recordClass, primaryKey, pkHasProjectId, recordProjectId, score);
-
-        if (logRecordProcessing) LOG.log(recordLoggingPriority,
-          "Returning row (project ID appended? " + solrRecordProjectId.isEmpty() + "): " + new JSONArray(row).toString());
-        response.addRow(row);
+      // answer repeated searches from the result cache
+      String buildNumber = recordClass.getWdkModel().getBuildNumber();
+      String cacheKey = SiteSearchResultCache.getKey(searchUrl, buildNumber,
+          request.getProjectId(), recordClass.getFullName(), requestBody.toString());
+      Optional<CachedResult> cachedResult = SiteSearchResultCache.getInstance().get(cacheKey);
+      if (cachedResult.isPresent()) {
+        LOG.info("Returning " + cachedResult.get().getRowCount() + " cached site search rows for JSON body: " + requestBody);
+        cachedResult.get().replay(response);
+        if (cachedResult.get().isTruncated()) reportTruncation(response, maxRows);
+        return 0;
       }
+
+      boolean pkHasProjectId = recordClass.getPrimaryKeyDefinition().hasColumn("project_id");
+      search(searchUrl, requestBody, fanOutProjectIds, maxRows, cacheKey,
+          newRowBuilder(recordClass, pkHasProjectId, request), response);
       return 0;
     }
     catch (Exception e) {
       throw new PluginModelException("Could not read response from site search service", e);
     }
+  }
+
+  /**
+   * Sends a search whose inputs have been resolved from the plugin request,
+   * writes the result rows to the response, and records them in the result
+   * cache.  Separate from execute() so the search path can be driven without
+   * a WDK model (see SiteSearchBenchmark).
+   *
+   * @param searchUrl URL of site search service
+   * @param requestBody search request, including any pagination
+   * @param fanOutProjectIds projects to split the search across, or empty to send it as is
+   * @param maxRows maximum number of rows to write, or 0 for no limit
+   * @param cacheKey key under which to cache the result rows
+   * @param rowBuilder builds result rows from parsed site search rows
+   * @param response response to write rows to
+   * @throws Exception if the search fails or rows cannot be written
+   */
+  void search(String searchUrl, JSONObject requestBody, List<String> fanOutProjectIds, int maxRows,
+      String cacheKey, RowBuilder rowBuilder, PluginResponse response) throws Exception {
+    List<ServiceResponse> searchResponses = new ArrayList<>();
+    List<SiteSearchRowPipeline> pipelines = new ArrayList<>();
+    Recording recording = null;
+    try {
+      LOG.info("Querying site search service at " + searchUrl + " with JSON body: " + requestBody.toString(2));
+
+      if (fanOutProjectIds.isEmpty()) {
+        // make request over the shared transport
+        searchResponses.add(getTransport().request(searchUrl, HttpMethod.POST,
+            Optional.of(requestBody), Map.of(HttpHeaders.ACCEPT, MimeTypes.ND_JSON)));
+      }
+      else {
+        LOG.info("Splitting site search across projects " + fanOutProjectIds);
+        searchResponses.addAll(SiteSearchFanOut.sendAll(searchUrl, SiteSearchFanOut.split(requestBody, fanOutProjectIds)));
+      }
+
+      for (ServiceResponse searchResponse : searchResponses) {
+        LOG.info("Received response from site search service with status: " + searchResponse.getStatus());
+      }
+
+      // rows are read and parsed on other threads while this one builds and writes them
+      for (ServiceResponse searchResponse : searchResponses) {
+        pipelines.add(new SiteSearchRowPipeline(searchResponse.getBodyStream(), rowBuilder,
+            SiteSearchRowPipeline.DEFAULT_BATCH_SIZE, SiteSearchRowPipeline.DEFAULT_QUEUED_BATCHES));
+      }
+      // once the row limit is reached, the rest of the results are left unread
+      //   (the streams are closed below)
+      recording = SiteSearchResultCache.getInstance().record(cacheKey);
+      boolean truncated = pipelines.size() == 1
+        ? pipelines.get(0).writeTo(recording.wrap(response), maxRows)
+        : SiteSearchFanOut.mergeByScore(pipelines, maxRows, recording.wrap(response));
+      if (truncated) reportTruncation(response, maxRows);
+      recording.commit(truncated);
+    }
     finally {
-      if (searchResponse != null) searchResponse.close();
+      if (recording != null) recording.abandon();
+      pipelines.forEach(SiteSearchRowPipeline::close);
+      searchResponses.forEach(ServiceResponse::close);
     }
   }
 
+  // returns the smaller of two row limits, where 0 means no limit
+  private static int getSmallerRowLimit(int maxRows1, int maxRows2) {
+    return maxRows1 == 0 ? maxRows2 : maxRows2 == 0 ? maxRows1 : Math.min(maxRows1, maxRows2);
+  }
+
+  private static void reportTruncation(PluginResponse response, int maxRows)
+      throws PluginModelException, PluginUserException {
+    response.setMessage("This search matched more than " + maxRows +
+        " records; only the " + maxRows + " best matches are returned.  Refine the search text to see others.");
+  }
+
+  /**
+   * Returns a builder of result rows from parsed site search rows.  Each row
+   * is built by passing its parsed primary key values, project and score to
+   * computeRecordProjectId() and readResultRow(), so subclasses customize rows
+   * by overriding those.  Rows are built on the thread writing the response
+   * (see SiteSearchRowPipeline).
+   *
+   * @param recordClass recordClass for this request
+   * @param pkHasProjectId whether this RC's PK has a project_id
+   * @param request plugin request
+   * @return row builder for this request's result pipelines
+   */
+  RowBuilder newRowBuilder(RecordClass recordClass, boolean pkHasProjectId, PluginRequest request) {
+    Priority recordLoggingPriority = Level.DEBUG;
+    boolean logRecordProcessing = LOG.isEnabledFor(recordLoggingPriority);
+    return (primaryKeyValues, solrRecordProjectId, score) -> {
+      // build WSF plugin result row from parsed site search row
+      JSONArray primaryKey = new JSONArray();
+      for (String value : primaryKeyValues) {
+        primaryKey.put(value);
+      }
+      String recordProjectId = computeRecordProjectId(Optional.ofNullable(solrRecordProjectId), primaryKey, request);
+      String[] row = readResultRow(recordClass, primaryKey, pkHasProjectId, recordProjectId, score);
+
+      if (logRecordProcessing) LOG.log(recordLoggingPriority,
+        "Returning row (project ID appended? " + (solrRecordProjectId == null) + "): " + new JSONArray(row).toString());
+      return row;
+    };
+  }
+
   /**
    * Figure out what projectId to add to the primary key of the row put in the WDK cache
    *
@@ -163,9 +252,18 @@ public class EuPathSiteSearchPlugin extends AbstractPlugin {
    */
   protected String[] readResultRow(RecordClass recordClass, JSONArray primaryKey,
       boolean pkHasProjectId, String recordProjectId, String score) {
-    return ArrayUtil.concatenate(JsonUtil.toStringArray(primaryKey),
-      // only include projectId if it is a primary key field
-      pkHasProjectId ? new String[] { recordProjectId, score } : new String[] { score });
+    // filled directly; this runs for every row of every result
+    int pkLength = primaryKey.length();
+    String[] row = new String[pkLength + (pkHasProjectId ? 2 : 1)];
+    for (int i = 0; i < pkLength; i++) {
+      row[i] = primaryKey.getString(i);
+    }
+    // only include projectId if it is a primary key field
+    if (pkHasProjectId) {
+      row[pkLength++] = recordProjectId;
+    }
+    row[pkLength] = score;
+    return row;
   }
 
   /**
@@ -179,12 +277,14 @@ public class EuPathSiteSearchPlugin extends AbstractPlugin {
    *     foundOnlyInFields?: string[]
    *   }
    * }
+   * A pagination object limiting the number of rows is added by execute()
+   * when a maximum row count is configured.
    */
   private JSONObject buildRequestJson(PluginRequest request) throws PluginModelException {
     String docType = getRequestedDocumentType(request);
     Optional<String> projectIdForFilter = getProjectIdForFilter(request.getProjectId());
-    Map<String,SearchField> searchFieldMap = Functions.getMapFromValues(
-        getSearchFields(getSiteSearchServiceUrl(request), docType, projectIdForFilter), field -> field.getTerm());
+    Map<String,SearchField> searchFieldMap =
+        getDocumentType(getSiteSearchServiceUrl(request), docType, projectIdForFilter).getFieldsByTerm();
     Map<String,String> internalValues = request.getParams();
     String searchTerm = unquoteString(internalValues.get(SEARCH_TEXT_PARAM_NAME));
     List<String> searchFieldTerms = getTermsFromInternal(internalValues.get(SEARCH_FIELDS_PARAM_NAME), true);
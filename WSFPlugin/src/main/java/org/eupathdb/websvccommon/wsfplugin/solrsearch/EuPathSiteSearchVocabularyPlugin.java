@@ -1,14 +1,13 @@
 package org.eupathdb.websvccommon.wsfplugin.solrsearch;
 
-import static org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchUtil.getSearchFields;
+import static org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchUtil.getDocumentType;
 import static org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchUtil.getSiteSearchServiceUrl;
+import static org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchUtil.keepMetadataWarm;
 
-import java.util.List;
 import java.util.Optional;
 
 import org.apache.log4j.Logger;
 import org.eupathdb.websvccommon.wsfplugin.PluginUtilities;
-import org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchUtil.SearchField;
 import org.gusdb.wsf.plugin.AbstractPlugin;
 import org.gusdb.wsf.plugin.PluginModelException;
 import org.gusdb.wsf.plugin.PluginRequest;
@@ -40,11 +39,17 @@ public class EuPathSiteSearchVocabularyPlugin extends AbstractPlugin {
     LOG.debug("Executing " + EuPathSiteSearchVocabularyPlugin.class.getSimpleName() + "...");
     String serviceUrl = getSiteSearchServiceUrl(request);
     String docType = getRequestedDocumentType(request);
-    List<SearchField> fields = getSearchFields(serviceUrl, docType, getProjectIdForFilter(request.getProjectId()));
-    for (SearchField field : fields) {
-      LOG.debug("Adding response row: " + field);
-      response.addRow(new String[] { field.getTerm(), field.getTerm(), field.getDisplay() });
+    Optional<String> projectIdForFilter = getProjectIdForFilter(request.getProjectId());
+
+    // vocabularies are loaded with the metadata (for all document types) and
+    //   refreshed in the background from the first request on, so form loads
+    //   are answered from memory
+    keepMetadataWarm(serviceUrl, projectIdForFilter);
+    String[][] rows = getDocumentType(serviceUrl, docType, projectIdForFilter).getVocabularyRows();
+    for (String[] row : rows) {
+      response.addRow(row);
     }
+    LOG.debug("Returned " + rows.length + " vocabulary rows for document type " + docType);
     return 0;
   }
 
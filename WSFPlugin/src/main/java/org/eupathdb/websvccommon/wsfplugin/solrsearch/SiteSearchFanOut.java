@@ -0,0 +1,156 @@
+package org.eupathdb.websvccommon.wsfplugin.solrsearch;
+
+import static org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchUtil.getTransport;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.core.HttpHeaders;
+
+import org.apache.log4j.Logger;
+import org.eupathdb.websvccommon.wsfplugin.HttpTransport.ServiceResponse;
+import org.gusdb.fgputil.web.HttpMethod;
+import org.gusdb.fgputil.web.MimeTypes;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.gusdb.wsf.plugin.PluginResponse;
+import org.gusdb.wsf.plugin.PluginUserException;
+import org.json.JSONObject;
+
+/**
+ * Splits a site search spanning all projects (i.e. a portal search) into one
+ * search per component project, sent concurrently, and merges their results
+ * by descending score.  Each project's results are read and parsed on their
+ * own thread (see SiteSearchRowPipeline), so the merge waits only on
+ * whichever project has the next best row, and once a configured number of
+ * rows is written the remaining results are not read.
+ *
+ * Concurrency is bounded at two points.  Project searches are sent from a
+ * fixed pool of FAN_OUT_THREADS threads shared by all requests; further
+ * searches wait in its queue.  Each search also holds one of the shared
+ * transport's per-host request slots, but only until its response headers
+ * arrive (see HttpTransport), so slots are not held while results are read
+ * and merged.  Reading results takes one reader thread per project for the
+ * duration of the merge; those threads are not pooled with a bound, since a
+ * merge waits on all of its readers.
+ */
+public class SiteSearchFanOut {
+
+  private static final Logger LOG = Logger.getLogger(SiteSearchFanOut.class);
+
+  // maximum number of project searches sent at once, across all requests;
+  //   enough for a couple of portal searches of every component project
+  private static final int FAN_OUT_THREADS = 32;
+
+  // sends project searches concurrently; each call blocks until response headers arrive
+  private static final ExecutorService REQUEST_EXECUTOR = newRequestExecutor();
+
+  private static ExecutorService newRequestExecutor() {
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(FAN_OUT_THREADS, FAN_OUT_THREADS,
+        60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+      Thread thread = new Thread(runnable, "sitesearch-fan-out-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * @param requestBody search request spanning all projects
+   * @param projectIds component projects
+   * @return one copy of the request per project, restricted to that project
+   */
+  public static List<JSONObject> split(JSONObject requestBody, List<String> projectIds) {
+    List<JSONObject> projectBodies = new ArrayList<>();
+    for (String projectId : projectIds) {
+      projectBodies.add(new JSONObject(requestBody.toString()).put("restrictToProject", projectId));
+    }
+    return projectBodies;
+  }
+
+  /**
+   * Sends the passed search requests concurrently.
+   *
+   * @param searchUrl URL of site search service
+   * @param requestBodies bodies of requests to send
+   * @return responses, in request order; caller must close them
+   * @throws PluginModelException if any request fails (all responses are closed)
+   */
+  public static List<ServiceResponse> sendAll(String searchUrl, List<JSONObject> requestBodies)
+      throws PluginModelException {
+    List<CompletableFuture<ServiceResponse>> futures = new ArrayList<>();
+    for (JSONObject body : requestBodies) {
+      futures.add(CompletableFuture.supplyAsync(() -> {
+        try {
+          return getTransport().request(searchUrl, HttpMethod.POST,
+              Optional.of(body), Map.of(HttpHeaders.ACCEPT, MimeTypes.ND_JSON));
+        }
+        catch (PluginModelException e) {
+          throw new CompletionException(e);
+        }
+      }, REQUEST_EXECUTOR));
+    }
+    List<ServiceResponse> responses = new ArrayList<>();
+    Throwable failure = null;
+    for (CompletableFuture<ServiceResponse> future : futures) {
+      try {
+        responses.add(future.join());
+      }
+      catch (CompletionException e) {
+        if (failure == null) failure = e.getCause();
+      }
+    }
+    if (failure != null) {
+      responses.forEach(ServiceResponse::close);
+      throw failure instanceof PluginModelException ? (PluginModelException)failure :
+        new PluginModelException("Site search request failed", failure);
+    }
+    return responses;
+  }
+
+  /**
+   * Writes the rows of the passed pipelines to the response in descending
+   * score order, assuming each pipeline's rows arrive in that order.
+   *
+   * @param pipelines pipelines reading each project's results
+   * @param maxRows maximum number of rows to write, or 0 for no limit
+   * @param response response to write rows to
+   * @return true if rows were left unwritten because the limit was reached
+   * @throws PluginModelException if a pipeline failed or the response could not be written
+   * @throws PluginUserException if the response could not be written
+   */
+  public static boolean mergeByScore(List<SiteSearchRowPipeline> pipelines, int maxRows,
+      PluginResponse response) throws PluginModelException, PluginUserException {
+    PriorityQueue<SiteSearchRowPipeline> next = new PriorityQueue<>(
+        Comparator.comparingDouble(SiteSearchRowPipeline::getScore).reversed());
+    for (SiteSearchRowPipeline pipeline : pipelines) {
+      if (pipeline.advance()) next.add(pipeline);
+    }
+    int rowsWritten = 0;
+    while (!next.isEmpty()) {
+      if (maxRows > 0 && rowsWritten == maxRows) {
+        LOG.info("Stopped merging site search results of " + pipelines.size() +
+            " projects at the limit of " + maxRows + " rows");
+        return true;
+      }
+      SiteSearchRowPipeline pipeline = next.poll();
+      response.addRow(pipeline.getRow());
+      rowsWritten++;
+      if (pipeline.advance()) next.add(pipeline);
+    }
+    LOG.debug("Merged " + rowsWritten + " site search rows from " + pipelines.size() + " projects");
+    return false;
+  }
+}
@@ -0,0 +1,320 @@
+package org.eupathdb.websvccommon.wsfplugin.solrsearch;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.eupathdb.websvccommon.wsfplugin.MetricsRegistry;
+import org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchUtil.SearchField;
+import org.gusdb.wsf.plugin.PluginModelException;
+
+/**
+ * Caches the categories metadata of the site search service per (service
+ * URL, project filter).  The metadata changes only when the service's index
+ * is rebuilt, so a cached copy is served without any service call while it
+ * is fresh.  Once it goes stale it is still served, but a background refresh
+ * is started; only a request finding no usable copy at all (none loaded yet,
+ * or the last load too long ago) waits for the service.  Concurrent loads of
+ * the same metadata are coalesced into one service call.
+ *
+ * Each document type's search fields are indexed by term, and its vocabulary
+ * rows built, when loaded, so callers need not build their own per request.
+ *
+ * Metadata that must always be at hand (e.g. for search form vocabularies)
+ * can be kept warm: it is then loaded in the background as soon as it is
+ * requested to be kept warm, and refreshed on a schedule before it goes
+ * stale, so lookups neither wait for the service nor start refreshes.
+ */
+public class SiteSearchMetadataCache {
+
+  private static final Logger LOG = Logger.getLogger(SiteSearchMetadataCache.class);
+
+  // metadata younger than this is served without a refresh
+  private static final long FRESH_MILLIS = 5 /* minutes */ * 60 * 1000;
+
+  // metadata older than this is not served; requests wait for a reload
+  private static final long MAX_STALE_MILLIS = 24 /* hours */ * 60 * 60 * 1000;
+
+  // after a failed background refresh, stale metadata is served this long before trying again
+  private static final long REFRESH_RETRY_MILLIS = 60 * 1000;
+
+  // metadata kept warm is reloaded this often, so it is always fresh when served
+  private static final long WARM_REFRESH_MILLIS = FRESH_MILLIS / 2;
+
+  // hit counts are logged each time this many more lookups have been made
+  private static final long LOOKUPS_PER_LOG = 1000;
+
+  // metrics, reported together in the MetricsRegistry
+  private static final String METRIC_PREFIX = "sitesearch.metadata";
+  private static final String LOAD_METRIC = METRIC_PREFIX + "LoadMillis";
+  private static final String FRESH_HIT_METRIC = METRIC_PREFIX + "FreshHits";
+  private static final String STALE_HIT_METRIC = METRIC_PREFIX + "StaleHits";
+  private static final String MISS_METRIC = METRIC_PREFIX + "Misses";
+  private static final String REFRESH_FAILURE_METRIC = METRIC_PREFIX + "RefreshFailures";
+
+  private static final SiteSearchMetadataCache INSTANCE = new SiteSearchMetadataCache();
+
+  public static SiteSearchMetadataCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Search fields of one document type
+   */
+  public static class DocumentType {
+
+    private final List<SearchField> _fields;
+    private final Map<String, SearchField> _fieldsByTerm;
+    private final String[][] _vocabularyRows;
+
+    DocumentType(List<SearchField> fields) {
+      _fields = Collections.unmodifiableList(fields);
+      Map<String, SearchField> fieldsByTerm = new LinkedHashMap<>();
+      _vocabularyRows = new String[fields.size()][];
+      for (int i = 0; i < fields.size(); i++) {
+        SearchField field = fields.get(i);
+        fieldsByTerm.put(field.getTerm(), field);
+        _vocabularyRows[i] = new String[] { field.getTerm(), field.getTerm(), field.getDisplay() };
+      }
+      _fieldsByTerm = Collections.unmodifiableMap(fieldsByTerm);
+    }
+
+    /**
+     * @return search fields in the order sent by the service
+     */
+    public List<SearchField> getFields() {
+      return _fields;
+    }
+
+    /**
+     * @return search fields by term, in the order sent by the service
+     */
+    public Map<String, SearchField> getFieldsByTerm() {
+      return _fieldsByTerm;
+    }
+
+    /**
+     * @return vocabulary rows (internal, term, display) of the search fields,
+     * in the order sent by the service; shared, so must not be modified
+     */
+    public String[][] getVocabularyRows() {
+      return _vocabularyRows;
+    }
+  }
+
+  /**
+   * Categories metadata returned by one request to the service
+   */
+  public static class Metadata {
+
+    private final Map<String, DocumentType> _documentTypes;
+    private final Set<String> _duplicateIds;
+
+    Metadata(Map<String, DocumentType> documentTypes, Set<String> duplicateIds) {
+      _documentTypes = Collections.unmodifiableMap(documentTypes);
+      _duplicateIds = Collections.unmodifiableSet(duplicateIds);
+    }
+
+    /**
+     * @return IDs of the document types described, in the order sent by the service
+     */
+    public Set<String> getDocumentTypeIds() {
+      return _documentTypes.keySet();
+    }
+
+    /**
+     * @param documentTypeId ID of a document type
+     * @return document type with the passed ID
+     * @throws PluginModelException if the metadata does not describe exactly
+     * one document type with the passed ID
+     */
+    public DocumentType getDocumentType(String documentTypeId) throws PluginModelException {
+      DocumentType documentType = _documentTypes.get(documentTypeId);
+      if (documentType == null || _duplicateIds.contains(documentTypeId)) {
+        throw new PluginModelException("Could not find unique document type with id " + documentTypeId);
+      }
+      return documentType;
+    }
+  }
+
+  @FunctionalInterface
+  public interface MetadataLoader {
+    Metadata load(String siteSearchServiceUrl, Optional<String> projectId) throws PluginModelException;
+  }
+
+  private static class Entry {
+
+    private final Metadata _metadata;
+    private final long _loadTime;
+    private final long _refreshTime;
+
+    private Entry(Metadata metadata, long loadTime, long refreshTime) {
+      _metadata = metadata;
+      _loadTime = loadTime;
+      _refreshTime = refreshTime;
+    }
+  }
+
+  // runs background refreshes
+  private static final ExecutorService REFRESH_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "sitesearch-metadata-refresh");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // starts scheduled refreshes of metadata kept warm
+  private static final ScheduledExecutorService REFRESH_SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "sitesearch-metadata-scheduler");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final Map<String, Entry> _entries = new ConcurrentHashMap<>();
+  private final Map<String, CompletableFuture<Metadata>> _loads = new ConcurrentHashMap<>();
+  private final Set<String> _warmKeys = ConcurrentHashMap.newKeySet();
+  private final AtomicLong _lookups = new AtomicLong();
+
+  private SiteSearchMetadataCache() {}
+
+  /**
+   * @param siteSearchServiceUrl base URL of the site search service
+   * @param projectId project whose fields are requested, or empty for all projects
+   * @param loader loads the metadata from the service
+   * @return metadata for the passed service and project filter
+   * @throws PluginModelException if no usable metadata is cached and it
+   * cannot be loaded
+   */
+  public Metadata get(String siteSearchServiceUrl, Optional<String> projectId, MetadataLoader loader)
+      throws PluginModelException {
+    String key = getKey(siteSearchServiceUrl, projectId);
+    Entry entry = _entries.get(key);
+    long now = System.currentTimeMillis();
+    try {
+      if (entry == null || now - entry._loadTime > MAX_STALE_MILLIS) {
+        MetricsRegistry.getInstance().counter(MISS_METRIC).increment();
+        return load(key, siteSearchServiceUrl, projectId, loader, Runnable::run).get();
+      }
+      if (now >= entry._refreshTime) {
+        MetricsRegistry.getInstance().counter(STALE_HIT_METRIC).increment();
+        load(key, siteSearchServiceUrl, projectId, loader, REFRESH_EXECUTOR);
+      }
+      else {
+        MetricsRegistry.getInstance().counter(FRESH_HIT_METRIC).increment();
+      }
+      return entry._metadata;
+    }
+    catch (ExecutionException e) {
+      throw e.getCause() instanceof PluginModelException ? (PluginModelException)e.getCause() :
+        new PluginModelException("Unable to load site search metadata", e.getCause());
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PluginModelException("Interrupted while loading site search metadata", e);
+    }
+    finally {
+      logHitCounts();
+    }
+  }
+
+  /**
+   * Keeps the metadata for the passed service and project filter warm: loads
+   * it in the background now if not yet cached, and reloads it in the
+   * background on a schedule from then on.  Calls after the first for the
+   * same metadata have no effect, so this can be called on every request.
+   *
+   * @param siteSearchServiceUrl base URL of the site search service
+   * @param projectId project whose fields are requested, or empty for all projects
+   * @param loader loads the metadata from the service
+   */
+  public void keepWarm(String siteSearchServiceUrl, Optional<String> projectId, MetadataLoader loader) {
+    String key = getKey(siteSearchServiceUrl, projectId);
+    if (!_warmKeys.add(key)) {
+      return;
+    }
+    LOG.info("Keeping site search metadata for " + key + " warm; refreshing every " +
+        WARM_REFRESH_MILLIS / 1000 + " seconds");
+    long initialDelay = _entries.containsKey(key) ? WARM_REFRESH_MILLIS : 0;
+    REFRESH_SCHEDULER.scheduleWithFixedDelay(() ->
+        load(key, siteSearchServiceUrl, projectId, loader, REFRESH_EXECUTOR).exceptionally(e -> {
+          // failed refreshes of cached metadata are logged by load()
+          if (!_entries.containsKey(key)) {
+            LOG.warn("Unable to warm site search metadata for " + key + "; will retry", e);
+          }
+          return null;
+        }),
+        initialDelay, WARM_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private static String getKey(String siteSearchServiceUrl, Optional<String> projectId) {
+    return siteSearchServiceUrl + "|" + projectId.orElse("");
+  }
+
+  // starts a load of the passed key unless one is already running; returns the running load
+  private CompletableFuture<Metadata> load(String key, String siteSearchServiceUrl,
+      Optional<String> projectId, MetadataLoader loader, Executor executor) {
+    CompletableFuture<Metadata> started = new CompletableFuture<>();
+    CompletableFuture<Metadata> running = _loads.putIfAbsent(key, started);
+    if (running != null) {
+      return running;
+    }
+    Runnable task = () -> {
+      long start = System.currentTimeMillis();
+      try {
+        Metadata metadata = loader.load(siteSearchServiceUrl, projectId);
+        long loadTime = System.currentTimeMillis();
+        MetricsRegistry.getInstance().histogram(LOAD_METRIC).record(loadTime - start);
+        _entries.put(key, new Entry(metadata, loadTime, loadTime + FRESH_MILLIS));
+        started.complete(metadata);
+      }
+      catch (PluginModelException | RuntimeException e) {
+        Entry stale = _entries.get(key);
+        if (stale != null) {
+          // keep serving what we have, but do not retry on every request
+          MetricsRegistry.getInstance().counter(REFRESH_FAILURE_METRIC).increment();
+          LOG.warn("Unable to refresh site search metadata for " + key + "; serving copy loaded at " +
+              stale._loadTime, e);
+          _entries.put(key, new Entry(stale._metadata, stale._loadTime, System.currentTimeMillis() + REFRESH_RETRY_MILLIS));
+        }
+        started.completeExceptionally(e);
+      }
+      catch (Throwable e) {
+        // waiting requests must not hang on a load that will never complete
+        started.completeExceptionally(e);
+        throw e;
+      }
+      finally {
+        _loads.remove(key, started);
+      }
+    };
+    try {
+      executor.execute(task);
+    }
+    catch (RejectedExecutionException e) {
+      _loads.remove(key, started);
+      started.completeExceptionally(e);
+    }
+    return started;
+  }
+
+  private void logHitCounts() {
+    long lookups = _lookups.incrementAndGet();
+    if (lookups % LOOKUPS_PER_LOG == 0) {
+      LOG.info("Site search metadata cache metrics after " + lookups + " lookups:\n" +
+          MetricsRegistry.getInstance().getSummary(METRIC_PREFIX));
+    }
+  }
+}
@@ -0,0 +1,289 @@
+package org.eupathdb.websvccommon.wsfplugin.solrsearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.log4j.Logger;
+import org.eupathdb.websvccommon.wsfplugin.DelegatingPluginResponse;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.gusdb.wsf.plugin.PluginResponse;
+import org.gusdb.wsf.plugin.PluginUserException;
+
+/**
+ * Caches the result rows of recent site search requests, so repeated
+ * searches (e.g. for popular gene names) are answered without calling the
+ * site search service.  Results change only when the service's index is
+ * rebuilt for a new release, so entries are keyed by the WDK model's build
+ * number as well as the request; entries of an old build are no longer
+ * looked up and are evicted as the cache fills.  Entries also expire after a
+ * day in case an index is rebuilt within a release.
+ *
+ * Rows are stored deflated, as a sequence of length-prefixed UTF-8 values,
+ * so an entry costs a small fraction of its row objects' size.  The cache is
+ * bounded by total stored bytes, evicting least recently used entries;
+ * results whose stored form would exceed a per-entry limit are not cached.
+ */
+public class SiteSearchResultCache {
+
+  private static final Logger LOG = Logger.getLogger(SiteSearchResultCache.class);
+
+  // maximum total bytes of stored results
+  private static final long MAX_TOTAL_BYTES = 64 * 1024 * 1024;
+
+  // results larger than this when stored are not cached
+  private static final int MAX_ENTRY_BYTES = 4 * 1024 * 1024;
+
+  private static final long TIME_TO_LIVE_MILLIS = 24 /* hours */ * 60 * 60 * 1000;
+
+  // hit counts are logged each time this many more lookups have been made
+  private static final long LOOKUPS_PER_LOG = 1000;
+
+  private static final SiteSearchResultCache INSTANCE = new SiteSearchResultCache();
+
+  public static SiteSearchResultCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Result rows of one request, in stored form
+   */
+  public static class CachedResult {
+
+    private final byte[] _rows;
+    private final int _rowCount;
+    private final boolean _truncated;
+    private final long _expirationTime;
+
+    private CachedResult(byte[] rows, int rowCount, boolean truncated, long expirationTime) {
+      _rows = rows;
+      _rowCount = rowCount;
+      _truncated = truncated;
+      _expirationTime = expirationTime;
+    }
+
+    public int getRowCount() {
+      return _rowCount;
+    }
+
+    /**
+     * @return true if the result was cut off at a maximum row count
+     */
+    public boolean isTruncated() {
+      return _truncated;
+    }
+
+    /**
+     * Adds the cached rows to the passed response.
+     *
+     * @param response response to add rows to
+     * @throws PluginModelException if unable to write rows
+     * @throws PluginUserException if unable to write rows
+     */
+    public void replay(PluginResponse response) throws PluginModelException, PluginUserException {
+      Inflater inflater = new Inflater();
+      try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(_rows), inflater, 8192)) {
+        byte[] buf = new byte[256];
+        for (int i = 0; i < _rowCount; i++) {
+          String[] row = new String[readVarInt(in)];
+          for (int j = 0; j < row.length; j++) {
+            int length = readVarInt(in) - 1;
+            if (length < 0) continue; // null value
+            if (length > buf.length) buf = new byte[Math.max(length, buf.length * 2)];
+            if (in.readNBytes(buf, 0, length) != length) {
+              throw new IOException("Cached result ends unexpectedly");
+            }
+            row[j] = new String(buf, 0, length, StandardCharsets.UTF_8);
+          }
+          response.addRow(row);
+        }
+      }
+      catch (IOException e) {
+        throw new PluginModelException("Unable to read cached site search result", e);
+      }
+      finally {
+        inflater.end();
+      }
+    }
+  }
+
+  /**
+   * Records the rows written to a response so they can be cached if the
+   * request succeeds.  Recording stops, and nothing is cached, if the rows
+   * grow too large.
+   */
+  public class Recording {
+
+    private final String _key;
+    private final Deflater _deflater = new Deflater(Deflater.BEST_SPEED);
+    private final ByteArrayOutputStream _bytes = new ByteArrayOutputStream();
+    private final OutputStream _out = new DeflaterOutputStream(_bytes, _deflater, 8192);
+    private int _rowCount = 0;
+    private boolean _abandoned = false;
+
+    private Recording(String key) {
+      _key = key;
+    }
+
+    /**
+     * @param response response rows are written to
+     * @return response that also records the rows written to it
+     */
+    public PluginResponse wrap(PluginResponse response) {
+      return new DelegatingPluginResponse(response) {
+        @Override
+        public void addRow(String[] row) throws PluginModelException, PluginUserException {
+          record(row);
+          super.addRow(row);
+        }
+      };
+    }
+
+    private void record(String[] row) {
+      if (_abandoned) return;
+      try {
+        writeVarInt(_out, row.length);
+        for (String value : row) {
+          if (value == null) {
+            writeVarInt(_out, 0);
+            continue;
+          }
+          byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+          writeVarInt(_out, bytes.length + 1);
+          _out.write(bytes);
+        }
+        _rowCount++;
+        if (_bytes.size() > MAX_ENTRY_BYTES) {
+          LOG.debug("Site search result for " + _key + " is too large to cache");
+          abandon();
+        }
+      }
+      catch (IOException e) {
+        // cannot happen writing to memory; just skip caching
+        abandon();
+      }
+    }
+
+    /**
+     * Caches the recorded rows; call once all rows were written successfully.
+     *
+     * @param truncated whether the rows were cut off at a maximum row count
+     */
+    public void commit(boolean truncated) {
+      if (_abandoned) return;
+      try {
+        _out.close();
+        put(_key, new CachedResult(_bytes.toByteArray(), _rowCount, truncated,
+            System.currentTimeMillis() + TIME_TO_LIVE_MILLIS));
+      }
+      catch (IOException e) {
+        LOG.warn("Unable to cache site search result", e);
+      }
+      finally {
+        abandon();
+      }
+    }
+
+    /**
+     * Discards the recorded rows.
+     */
+    public void abandon() {
+      _abandoned = true;
+      _deflater.end();
+    }
+  }
+
+  private final Map<String, CachedResult> _entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long _totalBytes = 0;
+  private long _hits = 0;
+  private long _misses = 0;
+
+  private SiteSearchResultCache() {}
+
+  /**
+   * @param siteSearchServiceUrl URL the search request is sent to
+   * @param buildNumber build number of the WDK model
+   * @param projectId project of the site making the request
+   * @param recordClassName full name of the record class of the result rows
+   * @param requestBody body of the search request (search text, document
+   * type, fields, project filter and row limit); built deterministically, so
+   * equal requests have equal bodies
+   * @return key for a cached result
+   */
+  public static String getKey(String siteSearchServiceUrl, String buildNumber, String projectId,
+      String recordClassName, String requestBody) {
+    return String.join("\n", siteSearchServiceUrl, String.valueOf(buildNumber), projectId, recordClassName, requestBody);
+  }
+
+  /**
+   * @param key key of result
+   * @return cached result, if present
+   */
+  public synchronized Optional<CachedResult> get(String key) {
+    CachedResult result = _entries.get(key);
+    if (result != null && result._expirationTime <= System.currentTimeMillis()) {
+      remove(key);
+      result = null;
+    }
+    if (result == null) _misses++; else _hits++;
+    if ((_hits + _misses) % LOOKUPS_PER_LOG == 0) {
+      LOG.info("Site search result cache: " + (_hits + _misses) + " lookups, " + _hits + " hits, " +
+          _entries.size() + " results cached in " + _totalBytes + " bytes");
+    }
+    return Optional.ofNullable(result);
+  }
+
+  /**
+   * @param key key of result
+   * @return recording of the rows of the result
+   */
+  public Recording record(String key) {
+    return new Recording(key);
+  }
+
+  private synchronized void put(String key, CachedResult result) {
+    remove(key);
+    _entries.put(key, result);
+    _totalBytes += result._rows.length;
+    Iterator<CachedResult> lru = _entries.values().iterator();
+    while (_totalBytes > MAX_TOTAL_BYTES && lru.hasNext()) {
+      _totalBytes -= lru.next()._rows.length;
+      lru.remove();
+    }
+  }
+
+  private void remove(String key) {
+    CachedResult removed = _entries.remove(key);
+    if (removed != null) _totalBytes -= removed._rows.length;
+  }
+
+  private static void writeVarInt(OutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static int readVarInt(InputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.read();
+      if (b < 0) throw new IOException("Cached result ends unexpectedly");
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new IOException("Malformed cached result");
+  }
+}
@@ -0,0 +1,339 @@
+package org.eupathdb.websvccommon.wsfplugin.solrsearch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.gusdb.wsf.plugin.PluginModelException;
+
+/**
+ * Reads the rows of a site search service result stream directly from its
+ * bytes.  Each line has the form
+ *
+ *   ["pk1","pk2",...] TAB score [TAB projectId]
+ *
+ * The parser finds the fields of a line in its read buffer and decodes only
+ * the primary key values, score and project ID into strings; no line string,
+ * split array or JSON objects are created.  Call next() to advance to each
+ * row, then read its fields with the getters, which are valid until the next
+ * call to next().
+ *
+ * Lines are handled as BufferedReader.readLine() and String.split() handle
+ * them: a line may end with LF or CRLF, and empty trailing fields are
+ * ignored, so a line with a blank project ID has no project ID.
+ */
+public class SiteSearchRowParser {
+
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+  private static final int INITIAL_MAX_PK_VALUES = 4;
+
+  private final InputStream _in;
+  private byte[] _buf = new byte[INITIAL_BUFFER_SIZE];
+  private int _pos = 0;    // start of unread bytes
+  private int _limit = 0;  // end of bytes read into buffer
+  private boolean _eof = false;
+
+  // current line and its fields, as offsets into _buf
+  private int _lineStart, _lineEnd;
+  private int _pkEnd, _scoreStart, _scoreEnd, _projectStart, _projectEnd;
+
+  // decoded primary key values of the current line; reused for every line
+  private String[] _pkValues = new String[INITIAL_MAX_PK_VALUES];
+  private int _pkLength;
+
+  // scratch space for decoding JSON strings with escapes
+  private byte[] _scratch = new byte[256];
+
+  /**
+   * @param in result stream; the caller remains responsible for closing it
+   */
+  public SiteSearchRowParser(InputStream in) {
+    _in = in;
+  }
+
+  /**
+   * Advances to the next row.
+   *
+   * @return true if a row was read, false at end of stream
+   * @throws IOException if unable to read the stream
+   * @throws PluginModelException if the line is not a valid result row
+   */
+  public boolean next() throws IOException, PluginModelException {
+    if (!findLine()) {
+      return false;
+    }
+    splitFields();
+    parsePrimaryKey();
+    return true;
+  }
+
+  /**
+   * @return number of values in the current row's primary key
+   */
+  public int getPrimaryKeyLength() {
+    return _pkLength;
+  }
+
+  /**
+   * @param i index of a primary key value
+   * @return primary key value at the passed index
+   */
+  public String getPrimaryKeyValue(int i) {
+    return _pkValues[i];
+  }
+
+  /**
+   * @return score of the current row
+   */
+  public String getScore() {
+    return decode(_scoreStart, _scoreEnd);
+  }
+
+  /**
+   * @return trimmed project ID of the current row, or null if none was sent
+   */
+  public String getProjectId() {
+    if (_projectStart < 0) return null;
+    String projectId = decode(_projectStart, _projectEnd).trim();
+    return projectId.isEmpty() ? null : projectId;
+  }
+
+  /**
+   * @return text of the current line, e.g. for logging
+   */
+  public String getLine() {
+    return decode(_lineStart, _lineEnd);
+  }
+
+  // sets _lineStart/_lineEnd to the next line (without terminator); false at end of stream
+  private boolean findLine() throws IOException {
+    int scanFrom = _pos;
+    while (true) {
+      for (int i = scanFrom; i < _limit; i++) {
+        if (_buf[i] == '\n') {
+          _lineStart = _pos;
+          _lineEnd = i > _pos && _buf[i - 1] == '\r' ? i - 1 : i;
+          _pos = i + 1;
+          return true;
+        }
+      }
+      if (_eof) {
+        if (_pos == _limit) return false;
+        // last line has no terminator
+        _lineStart = _pos;
+        _lineEnd = _limit > _pos && _buf[_limit - 1] == '\r' ? _limit - 1 : _limit;
+        _pos = _limit;
+        return true;
+      }
+      scanFrom = _limit - _pos;
+      fill();
+      scanFrom += _pos;
+    }
+  }
+
+  // moves unread bytes to the front of the buffer (growing it if full) and reads more
+  private void fill() throws IOException {
+    int unread = _limit - _pos;
+    if (_pos > 0) {
+      System.arraycopy(_buf, _pos, _buf, 0, unread);
+    }
+    else if (unread == _buf.length) {
+      _buf = Arrays.copyOf(_buf, _buf.length * 2);
+    }
+    _pos = 0;
+    _limit = unread;
+    int count = _in.read(_buf, _limit, _buf.length - _limit);
+    if (count < 0) {
+      _eof = true;
+    }
+    else {
+      _limit += count;
+    }
+  }
+
+  private void splitFields() throws PluginModelException {
+    // drop empty trailing fields, as String.split() does
+    int end = _lineEnd;
+    while (end > _lineStart && _buf[end - 1] == '\t') end--;
+
+    int firstTab = indexOfTab(_lineStart, end);
+    int secondTab = firstTab < 0 ? -1 : indexOfTab(firstTab + 1, end);
+    if (firstTab < 0 || (secondTab >= 0 && indexOfTab(secondTab + 1, end) >= 0)) {
+      throw new PluginModelException("Unexpected format in line: " + getLine());
+    }
+    _pkEnd = firstTab;
+    _scoreStart = firstTab + 1;
+    _scoreEnd = secondTab < 0 ? end : secondTab;
+    _projectStart = secondTab < 0 ? -1 : secondTab + 1;
+    _projectEnd = end;
+  }
+
+  private int indexOfTab(int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (_buf[i] == '\t') return i;
+    }
+    return -1;
+  }
+
+  // decodes the JSON array in [_lineStart, _pkEnd) into _pkValues
+  private void parsePrimaryKey() throws PluginModelException {
+    _pkLength = 0;
+    int i = skipWhitespace(_lineStart, _pkEnd);
+    if (i == _pkEnd || _buf[i] != '[') throw badPrimaryKey();
+    i = skipWhitespace(i + 1, _pkEnd);
+    if (i < _pkEnd && _buf[i] == ']') {
+      checkEnd(i + 1);
+      return;
+    }
+    while (true) {
+      i = skipWhitespace(i, _pkEnd);
+      if (i == _pkEnd) throw badPrimaryKey();
+      i = _buf[i] == '"' ? readString(i + 1) : readLiteral(i);
+      i = skipWhitespace(i, _pkEnd);
+      if (i == _pkEnd) throw badPrimaryKey();
+      if (_buf[i] == ']') {
+        checkEnd(i + 1);
+        return;
+      }
+      if (_buf[i] != ',') throw badPrimaryKey();
+      i++;
+    }
+  }
+
+  private void checkEnd(int i) throws PluginModelException {
+    if (skipWhitespace(i, _pkEnd) != _pkEnd) throw badPrimaryKey();
+  }
+
+  // reads a JSON string starting after its opening quote; returns index after closing quote
+  private int readString(int start) throws PluginModelException {
+    // fast path: no escapes, so the value is decoded straight from the buffer
+    for (int i = start; i < _pkEnd; i++) {
+      byte b = _buf[i];
+      if (b == '"') {
+        addPkValue(decode(start, i));
+        return i + 1;
+      }
+      if (b == '\\') {
+        return readEscapedString(start);
+      }
+    }
+    throw badPrimaryKey();
+  }
+
+  private int readEscapedString(int start) throws PluginModelException {
+    int length = 0;
+    for (int i = start; i < _pkEnd; i++) {
+      byte b = _buf[i];
+      if (b == '"') {
+        addPkValue(new String(_scratch, 0, length, StandardCharsets.UTF_8));
+        return i + 1;
+      }
+      if (length + 4 > _scratch.length) {
+        _scratch = Arrays.copyOf(_scratch, _scratch.length * 2);
+      }
+      if (b != '\\') {
+        _scratch[length++] = b;
+        continue;
+      }
+      if (++i == _pkEnd) break;
+      switch (_buf[i]) {
+        case '"':  _scratch[length++] = '"'; break;
+        case '\\': _scratch[length++] = '\\'; break;
+        case '/':  _scratch[length++] = '/'; break;
+        case 'b':  _scratch[length++] = '\b'; break;
+        case 'f':  _scratch[length++] = '\f'; break;
+        case 'n':  _scratch[length++] = '\n'; break;
+        case 'r':  _scratch[length++] = '\r'; break;
+        case 't':  _scratch[length++] = '\t'; break;
+        case 'u':
+          if (i + 4 >= _pkEnd) throw badPrimaryKey();
+          int c = 0;
+          for (int j = 1; j <= 4; j++) {
+            int digit = Character.digit(_buf[i + j], 16);
+            if (digit < 0) throw badPrimaryKey();
+            c = (c << 4) | digit;
+          }
+          i += 4;
+          if (Character.isSurrogate((char)c)) {
+            // surrogate pairs arrive as two escapes; re-encode the pair as one code point
+            if (Character.isHighSurrogate((char)c) && i + 6 < _pkEnd && _buf[i + 1] == '\\' && _buf[i + 2] == 'u') {
+              int low = 0;
+              for (int j = 3; j <= 6; j++) {
+                int digit = Character.digit(_buf[i + j], 16);
+                if (digit < 0) throw badPrimaryKey();
+                low = (low << 4) | digit;
+              }
+              i += 6;
+              c = Character.toCodePoint((char)c, (char)low);
+            }
+            else {
+              c = '?';
+            }
+          }
+          length = appendUtf8(c, length);
+          break;
+        default:
+          throw badPrimaryKey();
+      }
+    }
+    throw badPrimaryKey();
+  }
+
+  private int appendUtf8(int codePoint, int length) {
+    if (codePoint < 0x80) {
+      _scratch[length++] = (byte)codePoint;
+    }
+    else if (codePoint < 0x800) {
+      _scratch[length++] = (byte)(0xC0 | (codePoint >> 6));
+      _scratch[length++] = (byte)(0x80 | (codePoint & 0x3F));
+    }
+    else if (codePoint < 0x10000) {
+      _scratch[length++] = (byte)(0xE0 | (codePoint >> 12));
+      _scratch[length++] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+      _scratch[length++] = (byte)(0x80 | (codePoint & 0x3F));
+    }
+    else {
+      _scratch[length++] = (byte)(0xF0 | (codePoint >> 18));
+      _scratch[length++] = (byte)(0x80 | ((codePoint >> 12) & 0x3F));
+      _scratch[length++] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+      _scratch[length++] = (byte)(0x80 | (codePoint & 0x3F));
+    }
+    return length;
+  }
+
+  // reads a non-string value (number, boolean, null) as its text
+  private int readLiteral(int start) throws PluginModelException {
+    int i = start;
+    while (i < _pkEnd && _buf[i] != ',' && _buf[i] != ']') i++;
+    int end = i;
+    while (end > start && isWhitespace(_buf[end - 1])) end--;
+    if (end == start) throw badPrimaryKey();
+    addPkValue(decode(start, end));
+    return i;
+  }
+
+  private void addPkValue(String value) {
+    if (_pkLength == _pkValues.length) {
+      _pkValues = Arrays.copyOf(_pkValues, _pkValues.length * 2);
+    }
+    _pkValues[_pkLength++] = value;
+  }
+
+  private int skipWhitespace(int i, int end) {
+    while (i < end && isWhitespace(_buf[i])) i++;
+    return i;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+  }
+
+  private String decode(int start, int end) {
+    return new String(_buf, start, end - start, StandardCharsets.UTF_8);
+  }
+
+  private PluginModelException badPrimaryKey() {
+    return new PluginModelException("Unexpected primary key format in line: " + getLine());
+  }
+}
@@ -0,0 +1,269 @@
+package org.eupathdb.websvccommon.wsfplugin.solrsearch;
+
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.gusdb.wsf.plugin.PluginResponse;
+import org.gusdb.wsf.plugin.PluginUserException;
+
+/**
+ * Two-stage pipeline from a site search result stream to a plugin response.
+ * A reader thread drains the stream, parses each line into its primary key
+ * values, project ID and score, and hands them on in batches through a
+ * bounded queue; the calling thread takes batches from the queue, builds the
+ * result rows and adds them to the plugin response.  The service connection
+ * is therefore read while rows are being written, and the reader blocks only
+ * when the writer falls a full queue behind.
+ *
+ * Only parsing happens on the reader thread.  Result rows are built (by the
+ * passed RowBuilder) and written on the calling thread, so row building code
+ * and plugin responses are never used from other threads.  Callers merging
+ * several pipelines step through rows (and their scores) with advance()
+ * instead of calling writeTo().
+ * Closing the pipeline (and its stream) stops the reader early, e.g. once the
+ * writer has as many rows as it needs.
+ */
+public class SiteSearchRowPipeline implements AutoCloseable {
+
+  private static final Logger LOG = Logger.getLogger(SiteSearchRowPipeline.class);
+
+  public static final int DEFAULT_BATCH_SIZE = 500;
+  public static final int DEFAULT_QUEUED_BATCHES = 16;
+
+  // how often a blocked reader checks whether the pipeline was closed
+  private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+  /**
+   * Parsed lines handed from reader to writer at once
+   */
+  private static class Batch {
+
+    private final String[][] _primaryKeys;
+    private final String[] _projectIds;
+    private final String[] _scoreValues;
+    private final double[] _scores;
+    private int _size = 0;
+
+    private Batch(int capacity) {
+      _primaryKeys = new String[capacity][];
+      _projectIds = new String[capacity];
+      _scoreValues = new String[capacity];
+      _scores = new double[capacity];
+    }
+  }
+
+  // marks the end of the row stream
+  private static final Batch END = new Batch(0);
+
+  private static final ExecutorService READER_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "sitesearch-reader");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Builds the result row of a parsed line.  Called on the thread writing
+   * rows, i.e. the caller of writeTo() or getRow().
+   */
+  @FunctionalInterface
+  public interface RowBuilder {
+    String[] buildRow(String[] primaryKey, String projectId, String score) throws PluginModelException;
+  }
+
+  private final RowBuilder _rowBuilder;
+  private final BlockingQueue<Batch> _batches;
+  private final int _batchSize;
+  private volatile boolean _closed = false;
+  private volatile Exception _readerFailure;
+  private final AtomicInteger _rowsRead = new AtomicInteger();
+
+  // batch and row reached by advance()
+  private Batch _current;
+  private int _currentIndex;
+
+  /**
+   * Starts reading the passed stream.
+   *
+   * @param in result stream; the caller remains responsible for closing it
+   * @param rowBuilder builds result rows from parsed lines, on the writing thread
+   * @param batchSize maximum number of lines handed from reader to writer at once
+   * @param queuedBatches number of batches the reader may get ahead of the writer
+   */
+  public SiteSearchRowPipeline(InputStream in, RowBuilder rowBuilder, int batchSize, int queuedBatches) {
+    _rowBuilder = rowBuilder;
+    _batchSize = batchSize;
+    _batches = new ArrayBlockingQueue<>(queuedBatches);
+    READER_EXECUTOR.execute(() -> read(new SiteSearchRowParser(in)));
+  }
+
+  private void read(SiteSearchRowParser rows) {
+    try {
+      boolean logLines = LOG.isDebugEnabled();
+      Batch batch = new Batch(_batchSize);
+      while (!_closed && rows.next()) {
+        if (logLines) LOG.debug("Site Search Service response line: " + rows.getLine());
+        // the parser reuses its primary key values, so copy them
+        String[] primaryKey = new String[rows.getPrimaryKeyLength()];
+        for (int i = 0; i < primaryKey.length; i++) {
+          primaryKey[i] = rows.getPrimaryKeyValue(i);
+        }
+        String score = rows.getScore();
+        batch._primaryKeys[batch._size] = primaryKey;
+        batch._projectIds[batch._size] = rows.getProjectId();
+        batch._scoreValues[batch._size] = score;
+        batch._scores[batch._size++] = parseScore(score);
+        if (batch._size == _batchSize) {
+          hand(batch);
+          batch = new Batch(_batchSize);
+        }
+      }
+      if (batch._size > 0) {
+        hand(batch);
+      }
+    }
+    catch (Exception e) {
+      // reported to the writer below; after close, failure is expected (stream closed under us)
+      if (!_closed) _readerFailure = e;
+    }
+    finally {
+      try {
+        hand(END);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  // blocks until the queue has room for the batch, or the pipeline is closed
+  private void hand(Batch batch) throws InterruptedException {
+    while (!_closed) {
+      if (_batches.offer(batch, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        _rowsRead.addAndGet(batch._size);
+        return;
+      }
+    }
+  }
+
+  // rows with unreadable scores sort last
+  private static double parseScore(String score) {
+    try {
+      return Double.parseDouble(score);
+    }
+    catch (NumberFormatException e) {
+      return Double.NEGATIVE_INFINITY;
+    }
+  }
+
+  /**
+   * Adds the rows of the result stream to the passed response, returning once
+   * the reader reaches the end of the stream or the passed number of rows has
+   * been added.  In the latter case the caller should close the pipeline and
+   * the result stream, so the rest of the stream is not read.
+   *
+   * @param response response to add rows to
+   * @param maxRows maximum number of rows to add, or 0 for no limit
+   * @return true if rows were left unwritten because the limit was reached
+   * @throws PluginModelException if the reader failed, or the response could not be written
+   * @throws PluginUserException if the response could not be written
+   */
+  public boolean writeTo(PluginResponse response, int maxRows) throws PluginModelException, PluginUserException {
+    int rowsWritten = 0;
+    Batch batch;
+    while ((batch = takeBatch()) != null) {
+      int count = maxRows > 0 ? Math.min(batch._size, maxRows - rowsWritten) : batch._size;
+      for (int i = 0; i < count; i++) {
+        response.addRow(buildRow(batch, i));
+      }
+      rowsWritten += count;
+      if (rowsWritten == maxRows && (count < batch._size || takeBatch() != null)) {
+        LOG.info("Stopped writing site search rows at the limit of " + maxRows + " rows");
+        return true;
+      }
+    }
+    LOG.debug("Wrote " + rowsWritten + " site search rows");
+    return false;
+  }
+
+  /**
+   * Moves to the next row.  Used instead of writeTo() by callers that
+   * examine rows one at a time (e.g. to merge several pipelines).
+   *
+   * @return true if there is a next row, false at the end of the stream
+   * @throws PluginModelException if the reader failed
+   */
+  public boolean advance() throws PluginModelException {
+    if (_current != null && ++_currentIndex < _current._size) {
+      return true;
+    }
+    _current = takeBatch();
+    _currentIndex = 0;
+    return _current != null;
+  }
+
+  /**
+   * Builds the current row.  Valid after advance() returns true.
+   *
+   * @return current row
+   * @throws PluginModelException if the row could not be built
+   */
+  public String[] getRow() throws PluginModelException {
+    return buildRow(_current, _currentIndex);
+  }
+
+  /**
+   * @return score of the current row; valid after advance() returns true
+   */
+  public double getScore() {
+    return _current._scores[_currentIndex];
+  }
+
+  private String[] buildRow(Batch batch, int i) throws PluginModelException {
+    return _rowBuilder.buildRow(batch._primaryKeys[i], batch._projectIds[i], batch._scoreValues[i]);
+  }
+
+  // returns the next non-empty batch, or null at the end of the stream
+  private Batch takeBatch() throws PluginModelException {
+    try {
+      Batch batch = _batches.take();
+      if (batch != END) {
+        return batch;
+      }
+      // leave the end marker for any further calls
+      _batches.offer(END);
+      if (_readerFailure != null) {
+        throw _readerFailure instanceof PluginModelException ? (PluginModelException)_readerFailure :
+          new PluginModelException("Could not read response from site search service", _readerFailure);
+      }
+      return null;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PluginModelException("Interrupted while writing site search rows", e);
+    }
+  }
+
+  /**
+   * @return number of rows the reader has handed to the writer so far
+   */
+  public int getRowsRead() {
+    return _rowsRead.get();
+  }
+
+  /**
+   * Stops the reader after its current row.  The caller should also close the
+   * result stream, which unblocks a reader waiting on the network.
+   */
+  @Override
+  public void close() {
+    _closed = true;
+    _batches.clear();
+  }
+}
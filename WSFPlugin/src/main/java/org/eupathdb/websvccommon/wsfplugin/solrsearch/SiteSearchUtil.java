@@ -3,18 +3,25 @@ package org.eupathdb.websvccommon.wsfplugin.solrsearch;
 import static org.gusdb.fgputil.FormatUtil.NL;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import javax.ws.rs.core.Response.Status.Family;
 
 import org.apache.log4j.Logger;
+import org.eupathdb.websvccommon.wsfplugin.HttpTransport;
+import org.eupathdb.websvccommon.wsfplugin.HttpTransport.ServiceResponse;
+import org.eupathdb.websvccommon.wsfplugin.HttpTransport.Settings;
 import org.eupathdb.websvccommon.wsfplugin.PluginUtilities;
-import org.gusdb.fgputil.client.ClientUtil;
-import org.gusdb.fgputil.client.CloseableResponse;
+import org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchMetadataCache.DocumentType;
+import org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchMetadataCache.Metadata;
 import org.gusdb.fgputil.json.JsonIterators;
 import org.gusdb.fgputil.web.HttpMethod;
 import org.gusdb.wsf.plugin.PluginModelException;
@@ -30,6 +37,14 @@ public class SiteSearchUtil {
   private static final String LOCALHOST_PROP_KEY = "LOCALHOST";
   private static final String SERVICE_URL_PROP_KEY = "SITE_SEARCH_SERVICE_URL";
 
+  // optional; comma-delimited projects a portal search is split across, and
+  //   maximum number of rows a split search returns (0 for no limit)
+  private static final String FAN_OUT_PROJECTS_PROP_KEY = "SITE_SEARCH_FAN_OUT_PROJECTS";
+  private static final String FAN_OUT_MAX_ROWS_PROP_KEY = "SITE_SEARCH_FAN_OUT_MAX_ROWS";
+
+  // optional; maximum number of rows any search returns (0 for no limit)
+  private static final String MAX_ROWS_PROP_KEY = "SITE_SEARCH_MAX_ROWS";
+
   private static final String METADATA_URI = "/categories-metadata";
 
   public static class SearchField {
@@ -64,6 +79,13 @@ public class SiteSearchUtil {
     }
   }
 
+  /**
+   * @return transport shared by all requests to the site search service
+   */
+  public static HttpTransport getTransport() {
+    return HttpTransport.getInstance(Settings.DEFAULT);
+  }
+
   public static String getSiteSearchServiceUrl(PluginRequest request) throws PluginModelException {
     Map<String,String> modelProps = PluginUtilities.getWdkModel(request.getProjectId()).getProperties();
     String localhost = modelProps.get(LOCALHOST_PROP_KEY);
@@ -75,37 +97,129 @@ public class SiteSearchUtil {
     return localhost + siteSearchServiceUrl;
   }
 
+  /**
+   * @param request plugin request
+   * @return projects a search spanning all projects should be split across,
+   * one request per project; empty if searches should not be split
+   */
+  public static List<String> getFanOutProjectIds(PluginRequest request) {
+    String projectIds = PluginUtilities.getWdkModel(request.getProjectId()).getProperties().get(FAN_OUT_PROJECTS_PROP_KEY);
+    return projectIds == null ? Collections.emptyList() : Arrays.stream(projectIds.split(","))
+      .map(String::trim)
+      .filter(projectId -> !projectId.isEmpty())
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * @param request plugin request
+   * @return maximum number of rows returned by a split search, or 0 for no limit
+   * @throws PluginModelException if the configured value is not a non-negative integer
+   */
+  public static int getFanOutMaxRows(PluginRequest request) throws PluginModelException {
+    return getRowLimit(request, FAN_OUT_MAX_ROWS_PROP_KEY);
+  }
+
+  /**
+   * @param request plugin request
+   * @return maximum number of rows returned by any search, or 0 for no limit
+   * @throws PluginModelException if the configured value is not a non-negative integer
+   */
+  public static int getMaxRows(PluginRequest request) throws PluginModelException {
+    return getRowLimit(request, MAX_ROWS_PROP_KEY);
+  }
+
+  private static int getRowLimit(PluginRequest request, String propKey) throws PluginModelException {
+    String maxRows = PluginUtilities.getWdkModel(request.getProjectId()).getProperties().get(propKey);
+    try {
+      int value = maxRows == null ? 0 : Integer.parseInt(maxRows.trim());
+      if (value < 0) throw new NumberFormatException();
+      return value;
+    }
+    catch (NumberFormatException e) {
+      throw new PluginModelException("model.prop property " + propKey +
+          " must be a non-negative integer: " + maxRows);
+    }
+  }
+
+  /**
+   * @param siteSearchServiceUrl base URL of the site search service
+   * @param documentType ID of document type whose fields are requested
+   * @param projectId project whose fields are requested, or empty for all projects (portal)
+   * @return search fields of the passed document type, from cached metadata if available
+   * @throws PluginModelException if unable to load metadata or it does not
+   * describe the passed document type
+   */
   public static List<SearchField> getSearchFields(String siteSearchServiceUrl, String documentType, Optional<String> projectId) throws PluginModelException {
+    return getDocumentType(siteSearchServiceUrl, documentType, projectId).getFields();
+  }
+
+  /**
+   * @param siteSearchServiceUrl base URL of the site search service
+   * @param documentType ID of document type whose fields are requested
+   * @param projectId project whose fields are requested, or empty for all projects (portal)
+   * @return the passed document type (its search fields and vocabulary rows),
+   * from cached metadata if available
+   * @throws PluginModelException if unable to load metadata or it does not
+   * describe the passed document type
+   */
+  public static DocumentType getDocumentType(String siteSearchServiceUrl, String documentType, Optional<String> projectId) throws PluginModelException {
+    return SiteSearchMetadataCache.getInstance()
+      .get(siteSearchServiceUrl, projectId, SiteSearchUtil::loadMetadata)
+      .getDocumentType(documentType);
+  }
+
+  /**
+   * Keeps the metadata used by getDocumentType() for the passed service and
+   * project filter loaded and fresh in the background.
+   *
+   * @param siteSearchServiceUrl base URL of the site search service
+   * @param projectId project whose fields are requested, or empty for all projects (portal)
+   */
+  public static void keepMetadataWarm(String siteSearchServiceUrl, Optional<String> projectId) {
+    SiteSearchMetadataCache.getInstance().keepWarm(siteSearchServiceUrl, projectId, SiteSearchUtil::loadMetadata);
+  }
+
+  /**
+   * Loads categories metadata from the site search service.
+   *
+   * @param siteSearchServiceUrl base URL of the site search service
+   * @param projectId project whose fields are requested, or empty for all projects (portal)
+   * @return metadata returned by the service
+   * @throws PluginModelException if unable to load or parse metadata
+   */
+  static Metadata loadMetadata(String siteSearchServiceUrl, Optional<String> projectId) throws PluginModelException {
     // only add project ID filter for non-portal sites; for portal get back all fields
     String projectIdParam = projectId.map(proj -> "?projectId=" + proj).orElse("");
     String metadataUrl = siteSearchServiceUrl + METADATA_URI + projectIdParam;
     LOG.info("Querying site search service with: " + metadataUrl);
     String responseBody = null;
-    try (CloseableResponse response = ClientUtil.makeRequest(metadataUrl,
+    try (ServiceResponse response = getTransport().request(metadataUrl,
         HttpMethod.GET, Optional.empty(), Collections.emptyMap())) {
 
-      responseBody = ClientUtil.readSmallResponseBody(response);
+      responseBody = response.readSmallBody();
       if (!response.getStatusInfo().getFamily().equals(Family.SUCCESSFUL)) {
         throw new PluginModelException("Unable to retrieve metadata from site " +
             "search service.  Request returned " + response.getStatus() +
             ". Response body:\n" + responseBody);
       }
       JSONArray docTypes = new JSONObject(responseBody).getJSONArray("documentTypes");
-      List<JSONArray> fieldsJsons = JsonIterators.arrayStream(docTypes)
-        .map(obj -> obj.getJSONObject())
-        .filter(obj -> obj.getString("id").equals(documentType))
-        .map(obj -> obj.getJSONArray("searchFields"))
-        .collect(Collectors.toList());
-      if (fieldsJsons.size() != 1) {
-        throw new PluginModelException("Could not find unique document type with id " + documentType);
+      Map<String, DocumentType> documentTypes = new LinkedHashMap<>();
+      Set<String> duplicateIds = new HashSet<>();
+      for (int i = 0; i < docTypes.length(); i++) {
+        JSONObject docType = docTypes.getJSONObject(i);
+        String id = docType.getString("id");
+        List<SearchField> fields = JsonIterators.arrayStream(docType.getJSONArray("searchFields"))
+          .map(obj -> obj.getJSONObject())
+          .map(json -> new SearchField(
+             json.getString("name"),
+             json.getString("displayName"),
+             json.getString("term")))
+          .collect(Collectors.toList());
+        if (documentTypes.put(id, new DocumentType(fields)) != null) {
+          duplicateIds.add(id);
+        }
       }
-      return JsonIterators.arrayStream(fieldsJsons.get(0))
-        .map(obj -> obj.getJSONObject())
-        .map(json -> new SearchField(
-           json.getString("name"),
-           json.getString("displayName"),
-           json.getString("term")))
-        .collect(Collectors.toList());
+      return new Metadata(documentTypes, duplicateIds);
     }
     catch (JSONException e) {
       throw new PluginModelException("Unable to read metadata JSON: " + NL + responseBody, e);
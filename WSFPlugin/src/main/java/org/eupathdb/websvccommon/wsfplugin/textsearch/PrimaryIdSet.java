@@ -0,0 +1,109 @@
+package org.eupathdb.websvccommon.wsfplugin.textsearch;
+
+/**
+ * Set of the primary IDs already returned by a text search, used only to
+ * catch duplicate rows.  Text searches can return millions of rows, so
+ * instead of the IDs themselves (roughly 100 bytes per entry in a
+ * HashSet&lt;String&gt;) the set stores a 64-bit fingerprint of each ID in an
+ * open-addressing table of longs, costing 11-21 bytes per entry depending
+ * on how full the table is.
+ *
+ * Queries usually return rows ordered by primary key.  While IDs arrive in
+ * ascending order, lookups are answered exactly by comparing with the last
+ * ID added, without consulting the fingerprints; only once the order breaks
+ * are fingerprints compared.  Two different IDs then share a fingerprint
+ * with a probability of about n^2 / 2^65 for n IDs (under 10^-7 for ten
+ * million), in which case the later ID is reported as a duplicate.
+ */
+class PrimaryIdSet {
+
+  private static final int INITIAL_CAPACITY = 1024; // must be a power of 2
+  private static final double MAX_LOAD = 0.75;
+
+  // marks an empty slot; fingerprints that compute to it are remapped
+  private static final long EMPTY = 0;
+
+  private long[] _fingerprints = new long[INITIAL_CAPACITY];
+  private int _size = 0;
+  private int _resizeAt = (int)(INITIAL_CAPACITY * MAX_LOAD);
+
+  // last ID added, and whether all IDs so far were added in ascending order
+  private String _last = null;
+  private boolean _ascending = true;
+
+  /**
+   * @param id an ID
+   * @return true if the ID was added to this set (see class comment for the
+   * chance of a false positive once IDs arrive out of order)
+   */
+  public boolean contains(String id) {
+    if (_ascending && _last != null) {
+      int comparison = id.compareTo(_last);
+      if (comparison > 0) return false; // after every ID added so far
+      if (comparison == 0) return true;
+    }
+    if (_size == 0) return false;
+    long fingerprint = fingerprint(id);
+    int mask = _fingerprints.length - 1;
+    for (int i = (int)fingerprint & mask; _fingerprints[i] != EMPTY; i = (i + 1) & mask) {
+      if (_fingerprints[i] == fingerprint) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param id ID to add
+   */
+  public void add(String id) {
+    if (_ascending && _last != null && id.compareTo(_last) <= 0) {
+      _ascending = false;
+    }
+    _last = id;
+    if (insert(_fingerprints, fingerprint(id)) && ++_size > _resizeAt) {
+      resize();
+    }
+  }
+
+  /**
+   * @return number of distinct fingerprints added
+   */
+  public int size() {
+    return _size;
+  }
+
+  // returns true if the fingerprint was not already present
+  private static boolean insert(long[] table, long fingerprint) {
+    int mask = table.length - 1;
+    int i = (int)fingerprint & mask;
+    while (table[i] != EMPTY) {
+      if (table[i] == fingerprint) return false;
+      i = (i + 1) & mask;
+    }
+    table[i] = fingerprint;
+    return true;
+  }
+
+  private void resize() {
+    long[] table = new long[_fingerprints.length * 2];
+    for (long fingerprint : _fingerprints) {
+      if (fingerprint != EMPTY) insert(table, fingerprint);
+    }
+    _fingerprints = table;
+    _resizeAt = (int)(table.length * MAX_LOAD);
+  }
+
+  // 64-bit FNV-1a over the ID's chars, with a final mix so the low bits
+  // (used as the table index) depend on every char
+  static long fingerprint(String id) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < id.length(); i++) {
+      hash = (hash ^ id.charAt(i)) * 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash == EMPTY ? 1 : hash;
+  }
+}
@@ -12,9 +12,7 @@ import static org.eupathdb.websvccommon.wsfplugin.textsearch.AbstractOracleTextS
 //import org.apache.log4j.Logger;
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 
 import org.gusdb.wsf.plugin.PluginModelException;
 import org.gusdb.wsf.plugin.PluginResponse;
@@ -29,12 +27,13 @@ public class ResponseResultContainer implements ResultContainer {
 
   private final PluginResponse response;
   private final Map<String, Integer> columnOrders;
-  private final Set<String> primaryIds;
+  // fingerprints of the primary IDs returned, to catch duplicates
+  private final PrimaryIdSet primaryIds;
 
   public ResponseResultContainer(PluginResponse response,
       String[] orderedColumns) {
     this.response = response;
-    this.primaryIds = new HashSet<>();
+    this.primaryIds = new PrimaryIdSet();
     this.columnOrders = new HashMap<>(orderedColumns.length);
     for (int i = 0; i < orderedColumns.length; i++) {
       columnOrders.put(orderedColumns[i], i);
@@ -0,0 +1,187 @@
+package org.eupathdb.websvccommon.wsfplugin.blast.loadtest;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eupathdb.websvccommon.wsfplugin.CircuitBreaker;
+import org.eupathdb.websvccommon.wsfplugin.HttpTransport;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastJobTracker;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastJobTracker.CompletedJob;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastJsonResultFormatter;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastRequestCoalescer;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastRequestCoalescer.Flight;
+import org.eupathdb.websvccommon.wsfplugin.blast.MultiBlastServiceClient;
+import org.eupathdb.websvccommon.wsfplugin.blast.PollingPolicy;
+import org.gusdb.fgputil.Tuples.TwoTuple;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Drives the multi-blast plugin's service path (request coalescing, the shared
+ * job tracker, the service client and report download) with concurrent
+ * requests against a MultiBlastServiceSimulator, and reports request latency
+ * percentiles, thread usage and heap usage.  The plugin itself needs a WDK
+ * model, so its execute() is not called; everything it does after building
+ * the job request is.
+ *
+ * Arguments are name=value pairs; all are optional:
+ *
+ *   requests          total requests to make (default 200)
+ *   concurrency       requests in progress at once (default 50)
+ *   distinct          number of distinct queries; fewer means more coalescing (default 20)
+ *   queueDelayMillis  simulated job and report run time (default 2000)
+ *   errorRate         simulated fraction of failing jobs and reports (default 0)
+ *   expiryRate        simulated fraction of jobs and reports that expire once (default 0)
+ *   reportHits        hits per simulated report (default 500)
+ *   format            report format, pairwise or single-file-json (default pairwise)
+ *   hedgePercentile   status request hedging percentile, 0 to disable (default 0)
+ *
+ * Lives in the test source tree so it is not shipped with the plugins; run it
+ * with the module's test classpath (e.g. via exec:java with classpathScope=test).
+ */
+public class MultiBlastLoadGenerator {
+
+  private static final long REQUEST_TIMEOUT_MILLIS = 5 /* minutes */ * 60 * 1000;
+  private static final long HEAP_SAMPLE_INTERVAL_MILLIS = 100;
+
+  // all simulated requests are made by one user, so identical ones coalesce
+  private static final long LOAD_TEST_USER_ID = 1;
+
+  public static void main(String[] args) throws Exception {
+    Map<String,String> options = parseArgs(args);
+    int numRequests = Integer.parseInt(options.getOrDefault("requests", "200"));
+    int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "50"));
+    int distinct = Integer.parseInt(options.getOrDefault("distinct", "20"));
+    String format = options.getOrDefault("format", "pairwise");
+    double hedgePercentile = Double.parseDouble(options.getOrDefault("hedgePercentile", "0"));
+    MultiBlastServiceSimulator.Settings simulatorSettings = new MultiBlastServiceSimulator.Settings(
+        Long.parseLong(options.getOrDefault("queueDelayMillis", "2000")),
+        Double.parseDouble(options.getOrDefault("errorRate", "0")),
+        Double.parseDouble(options.getOrDefault("expiryRate", "0")),
+        Integer.parseInt(options.getOrDefault("reportHits", "500")));
+    String fileName = format.equals(MultiBlastJsonResultFormatter.REPORT_FORMAT)
+        ? MultiBlastJsonResultFormatter.REPORT_FILE_NAME : "report.txt";
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    AtomicLong peakHeapBytes = new AtomicLong();
+    ScheduledExecutorService heapSampler = Executors.newSingleThreadScheduledExecutor();
+    heapSampler.scheduleAtFixedRate(() -> peakHeapBytes.accumulateAndGet(
+        memory.getHeapMemoryUsage().getUsed(), Math::max), 0, HEAP_SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+    try (MultiBlastServiceSimulator simulator = new MultiBlastServiceSimulator(simulatorSettings)) {
+      MultiBlastServiceClient client = new MultiBlastServiceClient(simulator.getServiceUrl(),
+          new TwoTuple<>("Auth-Key", "load-test"), HttpTransport.getInstance(HttpTransport.Settings.DEFAULT),
+          CircuitBreaker.getInstance(simulator.getServiceUrl(), CircuitBreaker.Settings.DEFAULT), hedgePercentile);
+      PollingPolicy policy = new PollingPolicy(250, 5000, 2, 0.2);
+
+      List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+      Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+      AtomicLong reportBytes = new AtomicLong();
+      threads.resetPeakThreadCount();
+      int baseThreads = threads.getThreadCount();
+      long start = System.currentTimeMillis();
+
+      ExecutorService requesters = Executors.newFixedThreadPool(concurrency);
+      List<Future<?>> results = new ArrayList<>();
+      for (int i = 0; i < numRequests; i++) {
+        JSONObject jobRequest = newJobRequest(i % distinct);
+        results.add(requesters.submit(() -> {
+          long requestStart = System.currentTimeMillis();
+          try (Flight flight = MultiBlastRequestCoalescer.getInstance().join(
+              MultiBlastRequestCoalescer.getKey(jobRequest, LOAD_TEST_USER_ID, format),
+              () -> MultiBlastJobTracker.getInstance().runJob(client, jobRequest, format, policy),
+              0)) {
+            CompletedJob job = flight.getJob().get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            try (InputStream report = flight.openReport(() -> client.openReport(job.getReportId(), fileName),
+                REQUEST_TIMEOUT_MILLIS)) {
+              reportBytes.addAndGet(report.transferTo(OutputStream.nullOutputStream()));
+            }
+            latencies.add(System.currentTimeMillis() - requestStart);
+          }
+          catch (Exception e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            failures.computeIfAbsent(cause.getClass().getSimpleName() + ": " + cause.getMessage(),
+                k -> new AtomicInteger()).incrementAndGet();
+          }
+          return null;
+        }));
+      }
+      for (Future<?> result : results) {
+        result.get();
+      }
+      long elapsed = System.currentTimeMillis() - start;
+      requesters.shutdown();
+
+      List<Long> sorted = new ArrayList<>(latencies);
+      Collections.sort(sorted);
+      System.out.println("Simulator settings:  " + simulatorSettings);
+      System.out.println("Requests:            " + numRequests + " (" + distinct + " distinct, " +
+          concurrency + " concurrent, format " + format + ")");
+      System.out.println("Succeeded/failed:    " + sorted.size() + "/" + (numRequests - sorted.size()));
+      failures.forEach((cause, count) -> System.out.println("  " + count + " x " + cause));
+      System.out.println("Elapsed:             " + elapsed + "ms (" +
+          String.format("%.1f", numRequests * 1000.0 / Math.max(1, elapsed)) + " requests/s)");
+      System.out.println("Latency ms:          p50 " + percentile(sorted, 0.5) + ", p90 " + percentile(sorted, 0.9) +
+          ", p99 " + percentile(sorted, 0.99) + ", max " + percentile(sorted, 1));
+      System.out.println("Service requests:    " + simulator.getRequestCount());
+      System.out.println("Report bytes read:   " + reportBytes.get());
+      System.out.println("Threads:             " + baseThreads + " at start, peak " + threads.getPeakThreadCount());
+      System.out.println("Peak heap used:      " + peakHeapBytes.get() / (1024 * 1024) + "MB");
+    }
+    finally {
+      heapSampler.shutdownNow();
+    }
+    // polling and transport threads are daemons; nothing else keeps the JVM alive
+  }
+
+  private static Map<String,String> parseArgs(String[] args) {
+    Map<String,String> options = new HashMap<>();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq < 1) {
+        throw new IllegalArgumentException("Arguments must be name=value pairs: " + arg);
+      }
+      options.put(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+    return options;
+  }
+
+  // builds a job request like the plugin's, with a query identified by the passed index
+  private static JSONObject newJobRequest(int queryIndex) {
+    return new JSONObject()
+      .put("site", "LoadTestDB")
+      .put("maxResultSize", 0)
+      .put("maxSequences", 1)
+      .put("isPrimary", false)
+      .put("config", new JSONObject()
+        .put("tool", "blastn")
+        .put("query", ">query" + queryIndex + "\nACGTACGTACGTACGTACGTACGT" + queryIndex)
+        .put("eValue", "10")
+        .put("maxTargetSeqs", 100))
+      .put("targets", new JSONArray()
+        .put(new JSONObject().put("organism", "Simulated_organism").put("target", "SimulatedGenome")));
+  }
+
+  private static long percentile(List<Long> sorted, double percentile) {
+    if (sorted.isEmpty()) return 0;
+    return sorted.get(Math.max(0, (int)Math.ceil(percentile * sorted.size()) - 1));
+  }
+}
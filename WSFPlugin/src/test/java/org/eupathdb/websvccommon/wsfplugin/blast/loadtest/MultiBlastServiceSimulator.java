@@ -0,0 +1,261 @@
+package org.eupathdb.websvccommon.wsfplugin.blast.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the multi-blast service, for load testing the
+ * multi-blast plugin's service calls without a real deployment.  Implements
+ * the job and report endpoints the plugin uses:
+ *
+ *   POST /jobs, GET /jobs/{id}, POST /jobs/{id} (rerun)
+ *   POST /reports, GET /reports/{id}, POST /reports/{id} (rerun)
+ *   GET /reports/{id}/files/{report.txt|report.json}
+ *
+ * Jobs and reports complete after a configured queue delay.  A configured
+ * fraction of them error, and a configured fraction report themselves
+ * expired once (and must be rerun).  Report files are generated on request
+ * with a configured number of hits, gzipped if the client accepts it.
+ */
+public class MultiBlastServiceSimulator implements AutoCloseable {
+
+  private static final Logger LOG = Logger.getLogger(MultiBlastServiceSimulator.class);
+
+  public static class Settings {
+
+    private final long _queueDelayMillis;
+    private final double _errorRate;
+    private final double _expiryRate;
+    private final int _reportHits;
+
+    /**
+     * @param queueDelayMillis time a job or report takes to complete
+     * @param errorRate fraction of jobs and reports that end in error
+     * @param expiryRate fraction of jobs and reports that expire once
+     * @param reportHits number of hits in each generated report
+     */
+    public Settings(long queueDelayMillis, double errorRate, double expiryRate, int reportHits) {
+      _queueDelayMillis = queueDelayMillis;
+      _errorRate = errorRate;
+      _expiryRate = expiryRate;
+      _reportHits = reportHits;
+    }
+
+    @Override
+    public String toString() {
+      return "{ queueDelayMillis: " + _queueDelayMillis + ", errorRate: " + _errorRate +
+          ", expiryRate: " + _expiryRate + ", reportHits: " + _reportHits + " }";
+    }
+  }
+
+  /**
+   * A simulated job or report
+   */
+  private static class Resource {
+
+    private final long _readyTime;
+    private final boolean _errors;
+    private final boolean _expired;
+
+    private Resource(long readyTime, boolean errors, boolean expired) {
+      _readyTime = readyTime;
+      _errors = errors;
+      _expired = expired;
+    }
+
+    private String getStatus() {
+      if (_expired) return "expired";
+      if (System.currentTimeMillis() < _readyTime) return "in-progress";
+      return _errors ? "errored" : "completed";
+    }
+  }
+
+  private final Settings _settings;
+  private final HttpServer _server;
+  private final ExecutorService _executor;
+  private final Random _random = new Random();
+  private final AtomicInteger _nextId = new AtomicInteger();
+  private final Map<String, Resource> _jobs = new ConcurrentHashMap<>();
+  private final Map<String, Resource> _reports = new ConcurrentHashMap<>();
+  private final AtomicLong _requestCount = new AtomicLong();
+
+  /**
+   * Starts a simulator listening on an ephemeral port of the loopback interface.
+   *
+   * @param settings behavior of the simulated service
+   * @throws IOException if unable to start the server
+   */
+  public MultiBlastServiceSimulator(Settings settings) throws IOException {
+    _settings = settings;
+    _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    _executor = Executors.newCachedThreadPool();
+    _server.setExecutor(_executor);
+    _server.createContext("/jobs", this::handle);
+    _server.createContext("/reports", this::handle);
+    _server.start();
+    LOG.info("Started multi-blast service simulator at " + getServiceUrl() + " with settings " + settings);
+  }
+
+  /**
+   * @return base URL of the simulated service
+   */
+  public String getServiceUrl() {
+    return "http://127.0.0.1:" + _server.getAddress().getPort();
+  }
+
+  /**
+   * @return number of requests received
+   */
+  public long getRequestCount() {
+    return _requestCount.get();
+  }
+
+  @Override
+  public void close() {
+    _server.stop(0);
+    _executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    _requestCount.incrementAndGet();
+    try {
+      String[] path = exchange.getRequestURI().getPath().substring(1).split("/");
+      String method = exchange.getRequestMethod();
+      boolean isJob = path[0].equals("jobs");
+      Map<String, Resource> resources = isJob ? _jobs : _reports;
+      readBody(exchange);
+
+      if (path.length == 1 && method.equals("POST")) {
+        String id = String.valueOf(_nextId.incrementAndGet());
+        resources.put(id, newResource());
+        sendJson(exchange, 200, new JSONObject().put(isJob ? "jobId" : "reportID", id));
+        return;
+      }
+
+      Resource resource = path.length > 1 ? resources.get(path[1]) : null;
+      if (resource == null) {
+        sendJson(exchange, 404, new JSONObject().put("status", "not-found"));
+      }
+      else if (path.length == 2 && method.equals("GET")) {
+        String status = resource.getStatus();
+        JSONObject statusJson = new JSONObject().put("status", status);
+        if (status.equals("errored")) {
+          statusJson.put("description", "Simulated failure");
+        }
+        sendJson(exchange, 200, statusJson);
+      }
+      else if (path.length == 2 && method.equals("POST")) {
+        // rerun; a rerun resource does not expire again
+        resources.put(path[1], new Resource(readyTime(), resource._errors, false));
+        sendJson(exchange, 200, new JSONObject());
+      }
+      else if (!isJob && path.length == 4 && path[2].equals("files") && method.equals("GET")) {
+        sendReport(exchange, path[3]);
+      }
+      else {
+        sendJson(exchange, 405, new JSONObject().put("status", "bad-method"));
+      }
+    }
+    catch (IOException | RuntimeException e) {
+      LOG.warn("Simulator failed to handle " + exchange.getRequestURI(), e);
+      sendJson(exchange, 500, new JSONObject().put("status", "server-error"));
+    }
+    finally {
+      exchange.close();
+    }
+  }
+
+  private synchronized Resource newResource() {
+    return new Resource(readyTime(), _random.nextDouble() < _settings._errorRate,
+        _random.nextDouble() < _settings._expiryRate);
+  }
+
+  private long readyTime() {
+    return System.currentTimeMillis() + _settings._queueDelayMillis;
+  }
+
+  private static void readBody(HttpExchange exchange) throws IOException {
+    try (InputStream in = exchange.getRequestBody()) {
+      in.transferTo(OutputStream.nullOutputStream());
+    }
+  }
+
+  private static void sendJson(HttpExchange exchange, int status, JSONObject body) throws IOException {
+    byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private void sendReport(HttpExchange exchange, String fileName) throws IOException {
+    String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+    if (gzip) {
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+    }
+    exchange.sendResponseHeaders(200, 0);
+    OutputStream body = gzip ? new GZIPOutputStream(exchange.getResponseBody()) : exchange.getResponseBody();
+    try (Writer out = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+      if (fileName.endsWith(".json")) {
+        writeJsonReport(out);
+      }
+      else {
+        writePairwiseReport(out);
+      }
+    }
+  }
+
+  private void writeJsonReport(Writer out) throws IOException {
+    out.write("{\"BlastOutput2\":[{\"report\":{\"program\":\"blastn\",\"version\":\"BLASTN 2.11.0+\"," +
+        "\"search_target\":{\"db\":\"SimulatedGenome\"},\"results\":{\"search\":{" +
+        "\"query_title\":\"simulated query\",\"query_len\":300,\"hits\":[");
+    for (int i = 1; i <= _settings._reportHits; i++) {
+      if (i > 1) out.write(',');
+      out.write("{\"num\":" + i + ",\"description\":[{\"id\":\"sim_" + i + "\",\"accession\":\"sim_" + i +
+          "\",\"title\":\"sim_" + i + " | organism=Simulated_organism | length=" + (1000 + i) + "\"}]," +
+          "\"len\":" + (1000 + i) + ",\"hsps\":[{\"num\":1,\"bit_score\":" + (500.0 - i * 0.1) +
+          ",\"score\":" + (1000 - i) + ",\"evalue\":" + (i * 1e-50) + ",\"identity\":290,\"positive\":290," +
+          "\"query_from\":1,\"query_to\":300,\"hit_from\":" + i + ",\"hit_to\":" + (i + 299) +
+          ",\"align_len\":300,\"gaps\":0,\"qseq\":\"" + "ACGT".repeat(75) + "\",\"hseq\":\"" + "ACGT".repeat(75) +
+          "\",\"midline\":\"" + "|".repeat(300) + "\"}]}");
+    }
+    out.write("],\"stat\":{\"db_num\":1,\"db_len\":" + (1000L * _settings._reportHits) + "}}}}}]}");
+  }
+
+  private void writePairwiseReport(Writer out) throws IOException {
+    out.write("BLASTN 2.11.0+\n\nQuery= simulated query\n\nLength=300\n\n" +
+        "Sequences producing significant alignments:                          (Bits)  Value\n\n");
+    for (int i = 1; i <= _settings._reportHits; i++) {
+      out.write("sim_" + i + " | organism=Simulated_organism | length=" + (1000 + i) + "    " +
+          (500 - i / 10) + "    " + (i * 1e-50) + "\n");
+    }
+    out.write("\n\n");
+    for (int i = 1; i <= _settings._reportHits; i++) {
+      out.write("> sim_" + i + " | organism=Simulated_organism | length=" + (1000 + i) + "\n" +
+          "Length=" + (1000 + i) + "\n\n Score = " + (500 - i / 10) + " bits, Expect = " + (i * 1e-50) +
+          "\n Identities = 290/300 (97%)\n\nQuery  1  " + "ACGT".repeat(15) + "  60\n" +
+          "Sbjct  " + i + "  " + "ACGT".repeat(15) + "  " + (i + 59) + "\n\n");
+    }
+  }
+}
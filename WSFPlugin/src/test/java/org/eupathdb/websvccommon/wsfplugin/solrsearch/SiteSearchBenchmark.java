@@ -0,0 +1,272 @@
+package org.eupathdb.websvccommon.wsfplugin.solrsearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchMetadataCache.DocumentType;
+import org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchRowPipeline.RowBuilder;
+import org.eupathdb.websvccommon.wsfplugin.solrsearch.SiteSearchUtil.SearchField;
+import org.gusdb.wsf.plugin.PluginRequest;
+import org.gusdb.wsf.plugin.PluginResponse;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Measures the throughput of the site search plugin's result path, in rows
+ * per second and bytes allocated per row, at increasing scope:
+ *
+ *   parse          SiteSearchRowParser over in-memory result lines
+ *   readResultRow  parsing plus building each result row
+ *   pipeline       SiteSearchRowPipeline writing rows from an in-memory stream
+ *   execute        the plugin's search path against a SiteSearchServiceSimulator:
+ *                  metadata lookup, then EuPathSiteSearchPlugin.search() (search
+ *                  request, pipeline, row writing and result cache recording)
+ *
+ * Rows are written to an in-memory stand-in for the plugin response that only
+ * counts them.  The plugin's execute() needs a WDK model to resolve the record
+ * class and search URL, so the execute benchmark builds the request body
+ * itself and calls search(), which execute() calls once those are resolved;
+ * each iteration uses a new result cache key so none is answered from the
+ * cache.  Each benchmark runs a number of warm-up iterations before the
+ * measured ones.
+ * Allocation is counted on the benchmark thread and the plugin's own
+ * ("sitesearch-") threads, so the simulator's allocation is excluded.
+ *
+ * Arguments are name=value pairs; all are optional:
+ *
+ *   benchmarks     comma-delimited benchmarks to run (default all)
+ *   rows           rows per search result (default 100000)
+ *   pkValues       values per primary key (default 1)
+ *   pkValueLength  length of each primary key value (default 16)
+ *   documentTypes  document types in the simulated metadata (default 20)
+ *   fields         search fields per document type (default 30)
+ *   maxRows        row limit for the execute benchmark, 0 for none (default 0)
+ *   warmup         warm-up iterations per benchmark (default 5)
+ *   iterations     measured iterations per benchmark (default 10)
+ *
+ * Lives in the test source tree, in the plugin's package so it can call the
+ * package-level search path; run it with the module's test classpath.
+ */
+public class SiteSearchBenchmark {
+
+  private static final String PROJECT_ID = "PlasmoDB";
+
+  private static final List<String> ALL_BENCHMARKS = List.of("parse", "readResultRow", "pipeline", "execute");
+
+  @FunctionalInterface
+  private interface Benchmark {
+    // runs one iteration; returns the number of rows processed
+    long run(RowSink sink) throws Exception;
+  }
+
+  /**
+   * The plugin with its project ID hook answering from PROJECT_ID, so rows can
+   * be built without a plugin request.
+   */
+  private static class BenchmarkPlugin extends EuPathSiteSearchPlugin {
+    @Override
+    protected String computeRecordProjectId(Optional<String> solrRecordProjectId, JSONArray primaryKey, PluginRequest request) {
+      return solrRecordProjectId.orElse(PROJECT_ID);
+    }
+  }
+
+  private static final EuPathSiteSearchPlugin PLUGIN = new BenchmarkPlugin();
+  private static final RowBuilder ROW_BUILDER = PLUGIN.newRowBuilder(null, true, null);
+
+  private static final AtomicLong SEARCH_COUNT = new AtomicLong();
+
+  /**
+   * Stand-in for a plugin response; counts rows and consumes their contents so
+   * building them cannot be optimized away.
+   */
+  private static class RowSink implements PluginResponse {
+
+    private long _rows = 0;
+    private long _consumed = 0;
+
+    @Override
+    public void addRow(String[] row) {
+      _rows++;
+      _consumed += row.length + row[0].length();
+    }
+
+    @Override
+    public void addAttachment(String key, String content) {
+      // not counted
+    }
+
+    @Override
+    public void setMessage(String message) {
+      // not counted
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String,String> options = parseArgs(args);
+    List<String> benchmarks = Arrays.asList(options.getOrDefault("benchmarks", String.join(",", ALL_BENCHMARKS)).split(","));
+    int maxRows = Integer.parseInt(options.getOrDefault("maxRows", "0"));
+    int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+    int iterations = Integer.parseInt(options.getOrDefault("iterations", "10"));
+    SiteSearchServiceSimulator.Settings settings = new SiteSearchServiceSimulator.Settings(
+        Integer.parseInt(options.getOrDefault("rows", "100000")),
+        Integer.parseInt(options.getOrDefault("pkValues", "1")),
+        Integer.parseInt(options.getOrDefault("pkValueLength", "16")),
+        Integer.parseInt(options.getOrDefault("documentTypes", "20")),
+        Integer.parseInt(options.getOrDefault("fields", "30")));
+
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    if (!threads.isThreadAllocatedMemorySupported()) {
+      throw new IllegalStateException("This JVM cannot measure allocation per thread");
+    }
+    threads.setThreadAllocatedMemoryEnabled(true);
+
+    ByteArrayOutputStream lines = new ByteArrayOutputStream();
+    SiteSearchServiceSimulator.writeResults(lines, settings, Optional.of(PROJECT_ID), settings.getResultRows());
+    byte[] results = lines.toByteArray();
+
+    System.out.println("Simulator settings:  " + settings);
+    System.out.println("Result size:         " + results.length + " bytes (" +
+        results.length / Math.max(1, settings.getResultRows()) + " per row)");
+    System.out.println("Iterations:          " + warmup + " warm-up, " + iterations + " measured");
+
+    try (SiteSearchServiceSimulator simulator = new SiteSearchServiceSimulator(settings)) {
+      Map<String, Benchmark> available = new HashMap<>();
+      available.put("parse", sink -> parse(results));
+      available.put("readResultRow", sink -> readResultRows(results, sink));
+      available.put("pipeline", sink -> pipeline(results, sink));
+      available.put("execute", sink -> execute(simulator.getServiceUrl(), maxRows, sink));
+      for (String name : benchmarks) {
+        Benchmark benchmark = available.get(name.trim());
+        if (benchmark == null) {
+          throw new IllegalArgumentException("Unknown benchmark '" + name + "'; choose from " + ALL_BENCHMARKS);
+        }
+        run(name.trim(), benchmark, warmup, iterations, threads);
+      }
+      System.out.println("Service requests:    " + simulator.getRequestCount());
+      System.out.println("Service bytes sent:  " + simulator.getBytesSent());
+    }
+    // transport and pipeline threads are daemons; nothing else keeps the JVM alive
+  }
+
+  private static long parse(byte[] results) throws Exception {
+    SiteSearchRowParser rows = new SiteSearchRowParser(new ByteArrayInputStream(results));
+    long count = 0, consumed = 0;
+    while (rows.next()) {
+      consumed += rows.getPrimaryKeyValue(0).length() + rows.getScore().length();
+      count++;
+    }
+    if (consumed == 0) throw new IllegalStateException("Nothing parsed");
+    return count;
+  }
+
+  private static long readResultRows(byte[] results, RowSink sink) throws Exception {
+    SiteSearchRowParser rows = new SiteSearchRowParser(new ByteArrayInputStream(results));
+    while (rows.next()) {
+      String[] primaryKey = new String[rows.getPrimaryKeyLength()];
+      for (int i = 0; i < primaryKey.length; i++) {
+        primaryKey[i] = rows.getPrimaryKeyValue(i);
+      }
+      sink.addRow(ROW_BUILDER.buildRow(primaryKey, rows.getProjectId(), rows.getScore()));
+    }
+    return sink._rows;
+  }
+
+  private static long pipeline(byte[] results, RowSink sink) throws Exception {
+    try (SiteSearchRowPipeline pipeline = new SiteSearchRowPipeline(new ByteArrayInputStream(results),
+        ROW_BUILDER, SiteSearchRowPipeline.DEFAULT_BATCH_SIZE, SiteSearchRowPipeline.DEFAULT_QUEUED_BATCHES)) {
+      pipeline.writeTo(sink, 0);
+    }
+    return sink._rows;
+  }
+
+  // builds the request body as EuPathSiteSearchPlugin.buildRequestJson() does, then runs the plugin's search
+  private static long execute(String serviceUrl, int maxRows, RowSink sink) throws Exception {
+    String documentTypeId = SiteSearchServiceSimulator.getDocumentTypeId(0);
+    DocumentType documentType = SiteSearchUtil.getDocumentType(serviceUrl, documentTypeId, Optional.of(PROJECT_ID));
+    JSONObject requestBody = new JSONObject()
+      .put("searchText", "kinase")
+      .put("documentTypeFilter", new JSONObject()
+        .put("documentType", documentTypeId)
+        .put("foundOnlyInFields", documentType.getFields().stream()
+          .map(SearchField::getSolrField)
+          .collect(Collectors.toList())))
+      .put("restrictToProject", PROJECT_ID);
+    if (maxRows > 0) {
+      requestBody.put("pagination", new JSONObject()
+        .put("offset", 0)
+        .put("numRecords", maxRows + 1L));
+    }
+    PLUGIN.search(serviceUrl, requestBody, Collections.emptyList(), maxRows,
+        "benchmark-" + SEARCH_COUNT.incrementAndGet(), ROW_BUILDER, sink);
+    return sink._rows;
+  }
+
+  private static void run(String name, Benchmark benchmark, int warmup, int iterations,
+      com.sun.management.ThreadMXBean threads) throws Exception {
+    for (int i = 0; i < warmup; i++) {
+      benchmark.run(new RowSink());
+    }
+    List<Double> rowsPerSecond = new ArrayList<>();
+    long totalRows = 0, totalBytes = 0;
+    for (int i = 0; i < iterations; i++) {
+      Map<Long, Long> allocatedBefore = getAllocatedBytes(threads);
+      long start = System.nanoTime();
+      long rows = benchmark.run(new RowSink());
+      long elapsed = System.nanoTime() - start;
+      totalBytes += getAllocatedSince(threads, allocatedBefore);
+      totalRows += rows;
+      rowsPerSecond.add(rows * 1e9 / Math.max(1, elapsed));
+    }
+    Collections.sort(rowsPerSecond);
+    System.out.println(String.format("%-20s %,12.0f rows/s (min %,.0f, max %,.0f), %,8.1f bytes allocated/row",
+        name + ":", median(rowsPerSecond), rowsPerSecond.get(0), rowsPerSecond.get(rowsPerSecond.size() - 1),
+        totalBytes / (double)Math.max(1, totalRows)));
+  }
+
+  // bytes allocated so far by the benchmark thread and the plugin's threads, by thread ID
+  private static Map<Long, Long> getAllocatedBytes(com.sun.management.ThreadMXBean threads) {
+    Map<Long, Long> allocated = new HashMap<>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread == Thread.currentThread() || thread.getName().startsWith("sitesearch-")) {
+        long bytes = threads.getThreadAllocatedBytes(thread.getId());
+        if (bytes >= 0) allocated.put(thread.getId(), bytes);
+      }
+    }
+    return allocated;
+  }
+
+  // threads that ended in between are not counted; pipeline threads are pooled, so this is rare
+  private static long getAllocatedSince(com.sun.management.ThreadMXBean threads, Map<Long, Long> before) {
+    long total = 0;
+    for (Map.Entry<Long, Long> entry : getAllocatedBytes(threads).entrySet()) {
+      total += entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+    }
+    return total;
+  }
+
+  private static double median(List<Double> sorted) {
+    return sorted.isEmpty() ? 0 : sorted.get(sorted.size() / 2);
+  }
+
+  private static Map<String,String> parseArgs(String[] args) {
+    Map<String,String> options = new HashMap<>();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq < 1) {
+        throw new IllegalArgumentException("Arguments must be name=value pairs: " + arg);
+      }
+      options.put(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+    return options;
+  }
+}
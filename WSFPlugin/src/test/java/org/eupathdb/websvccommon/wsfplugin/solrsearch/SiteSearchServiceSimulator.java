@@ -0,0 +1,243 @@
+package org.eupathdb.websvccommon.wsfplugin.solrsearch;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the site search service, for measuring the site
+ * search plugins' service path without a real deployment.  Implements the
+ * endpoints the plugins use:
+ *
+ *   GET /categories-metadata[?projectId=...]
+ *   POST / (search; responds with one result line per row)
+ *
+ * Metadata describes a configured number of document types, each with a
+ * configured number of search fields.  Search results are generated on
+ * request: a configured number of rows with descending scores, each of the
+ * form ["pk1",...] TAB score TAB projectId, as the real service streams
+ * them.  The restrictToProject and pagination.numRecords properties of the
+ * request body are honored.
+ */
+public class SiteSearchServiceSimulator implements AutoCloseable {
+
+  private static final Logger LOG = Logger.getLogger(SiteSearchServiceSimulator.class);
+
+  // projects rows are assigned to, in turn, when a search is not restricted to one
+  private static final String[] PORTAL_PROJECTS = { "PlasmoDB", "ToxoDB", "CryptoDB", "FungiDB" };
+
+  public static class Settings {
+
+    private final int _resultRows;
+    private final int _pkValues;
+    private final int _pkValueLength;
+    private final int _documentTypes;
+    private final int _fieldsPerDocumentType;
+
+    /**
+     * @param resultRows number of rows each search returns
+     * @param pkValues number of values in each row's primary key
+     * @param pkValueLength length of each primary key value
+     * @param documentTypes number of document types in the metadata
+     * @param fieldsPerDocumentType number of search fields of each document type
+     */
+    public Settings(int resultRows, int pkValues, int pkValueLength, int documentTypes, int fieldsPerDocumentType) {
+      _resultRows = resultRows;
+      _pkValues = pkValues;
+      _pkValueLength = pkValueLength;
+      _documentTypes = documentTypes;
+      _fieldsPerDocumentType = fieldsPerDocumentType;
+    }
+
+    public int getResultRows() {
+      return _resultRows;
+    }
+
+    @Override
+    public String toString() {
+      return "{ resultRows: " + _resultRows + ", pkValues: " + _pkValues + ", pkValueLength: " +
+          _pkValueLength + ", documentTypes: " + _documentTypes + ", fieldsPerDocumentType: " +
+          _fieldsPerDocumentType + " }";
+    }
+  }
+
+  private final Settings _settings;
+  private final HttpServer _server;
+  private final ExecutorService _executor;
+  private final AtomicLong _requestCount = new AtomicLong();
+  private final AtomicLong _bytesSent = new AtomicLong();
+
+  /**
+   * Starts a simulator listening on an ephemeral port of the loopback interface.
+   *
+   * @param settings behavior of the simulated service
+   * @throws IOException if unable to start the server
+   */
+  public SiteSearchServiceSimulator(Settings settings) throws IOException {
+    _settings = settings;
+    _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    _executor = Executors.newCachedThreadPool();
+    _server.setExecutor(_executor);
+    _server.createContext("/", this::handle);
+    _server.start();
+    LOG.info("Started site search service simulator at " + getServiceUrl() + " with settings " + settings);
+  }
+
+  /**
+   * @return base URL of the simulated service
+   */
+  public String getServiceUrl() {
+    return "http://127.0.0.1:" + _server.getAddress().getPort();
+  }
+
+  /**
+   * @return number of requests received
+   */
+  public long getRequestCount() {
+    return _requestCount.get();
+  }
+
+  /**
+   * @return number of response body bytes sent (uncompressed)
+   */
+  public long getBytesSent() {
+    return _bytesSent.get();
+  }
+
+  @Override
+  public void close() {
+    _server.stop(0);
+    _executor.shutdownNow();
+  }
+
+  /**
+   * @param index index of a simulated document type
+   * @return ID of the document type
+   */
+  public static String getDocumentTypeId(int index) {
+    return "doctype" + index;
+  }
+
+  /**
+   * Writes search result lines as the simulated service sends them.
+   *
+   * @param out stream to write to
+   * @param settings settings determining the rows' size
+   * @param projectId project all rows belong to, or empty to assign rows to
+   * several projects
+   * @param numRows number of rows to write; rows are the first of a full
+   * result, so a result cut short by pagination is a prefix of the full one
+   * @return number of bytes written
+   * @throws IOException if unable to write
+   */
+  public static long writeResults(OutputStream out, Settings settings, Optional<String> projectId, int numRows)
+      throws IOException {
+    long bytesWritten = 0;
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < numRows; i++) {
+      line.setLength(0);
+      line.append('[');
+      for (int j = 0; j < settings._pkValues; j++) {
+        if (j > 0) line.append(',');
+        line.append('"');
+        String id = "SIM" + j + "_" + i;
+        for (int k = id.length(); k < settings._pkValueLength; k++) line.append('0');
+        line.append(id).append('"');
+      }
+      line.append("]\t").append(settings._resultRows - i).append('.').append(i % 1000)
+        .append('\t').append(projectId.orElse(PORTAL_PROJECTS[i % PORTAL_PROJECTS.length])).append('\n');
+      byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+      out.write(bytes);
+      bytesWritten += bytes.length;
+    }
+    return bytesWritten;
+  }
+
+  /**
+   * @param settings settings determining the number and size of document types
+   * @return categories metadata as the simulated service sends it
+   */
+  public static JSONObject buildMetadata(Settings settings) {
+    JSONArray documentTypes = new JSONArray();
+    for (int i = 0; i < settings._documentTypes; i++) {
+      JSONArray searchFields = new JSONArray();
+      for (int j = 0; j < settings._fieldsPerDocumentType; j++) {
+        searchFields.put(new JSONObject()
+          .put("name", "TEXT__field" + j)
+          .put("displayName", "Field " + j)
+          .put("term", "field" + j));
+      }
+      documentTypes.put(new JSONObject()
+        .put("id", getDocumentTypeId(i))
+        .put("displayName", "Document type " + i)
+        .put("searchFields", searchFields));
+    }
+    return new JSONObject().put("documentTypes", documentTypes);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    _requestCount.incrementAndGet();
+    try {
+      String path = exchange.getRequestURI().getPath();
+      String method = exchange.getRequestMethod();
+      if (path.equals("/categories-metadata") && method.equals("GET")) {
+        sendBytes(exchange, 200, "application/json",
+            buildMetadata(_settings).toString().getBytes(StandardCharsets.UTF_8));
+      }
+      else if (path.equals("/") && method.equals("POST")) {
+        sendResults(exchange, new JSONObject(readBody(exchange)));
+      }
+      else {
+        sendBytes(exchange, 404, "text/plain", "Not found".getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    catch (IOException | RuntimeException e) {
+      // includes clients closing the connection before reading all results
+      LOG.debug("Simulator stopped handling " + exchange.getRequestURI() + ": " + e);
+    }
+    finally {
+      exchange.close();
+    }
+  }
+
+  private void sendResults(HttpExchange exchange, JSONObject request) throws IOException {
+    Optional<String> projectId = Optional.ofNullable(request.optString("restrictToProject", null));
+    JSONObject pagination = request.optJSONObject("pagination");
+    int numRows = pagination == null || !pagination.has("numRecords") ? _settings._resultRows :
+        (int)Math.min(_settings._resultRows, pagination.getLong("numRecords"));
+    exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+    exchange.sendResponseHeaders(200, 0);
+    try (OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), 64 * 1024)) {
+      _bytesSent.addAndGet(writeResults(out, _settings, projectId, numRows));
+    }
+  }
+
+  private static String readBody(HttpExchange exchange) throws IOException {
+    try (InputStream in = exchange.getRequestBody()) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  private void sendBytes(HttpExchange exchange, int status, String contentType, byte[] bytes) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+    _bytesSent.addAndGet(bytes.length);
+  }
+}